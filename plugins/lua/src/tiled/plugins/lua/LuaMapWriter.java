@@ -14,7 +14,6 @@ package tiled.plugins.lua;
 import java.io.*;
 import java.awt.Color;
 import java.awt.Rectangle;
-import java.util.Enumeration;
 import java.util.Iterator;
 import java.util.Properties;
 import java.util.prefs.Preferences;
@@ -144,10 +143,9 @@ public class LuaMapWriter implements MapWriter
      */
     private void writeProperties(Properties props) throws IOException
     {
-        if (!props.isEmpty()) {
+        if (!PropertyMap.isEmpty(props)) {
             startTable( "properties" );
-            for (Enumeration<Object> keys = props.keys(); keys.hasMoreElements();) {
-                String key = (String)keys.nextElement();
+            for (String key : PropertyMap.names(props)) {
                 writelnKeyAndValue( key, props.getProperty(key));
             }
             endTable();
@@ -277,7 +275,7 @@ public class LuaMapWriter implements MapWriter
             while (tileIterator.hasNext()) {
                 Tile tile = (Tile) tileIterator.next();
                 // todo: move the null check back into the iterator?
-                if (tile != null && !tile.getProperties().isEmpty()) {
+                if (tile != null && tile.hasProperties()) {
                     startTable();
                     writelnKeyAndValue("label", "tile");
                     writelnKeyAndValue("id", tile.getId());
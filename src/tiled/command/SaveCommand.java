@@ -1,5 +1,8 @@
 package tiled.command;
 
+import java.util.zip.Deflater;
+
+import tiled.io.xml.LayerCompression;
 import tiled.io.xml.XMLMapWriter;
 import tiled.util.OverriddenPreferences;
 
@@ -31,6 +34,40 @@ class SaveCommand extends Command {
     public void setEmbedImageDataEnabled(boolean enabled){
         oprefs.putBoolean("embedImages", enabled);
     }
+
+    /**
+     * Sets the compression of the layer data: none, zlib or gzip.
+     */
+    public void setLayerCompression(String codec){
+        LayerCompression compression = LayerCompression.valueOf(codec, null);
+        if (compression == null) {
+            throw new IllegalArgumentException("unknown compression '" + codec + '\'');
+        }
+        oprefs.put("layerCodec", compression.name());
+    }
+
+    /**
+     * Sets the deflate level of compressed layer data, from 0 (no
+     * compression) to 9 (best compression), or -1 for the default level.
+     */
+    public void setCompressionLevel(int level){
+        if (level < Deflater.DEFAULT_COMPRESSION || level > Deflater.BEST_COMPRESSION) {
+            throw new IllegalArgumentException("compression level out of range: " + level);
+        }
+        oprefs.putInt("layerCompressionLevel", level);
+    }
+
+    /**
+     * Sets the deflate strategy of compressed layer data: default, filtered
+     * or huffman_only.
+     */
+    public void setCompressionStrategy(String strategy){
+        LayerCompression.Strategy s = LayerCompression.Strategy.valueOf(strategy, null);
+        if (s == null) {
+            throw new IllegalArgumentException("unknown compression strategy '" + strategy + '\'');
+        }
+        oprefs.put("layerCompressionStrategy", s.name());
+    }
     
     @Override
     int execute() {
@@ -88,13 +88,13 @@ public class AnimatedTile extends Tile {
     }
 
     /**
-     * Handles drawing the correct frame, and iterating by the
-     * frame rate
+     * Draws the current frame. The animation itself is advanced by
+     * {@link tiled.view.AnimationClock}, so that drawing the same tile many
+     * times does not make it run faster.
      *
      * @see tiled.core.Tile#draw(Graphics, int, int, double)
      */
     public void draw(Graphics g, int x, int y, double zoom) {
         sprite.getCurrentFrame().draw(g, x, y, zoom);
-        sprite.iterateFrame();
     }
 }
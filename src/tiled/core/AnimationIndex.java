@@ -0,0 +1,186 @@
+/*
+ *  Tiled Map Editor, (c) 2004-2008
+ *
+ *  This program is free software; you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation; either version 2 of the License, or
+ *  (at your option) any later version.
+ *
+ *  Adam Turk <aturk@biggeruniverse.com>
+ *  Bjorn Lindeijer <bjorn@lindeijer.nl>
+ */
+
+package tiled.core;
+
+import java.awt.Rectangle;
+
+import tiled.util.LongHashMap;
+
+/**
+ * Keeps track of the cells of a {@link TileRaster} that hold an
+ * {@link AnimatedTile}, so that the animated cells in a region can be found
+ * without looking at every cell of it.
+ * <p>
+ * The raster is divided into square blocks, and for each block holding
+ * animated cells the positions of these cells are stored. Changed parts of
+ * the raster are only marked as out of date, and are scanned again when the
+ * index is next queried.
+ */
+class AnimationIndex
+{
+    // Blocks are 32 by 32 cells
+    private static final int BLOCK_SHIFT = 5;
+    private static final int BLOCK_SIZE = 1 << BLOCK_SHIFT;
+
+    // Positions within a block as y * BLOCK_SIZE + x, per block
+    private final LongHashMap<short[]> blocks = new LongHashMap<short[]>();
+
+    private TileRaster raster;      // the raster the blocks describe
+    private int staleX1, staleY1, staleX2, staleY2;
+
+    /**
+     * Marks the given region of the raster as changed.
+     *
+     * @param x      x coordinate relative to the raster
+     * @param y      y coordinate relative to the raster
+     * @param width  width of the region
+     * @param height height of the region
+     */
+    public void invalidate(int x, int y, int width, int height) {
+        if (staleX2 <= staleX1) {
+            staleX1 = x;
+            staleY1 = y;
+            staleX2 = x + width;
+            staleY2 = y + height;
+        } else {
+            staleX1 = Math.min(staleX1, x);
+            staleY1 = Math.min(staleY1, y);
+            staleX2 = Math.max(staleX2, x + width);
+            staleY2 = Math.max(staleY2, y + height);
+        }
+    }
+
+    /**
+     * Returns the animated cells in the given region.
+     *
+     * @param raster  the current raster of the layer
+     * @param palette the palette resolving the cells of the raster
+     * @param region  the region to search, relative to the raster
+     * @return the cells as pairs of x and y coordinates relative to the
+     *         raster
+     */
+    public int[] getCells(TileRaster raster, TilePalette palette,
+                          Rectangle region) {
+        if (!palette.hasAnimatedTiles()) {
+            blocks.clear();
+            this.raster = raster;
+            staleX2 = staleX1;
+            return new int[0];
+        }
+
+        if (raster != this.raster) {
+            // The layer got new storage, so everything has to be scanned
+            blocks.clear();
+            this.raster = raster;
+            staleX1 = 0;
+            staleY1 = 0;
+            staleX2 = raster.getWidth();
+            staleY2 = raster.getHeight();
+        }
+        if (staleX2 > staleX1) {
+            scan(palette);
+        }
+
+        final Rectangle r = region.intersection(
+                new Rectangle(0, 0, raster.getWidth(), raster.getHeight()));
+        if (r.isEmpty()) {
+            return new int[0];
+        }
+
+        final int bx0 = r.x >> BLOCK_SHIFT;
+        final int by0 = r.y >> BLOCK_SHIFT;
+        final int bx1 = (r.x + r.width - 1) >> BLOCK_SHIFT;
+        final int by1 = (r.y + r.height - 1) >> BLOCK_SHIFT;
+
+        int[] cells = new int[16];
+        int count = 0;
+        for (int by = by0; by <= by1; by++) {
+            for (int bx = bx0; bx <= bx1; bx++) {
+                final short[] positions = blocks.get(LongHashMap.pack(bx, by));
+                if (positions == null) {
+                    continue;
+                }
+                for (short p : positions) {
+                    final int x = (bx << BLOCK_SHIFT) + (p & (BLOCK_SIZE - 1));
+                    final int y = (by << BLOCK_SHIFT) + (p >> BLOCK_SHIFT);
+                    if (r.contains(x, y)) {
+                        if (count == cells.length) {
+                            int[] grown = new int[cells.length * 2];
+                            System.arraycopy(cells, 0, grown, 0, count);
+                            cells = grown;
+                        }
+                        cells[count++] = x;
+                        cells[count++] = y;
+                    }
+                }
+            }
+        }
+
+        int[] result = new int[count];
+        System.arraycopy(cells, 0, result, 0, count);
+        return result;
+    }
+
+    /**
+     * Scans the blocks touched by the changed region again.
+     */
+    private void scan(TilePalette palette) {
+        final boolean[] animated = new boolean[palette.size()];
+        for (int i = 1; i < animated.length; i++) {
+            animated[i] = palette.getTile(i) instanceof AnimatedTile;
+        }
+
+        final int width = raster.getWidth();
+        final int height = raster.getHeight();
+        final int x1 = Math.max(0, staleX1);
+        final int y1 = Math.max(0, staleY1);
+        final int x2 = Math.min(width, staleX2);
+        final int y2 = Math.min(height, staleY2);
+        staleX2 = staleX1;
+        if (x2 <= x1 || y2 <= y1) {
+            return;
+        }
+
+        final int[] row = new int[BLOCK_SIZE];
+        final short[] found = new short[BLOCK_SIZE * BLOCK_SIZE];
+
+        for (int by = y1 >> BLOCK_SHIFT; by <= (y2 - 1) >> BLOCK_SHIFT; by++) {
+            for (int bx = x1 >> BLOCK_SHIFT; bx <= (x2 - 1) >> BLOCK_SHIFT; bx++) {
+                final int x0 = bx << BLOCK_SHIFT;
+                final int y0 = by << BLOCK_SHIFT;
+                final int w = Math.min(BLOCK_SIZE, width - x0);
+                final int h = Math.min(BLOCK_SIZE, height - y0);
+
+                int count = 0;
+                for (int y = 0; y < h; y++) {
+                    raster.getCells(x0, y0 + y, w, row, 0);
+                    for (int x = 0; x < w; x++) {
+                        final int value = row[x];
+                        if (value < animated.length && animated[value]) {
+                            found[count++] = (short) (y << BLOCK_SHIFT | x);
+                        }
+                    }
+                }
+
+                final long key = LongHashMap.pack(bx, by);
+                if (count == 0) {
+                    blocks.remove(key);
+                } else {
+                    short[] positions = new short[count];
+                    System.arraycopy(found, 0, positions, 0, count);
+                    blocks.put(key, positions);
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,556 @@
+/*
+ *  Tiled Map Editor, (c) 2004-2008
+ *
+ *  This program is free software; you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation; either version 2 of the License, or
+ *  (at your option) any later version.
+ *
+ *  Adam Turk <aturk@biggeruniverse.com>
+ *  Bjorn Lindeijer <bjorn@lindeijer.nl>
+ */
+
+package tiled.core;
+
+import java.awt.Point;
+import java.awt.Rectangle;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import tiled.util.Workers;
+
+/**
+ * A sparse {@link TileRaster} that divides its cells into square chunks of
+ * {@link #CHUNK_SIZE} by {@link #CHUNK_SIZE} cells. A chunk is only allocated
+ * once a non-empty value is written to it, and released again when its last
+ * non-empty cell is cleared, so that memory use scales with the number of
+ * painted cells rather than with the area of the raster.
+ * <p>
+ * Chunks are copied on write: a copy of the raster shares the chunks with the
+ * original, and a chunk is only duplicated once either raster modifies it.
+ */
+public class ChunkedTileRaster extends TileRaster
+{
+    public static final int CHUNK_SIZE = 32;
+    private static final int CHUNK_SHIFT = 5;
+    private static final int CHUNK_MASK = CHUNK_SIZE - 1;
+    private static final int CHUNK_CELLS = CHUNK_SIZE * CHUNK_SIZE;
+
+    private final int chunksX, chunksY;
+    private final int[][] chunks;
+    private final int[] used;           // non-empty cells per chunk
+    private final boolean[] owned;      // chunks not shared with another raster
+    private int allocated;
+
+    public ChunkedTileRaster(int width, int height) {
+        super(width, height);
+        chunksX = (width + CHUNK_MASK) >> CHUNK_SHIFT;
+        chunksY = (height + CHUNK_MASK) >> CHUNK_SHIFT;
+        chunks = new int[chunksX * chunksY][];
+        used = new int[chunks.length];
+        owned = new boolean[chunks.length];
+    }
+
+    /**
+     * Returns the given chunk, first making a private copy of it when it
+     * may be shared with another raster.
+     */
+    private int[] writableChunk(int c) {
+        if (!owned[c]) {
+            chunks[c] = chunks[c].clone();
+            owned[c] = true;
+        }
+        return chunks[c];
+    }
+
+    public int get(int x, int y) {
+        int[] chunk = chunks[(y >> CHUNK_SHIFT) * chunksX + (x >> CHUNK_SHIFT)];
+        return chunk == null ? 0 :
+                chunk[((y & CHUNK_MASK) << CHUNK_SHIFT) | (x & CHUNK_MASK)];
+    }
+
+    public void set(int x, int y, int value) {
+        final int c = (y >> CHUNK_SHIFT) * chunksX + (x >> CHUNK_SHIFT);
+        int[] chunk = chunks[c];
+        if (chunk == null) {
+            if (value == 0) {
+                return;
+            }
+            chunk = chunks[c] = new int[CHUNK_CELLS];
+            owned[c] = true;
+            allocated++;
+        }
+
+        final int i = ((y & CHUNK_MASK) << CHUNK_SHIFT) | (x & CHUNK_MASK);
+        final int old = chunk[i];
+        if (old == value) {
+            return;
+        }
+        if (value == 0 && used[c] == 1) {
+            // Clearing the last cell releases the chunk, no need to copy it
+            chunks[c] = null;
+            used[c] = 0;
+            allocated--;
+            return;
+        }
+
+        writableChunk(c)[i] = value;
+        if (old == 0) {
+            used[c]++;
+        } else if (value == 0) {
+            used[c]--;
+        }
+    }
+
+    protected TileRaster create(int width, int height) {
+        return new ChunkedTileRaster(width, height);
+    }
+
+    public TileRaster copy() {
+        // Both rasters now share all chunks
+        ChunkedTileRaster copy = new ChunkedTileRaster(width, height);
+        System.arraycopy(chunks, 0, copy.chunks, 0, chunks.length);
+        Arrays.fill(owned, false);
+        System.arraycopy(used, 0, copy.used, 0, used.length);
+        copy.allocated = allocated;
+        return copy;
+    }
+
+    public void copyTo(TileRaster target, int dx, int dy) {
+        final Rectangle overlap = new Rectangle(0, 0, width, height)
+                .intersection(new Rectangle(-dx, -dy,
+                        target.getWidth(), target.getHeight()));
+        if (overlap.isEmpty()) {
+            return;
+        }
+
+        final Rectangle chunkBounds = new Rectangle();
+        for (int cy = 0; cy < chunksY; cy++) {
+            for (int cx = 0; cx < chunksX; cx++) {
+                chunkBounds.setBounds(cx << CHUNK_SHIFT, cy << CHUNK_SHIFT,
+                        CHUNK_SIZE, CHUNK_SIZE);
+                Rectangle r = chunkBounds.intersection(overlap);
+                if (r.isEmpty()) {
+                    continue;
+                }
+
+                final int[] chunk = chunks[cy * chunksX + cx];
+                if (chunk == null) {
+                    target.fill(r.x + dx, r.y + dy, r.width, r.height, 0);
+                    continue;
+                }
+                for (int y = r.y; y < r.y + r.height; y++) {
+                    int i = ((y & CHUNK_MASK) << CHUNK_SHIFT) |
+                            (r.x & CHUNK_MASK);
+                    for (int x = r.x; x < r.x + r.width; x++, i++) {
+                        target.set(x + dx, y + dy, chunk[i]);
+                    }
+                }
+            }
+        }
+    }
+
+    public TileRaster rotate(int angle) {
+        switch (angle) {
+            case MapLayer.ROTATE_90:
+            case MapLayer.ROTATE_270:
+                return transform(height, width, angle);
+            case MapLayer.ROTATE_180:
+                return transform(width, height, angle);
+            default:
+                throw new IllegalArgumentException(
+                        "Unsupported rotation (" + angle + ")");
+        }
+    }
+
+    public void rotate180() {
+        replaceWith(transform(width, height, MapLayer.ROTATE_180));
+    }
+
+    public void mirror(int dir) {
+        if (dir != MapLayer.MIRROR_VERTICAL) {
+            dir = MapLayer.MIRROR_HORIZONTAL;
+        }
+        replaceWith(transform(width, height, dir));
+    }
+
+    /**
+     * Takes over the chunks of a raster of the same size.
+     */
+    private void replaceWith(ChunkedTileRaster other) {
+        System.arraycopy(other.chunks, 0, chunks, 0, chunks.length);
+        System.arraycopy(other.used, 0, used, 0, used.length);
+        System.arraycopy(other.owned, 0, owned, 0, owned.length);
+        allocated = other.allocated;
+    }
+
+    /**
+     * Creates a rotated or mirrored copy of this raster. Each chunk of the
+     * result is filled on its own from the few chunks of this raster it is
+     * made of, skipping chunks that would only be empty. Large rasters are
+     * split over several threads by rows of chunks.
+     *
+     * @param w  the width of the result
+     * @param h  the height of the result
+     * @param op a rotation angle or a mirror direction of {@link MapLayer}
+     */
+    private ChunkedTileRaster transform(int w, int h, int op) {
+        final ChunkedTileRaster result = new ChunkedTileRaster(w, h);
+        if (allocated == 0) {
+            return result;
+        }
+
+        // The source cell of result cell (x, y) is
+        // (ox + xx * x + xy * y, oy + yx * x + yy * y)
+        final int[] m;
+        switch (op) {
+            case MapLayer.ROTATE_90:
+                m = new int[] {0, 0, 1, height - 1, -1, 0}; break;
+            case MapLayer.ROTATE_180:
+                m = new int[] {width - 1, -1, 0, height - 1, 0, -1}; break;
+            case MapLayer.ROTATE_270:
+                m = new int[] {width - 1, 0, -1, 0, 1, 0}; break;
+            case MapLayer.MIRROR_VERTICAL:
+                m = new int[] {0, 1, 0, height - 1, 0, -1}; break;
+            default:
+                m = new int[] {width - 1, -1, 0, 0, 0, 1}; break;
+        }
+
+        final int grain = Math.max(1, (1 << 16) / (result.chunksX << CHUNK_SHIFT));
+        Workers.forEachBlock(result.chunksY, grain, new Workers.Block() {
+            public void run(int start, int end) {
+                for (int cy = start; cy < end; cy++) {
+                    for (int cx = 0; cx < result.chunksX; cx++) {
+                        transformChunk(result, cx, cy, m);
+                    }
+                }
+            }
+        });
+
+        for (int c = 0; c < result.chunks.length; c++) {
+            if (result.chunks[c] != null) {
+                result.allocated++;
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Fills one chunk of a transformed copy of this raster.
+     *
+     * @see #transform(int, int, int)
+     */
+    private void transformChunk(ChunkedTileRaster result, int cx, int cy,
+                                int[] m)
+    {
+        final int x0 = cx << CHUNK_SHIFT;
+        final int y0 = cy << CHUNK_SHIFT;
+        final int x1 = Math.min(result.width, x0 + CHUNK_SIZE);
+        final int y1 = Math.min(result.height, y0 + CHUNK_SIZE);
+        final int ox = m[0], xx = m[1], xy = m[2];
+        final int oy = m[3], yx = m[4], yy = m[5];
+
+        // Skip the chunk when the part of this raster it maps to is empty
+        final int sx0 = ox + xx * x0 + xy * y0;
+        final int sy0 = oy + yx * x0 + yy * y0;
+        final int sx1 = ox + xx * (x1 - 1) + xy * (y1 - 1);
+        final int sy1 = oy + yx * (x1 - 1) + yy * (y1 - 1);
+        if (isUnallocated(Math.min(sx0, sx1), Math.min(sy0, sy1),
+                Math.max(sx0, sx1), Math.max(sy0, sy1)))
+        {
+            return;
+        }
+
+        final int[] chunk = new int[CHUNK_CELLS];
+        final int step = yx * CHUNK_SIZE + xx;
+        int count = 0;
+
+        for (int y = y0; y < y1; y++) {
+            int sx = ox + xx * x0 + xy * y;
+            int sy = oy + yx * x0 + yy * y;
+            int i = (y - y0) << CHUNK_SHIFT;
+
+            // Walk the row in runs that read from a single source chunk
+            for (int x = x0; x < x1; ) {
+                int n = x1 - x;
+                if (xx != 0) {
+                    n = Math.min(n, xx > 0 ? CHUNK_SIZE - (sx & CHUNK_MASK)
+                                           : (sx & CHUNK_MASK) + 1);
+                } else {
+                    n = Math.min(n, yx > 0 ? CHUNK_SIZE - (sy & CHUNK_MASK)
+                                           : (sy & CHUNK_MASK) + 1);
+                }
+
+                final int[] source =
+                        chunks[(sy >> CHUNK_SHIFT) * chunksX + (sx >> CHUNK_SHIFT)];
+                if (source != null) {
+                    int si = ((sy & CHUNK_MASK) << CHUNK_SHIFT) |
+                            (sx & CHUNK_MASK);
+                    for (int k = i; k < i + n; k++, si += step) {
+                        final int value = source[si];
+                        if (value != 0) {
+                            chunk[k] = value;
+                            count++;
+                        }
+                    }
+                }
+
+                x += n;
+                i += n;
+                sx += xx * n;
+                sy += yx * n;
+            }
+        }
+
+        if (count > 0) {
+            final int c = cy * result.chunksX + cx;
+            result.chunks[c] = chunk;
+            result.used[c] = count;
+            result.owned[c] = true;
+        }
+    }
+
+    /**
+     * Returns whether no chunk overlapping the given cells is allocated.
+     * The coordinates are inclusive.
+     */
+    private boolean isUnallocated(int x0, int y0, int x1, int y1) {
+        for (int cy = y0 >> CHUNK_SHIFT; cy <= y1 >> CHUNK_SHIFT; cy++) {
+            for (int cx = x0 >> CHUNK_SHIFT; cx <= x1 >> CHUNK_SHIFT; cx++) {
+                if (chunks[cy * chunksX + cx] != null) {
+                    return false;
+                }
+            }
+        }
+        return true;
+    }
+
+    public void fill(int x, int y, int w, int h, int value) {
+        final int x1 = x + w, y1 = y + h;
+        for (int cy = y >> CHUNK_SHIFT; cy <= (y1 - 1) >> CHUNK_SHIFT; cy++) {
+            for (int cx = x >> CHUNK_SHIFT; cx <= (x1 - 1) >> CHUNK_SHIFT; cx++) {
+                final int c = cy * chunksX + cx;
+                if (chunks[c] == null && value == 0) {
+                    continue;
+                }
+                final int fx0 = Math.max(x, cx << CHUNK_SHIFT);
+                final int fy0 = Math.max(y, cy << CHUNK_SHIFT);
+                final int fx1 = Math.min(x1, (cx + 1) << CHUNK_SHIFT);
+                final int fy1 = Math.min(y1, (cy + 1) << CHUNK_SHIFT);
+                for (int fy = fy0; fy < fy1; fy++) {
+                    for (int fx = fx0; fx < fx1; fx++) {
+                        set(fx, fy, value);
+                    }
+                }
+            }
+        }
+    }
+
+    public void getCells(int x, int y, int w, int[] dest, int offset) {
+        final int rowOffset = (y & CHUNK_MASK) << CHUNK_SHIFT;
+        final int rowChunks = (y >> CHUNK_SHIFT) * chunksX;
+        final int x1 = x + w;
+
+        while (x < x1) {
+            final int n = Math.min(x1, (x | CHUNK_MASK) + 1) - x;
+            final int[] chunk = chunks[rowChunks + (x >> CHUNK_SHIFT)];
+            if (chunk == null) {
+                Arrays.fill(dest, offset, offset + n, 0);
+            } else {
+                System.arraycopy(chunk, rowOffset | (x & CHUNK_MASK),
+                        dest, offset, n);
+            }
+            x += n;
+            offset += n;
+        }
+    }
+
+    public void setCells(int x, int y, int w, int[] src, int offset) {
+        final int rowChunks = (y >> CHUNK_SHIFT) * chunksX;
+        final int x1 = x + w;
+
+        while (x < x1) {
+            final int n = Math.min(x1, (x | CHUNK_MASK) + 1) - x;
+            final int c = rowChunks + (x >> CHUNK_SHIFT);
+            if (chunks[c] != null || !isEmptyRun(src, offset, n)) {
+                setRun(c, ((y & CHUNK_MASK) << CHUNK_SHIFT) | (x & CHUNK_MASK),
+                        n, src, offset);
+            }
+            x += n;
+            offset += n;
+        }
+    }
+
+    /**
+     * Copies a run of values into a single row of the given chunk,
+     * allocating or releasing the chunk as needed.
+     */
+    private void setRun(int c, int index, int n, int[] src, int offset) {
+        if (chunks[c] == null) {
+            chunks[c] = new int[CHUNK_CELLS];
+            owned[c] = true;
+            allocated++;
+        }
+
+        final int[] chunk = writableChunk(c);
+        int count = used[c];
+        for (int i = 0; i < n; i++) {
+            final int old = chunk[index + i];
+            final int value = src[offset + i];
+            if (old == 0) {
+                if (value != 0) {
+                    count++;
+                }
+            } else if (value == 0) {
+                count--;
+            }
+            chunk[index + i] = value;
+        }
+
+        used[c] = count;
+        if (count == 0) {
+            chunks[c] = null;
+            allocated--;
+        }
+    }
+
+    private static boolean isEmptyRun(int[] values, int offset, int n) {
+        for (int i = offset; i < offset + n; i++) {
+            if (values[i] != 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    public List<Rectangle> getDataRegions() {
+        List<Rectangle> regions = new ArrayList<Rectangle>(allocated);
+        for (int c = 0; c < chunks.length; c++) {
+            if (chunks[c] != null) {
+                final int x0 = (c % chunksX) << CHUNK_SHIFT;
+                final int y0 = (c / chunksX) << CHUNK_SHIFT;
+                regions.add(new Rectangle(x0, y0,
+                        Math.min(CHUNK_SIZE, width - x0),
+                        Math.min(CHUNK_SIZE, height - y0)));
+            }
+        }
+        return regions;
+    }
+
+    public void countValues(int[] counts) {
+        for (int c = 0; c < chunks.length; c++) {
+            final int[] chunk = chunks[c];
+            if (chunk == null) {
+                counts[0] += chunkArea(c);
+                continue;
+            }
+            // Cells of edge chunks outside of the raster are always 0
+            counts[0] += chunkArea(c) - CHUNK_CELLS;
+            for (int i = 0; i < CHUNK_CELLS; i++) {
+                counts[chunk[i]]++;
+            }
+        }
+    }
+
+    public boolean isEmpty() {
+        return allocated == 0;
+    }
+
+    public boolean contains(int value) {
+        if (value == 0) {
+            if (allocated < chunks.length) {
+                return width > 0 && height > 0;
+            }
+            for (int c = 0; c < chunks.length; c++) {
+                if (used[c] < chunkArea(c)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        for (int c = 0; c < chunks.length; c++) {
+            final int[] chunk = chunks[c];
+            if (chunk != null) {
+                for (int i = 0; i < CHUNK_CELLS; i++) {
+                    if (chunk[i] == value) {
+                        return true;
+                    }
+                }
+            }
+        }
+        return false;
+    }
+
+    public Point locate(int value, boolean invert) {
+        final boolean emptyMatches = (value == 0) != invert;
+        if (!emptyMatches && allocated == 0) {
+            return null;
+        }
+
+        for (int y = 0; y < height; y++) {
+            final int rowOffset = (y & CHUNK_MASK) << CHUNK_SHIFT;
+            for (int cx = 0; cx < chunksX; cx++) {
+                final int[] chunk = chunks[(y >> CHUNK_SHIFT) * chunksX + cx];
+                final int x0 = cx << CHUNK_SHIFT;
+                if (chunk == null) {
+                    if (emptyMatches) {
+                        return new Point(x0, y);
+                    }
+                    continue;
+                }
+                final int x1 = Math.min(width, x0 + CHUNK_SIZE);
+                for (int x = x0; x < x1; x++) {
+                    if ((chunk[rowOffset | (x & CHUNK_MASK)] == value) != invert) {
+                        return new Point(x, y);
+                    }
+                }
+            }
+        }
+        return null;
+    }
+
+    public int replace(int find, int replacement) {
+        if (find == replacement) {
+            return 0;
+        }
+        if (find == 0) {
+            return super.replace(find, replacement);
+        }
+
+        int count = 0;
+        for (int c = 0; c < chunks.length; c++) {
+            int[] chunk = chunks[c];
+            if (chunk == null) {
+                continue;
+            }
+            int replaced = 0;
+            for (int i = 0; i < CHUNK_CELLS; i++) {
+                if (chunk[i] == find) {
+                    if (replaced == 0) {
+                        chunk = writableChunk(c);
+                    }
+                    chunk[i] = replacement;
+                    replaced++;
+                }
+            }
+            if (replacement == 0 && replaced > 0) {
+                used[c] -= replaced;
+                if (used[c] == 0) {
+                    chunks[c] = null;
+                    allocated--;
+                }
+            }
+            count += replaced;
+        }
+        return count;
+    }
+
+    private int chunkArea(int c) {
+        final int x0 = (c % chunksX) << CHUNK_SHIFT;
+        final int y0 = (c / chunksX) << CHUNK_SHIFT;
+        return Math.min(CHUNK_SIZE, width - x0) *
+                Math.min(CHUNK_SIZE, height - y0);
+    }
+}
@@ -0,0 +1,287 @@
+/*
+ *  Tiled Map Editor, (c) 2004-2008
+ *
+ *  This program is free software; you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation; either version 2 of the License, or
+ *  (at your option) any later version.
+ *
+ *  Adam Turk <aturk@biggeruniverse.com>
+ *  Bjorn Lindeijer <bjorn@lindeijer.nl>
+ */
+
+package tiled.core;
+
+import java.awt.Point;
+import java.util.Arrays;
+
+import tiled.util.Workers;
+
+/**
+ * A {@link TileRaster} keeping all cells in memory, as one <code>int</code>
+ * array per row.
+ * <p>
+ * Rows are copied on write: a copy of the raster shares the row arrays with
+ * the original, and a row is only duplicated once either raster modifies it.
+ * A new raster starts out with all rows sharing a single empty row.
+ */
+public class FlatTileRaster extends TileRaster
+{
+    // Side of the square blocks in which cells are transposed
+    private static final int BLOCK_SIZE = 64;
+
+    // Number of cells below which splitting work over threads does not pay
+    private static final int PARALLEL_CELLS = 1 << 18;
+
+    private final int[][] rows;
+    private final boolean[] owned;      // rows not shared with another raster
+
+    public FlatTileRaster(int width, int height) {
+        this(width, height, new int[height][]);
+        final int[] empty = new int[width];
+        Arrays.fill(rows, empty);
+    }
+
+    private FlatTileRaster(int width, int height, int[][] rows) {
+        super(width, height);
+        this.rows = rows;
+        owned = new boolean[height];
+    }
+
+    /**
+     * Returns the given row, first making a private copy of it when it may
+     * be shared with another raster.
+     */
+    private int[] writableRow(int y) {
+        if (!owned[y]) {
+            rows[y] = rows[y].clone();
+            owned[y] = true;
+        }
+        return rows[y];
+    }
+
+    public int get(int x, int y) {
+        return rows[y][x];
+    }
+
+    public void set(int x, int y, int value) {
+        if (rows[y][x] != value) {
+            writableRow(y)[x] = value;
+        }
+    }
+
+    protected TileRaster create(int width, int height) {
+        return new FlatTileRaster(width, height);
+    }
+
+    public TileRaster copy() {
+        // Both rasters now share all rows
+        Arrays.fill(owned, false);
+        return new FlatTileRaster(width, height, rows.clone());
+    }
+
+    public void copyTo(TileRaster target, int dx, int dy) {
+        if (!(target instanceof FlatTileRaster)) {
+            super.copyTo(target, dx, dy);
+            return;
+        }
+
+        final FlatTileRaster dest = (FlatTileRaster) target;
+        final int minX = Math.max(0, dx);
+        final int maxX = Math.min(target.width, width + dx);
+        final int maxY = Math.min(target.height, height + dy);
+
+        if (maxX <= minX) {
+            return;
+        }
+
+        // Rows that are copied as a whole can simply be shared
+        final boolean wholeRows = dx == 0 && width == target.width;
+
+        for (int y = Math.max(0, dy); y < maxY; y++) {
+            if (wholeRows) {
+                owned[y - dy] = false;
+                dest.rows[y] = rows[y - dy];
+                dest.owned[y] = false;
+            } else {
+                System.arraycopy(rows[y - dy], minX - dx,
+                        dest.writableRow(y), minX, maxX - minX);
+            }
+        }
+    }
+
+    public TileRaster rotate(final int angle) {
+        final int[][] dest;
+
+        switch (angle) {
+            case MapLayer.ROTATE_90:
+            case MapLayer.ROTATE_270:
+                dest = new int[width][];
+                Workers.forEachBlock(width, grain(height), new Workers.Block() {
+                    public void run(int start, int end) {
+                        transpose(dest, start, end,
+                                angle == MapLayer.ROTATE_90);
+                    }
+                });
+                break;
+            case MapLayer.ROTATE_180:
+                dest = new int[height][];
+                for (int y = 0; y < height; y++) {
+                    final int[] row = rows[y];
+                    final int[] destRow = dest[height - 1 - y] = new int[width];
+                    for (int x = 0, d = width - 1; x < width; x++, d--) {
+                        destRow[d] = row[x];
+                    }
+                }
+                break;
+            default:
+                throw new IllegalArgumentException(
+                        "Unsupported rotation (" + angle + ")");
+        }
+
+        final boolean swap = angle != MapLayer.ROTATE_180;
+        FlatTileRaster rotated = new FlatTileRaster(swap ? height : width,
+                swap ? width : height, dest);
+        Arrays.fill(rotated.owned, true);
+        return rotated;
+    }
+
+    /**
+     * Fills the rows of a raster rotated by 90 or 270 degrees that come from
+     * the columns <code>start</code> to <code>end</code> of this raster. The
+     * cells are moved in square blocks, so that both the rows being read
+     * and the rows being written stay in the cache.
+     */
+    private void transpose(int[][] dest, int start, int end,
+                           boolean clockwise)
+    {
+        for (int x = start; x < end; x++) {
+            dest[clockwise ? x : width - 1 - x] = new int[height];
+        }
+
+        for (int x0 = start; x0 < end; x0 += BLOCK_SIZE) {
+            final int x1 = Math.min(end, x0 + BLOCK_SIZE);
+            for (int y0 = 0; y0 < height; y0 += BLOCK_SIZE) {
+                final int y1 = Math.min(height, y0 + BLOCK_SIZE);
+                for (int y = y0; y < y1; y++) {
+                    final int[] row = rows[y];
+                    if (clockwise) {
+                        // (x, y) -> (height - 1 - y, x)
+                        final int d = height - 1 - y;
+                        for (int x = x0; x < x1; x++) {
+                            dest[x][d] = row[x];
+                        }
+                    } else {
+                        // (x, y) -> (y, width - 1 - x)
+                        for (int x = x0; x < x1; x++) {
+                            dest[width - 1 - x][y] = row[x];
+                        }
+                    }
+                }
+            }
+        }
+    }
+
+    public void mirror(int dir) {
+        if (dir == MapLayer.MIRROR_VERTICAL) {
+            // Swapping the rows keeps their ownership intact
+            for (int top = 0, bottom = height - 1; top < bottom;
+                 top++, bottom--)
+            {
+                final int[] row = rows[top];
+                rows[top] = rows[bottom];
+                rows[bottom] = row;
+                final boolean o = owned[top];
+                owned[top] = owned[bottom];
+                owned[bottom] = o;
+            }
+        } else {
+            Workers.forEachBlock(height, grain(width), new Workers.Block() {
+                public void run(int start, int end) {
+                    for (int y = start; y < end; y++) {
+                        final int[] row = writableRow(y);
+                        for (int l = 0, r = width - 1; l < r; l++, r--) {
+                            final int v = row[l];
+                            row[l] = row[r];
+                            row[r] = v;
+                        }
+                    }
+                }
+            });
+        }
+    }
+
+    /**
+     * Returns the number of rows of the given length that are worth
+     * handing to a separate thread.
+     */
+    private static int grain(int rowLength) {
+        return Math.max(BLOCK_SIZE, PARALLEL_CELLS / Math.max(1, rowLength));
+    }
+
+    public void fill(int x, int y, int w, int h, int value) {
+        for (int fy = y; fy < y + h; fy++) {
+            Arrays.fill(writableRow(fy), x, x + w, value);
+        }
+    }
+
+    public void getCells(int x, int y, int w, int[] dest, int offset) {
+        System.arraycopy(rows[y], x, dest, offset, w);
+    }
+
+    public void setCells(int x, int y, int w, int[] src, int offset) {
+        final int[] row = rows[y];
+        for (int i = 0; i < w; i++) {
+            if (row[x + i] != src[offset + i]) {
+                // Only copy a shared row when something actually changes
+                System.arraycopy(src, offset + i, writableRow(y), x + i,
+                        w - i);
+                return;
+            }
+        }
+    }
+
+    public void countValues(int[] counts) {
+        for (int y = 0; y < height; y++) {
+            final int[] row = rows[y];
+            for (int x = 0; x < width; x++) {
+                counts[row[x]]++;
+            }
+        }
+    }
+
+    public Point locate(int value, boolean invert) {
+        for (int y = 0; y < height; y++) {
+            final int[] row = rows[y];
+            for (int x = 0; x < width; x++) {
+                if ((row[x] == value) != invert) {
+                    return new Point(x, y);
+                }
+            }
+        }
+        return null;
+    }
+
+    public int replace(int find, int replacement) {
+        if (find == replacement) {
+            return 0;
+        }
+
+        int count = 0;
+        for (int y = 0; y < height; y++) {
+            int[] row = rows[y];
+            boolean writable = false;
+            for (int x = 0; x < width; x++) {
+                if (row[x] == find) {
+                    if (!writable) {
+                        row = writableRow(y);
+                        writable = true;
+                    }
+                    row[x] = replacement;
+                    count++;
+                }
+            }
+        }
+        return count;
+    }
+}
@@ -0,0 +1,153 @@
+/*
+ *  Tiled Map Editor, (c) 2004-2008
+ *
+ *  This program is free software; you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation; either version 2 of the License, or
+ *  (at your option) any later version.
+ *
+ *  Adam Turk <aturk@biggeruniverse.com>
+ *  Bjorn Lindeijer <bjorn@lindeijer.nl>
+ */
+
+package tiled.core;
+
+import java.awt.Dimension;
+import java.awt.Image;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Iterator;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReader;
+import javax.imageio.stream.ImageInputStream;
+
+/**
+ * An image that is only decoded when it is first needed. Tilesets hold their
+ * images as lazy images while they are loaded, so that a map can be loaded
+ * and saved again without decoding any of its images.
+ * <p>
+ * Subclasses decode the image in {@link #load()}, and should report the size
+ * of the image without decoding it when they can.
+ */
+public abstract class LazyImage
+{
+    private Image image;
+    private boolean loaded;
+
+    /**
+     * Returns the image, decoding it when this is the first time it is
+     * needed. Failing to decode the image is reported once, after which
+     * <code>null</code> is returned.
+     *
+     * @return the decoded image, or <code>null</code> when it could not be
+     *         decoded
+     */
+    public synchronized Image getImage() {
+        if (!loaded) {
+            loaded = true;
+            try {
+                image = load();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+        return image;
+    }
+
+    /**
+     * @return whether the image has been decoded already
+     */
+    public synchronized boolean isLoaded() {
+        return loaded;
+    }
+
+    /**
+     * Returns the size of the image. The default implementation decodes the
+     * image to find out.
+     *
+     * @return the size of the image, or an empty size when it is not known
+     */
+    public Dimension getSize() {
+        final Image img = getImage();
+        if (img == null) {
+            return new Dimension(0, 0);
+        }
+        return new Dimension(img.getWidth(null), img.getHeight(null));
+    }
+
+    /**
+     * Returns the image encoded as PNG, when the image was read from PNG data
+     * and that data is still available. Writers can then store the image
+     * again without decoding and encoding it.
+     *
+     * @return the PNG data, or <code>null</code> when it is not available
+     * @throws IOException when the data could not be read
+     */
+    public byte[] getPNGData() throws IOException {
+        return null;
+    }
+
+    /**
+     * Decodes the image.
+     *
+     * @return the decoded image
+     * @throws IOException when the image could not be decoded
+     */
+    protected abstract Image load() throws IOException;
+
+    /**
+     * Reads the size of an image from the header of the given encoded image,
+     * without decoding the image itself.
+     *
+     * @param in a stream with the encoded image, which is closed afterwards
+     * @return the size of the image, or <code>null</code> when it could not
+     *         be determined
+     * @throws IOException when reading from the stream fails
+     */
+    public static Dimension readSize(InputStream in) throws IOException {
+        final ImageInputStream stream = ImageIO.createImageInputStream(in);
+        try {
+            if (stream == null) {
+                return null;
+            }
+            final Iterator<ImageReader> readers = ImageIO.getImageReaders(stream);
+            if (!readers.hasNext()) {
+                return null;
+            }
+            final ImageReader reader = readers.next();
+            try {
+                reader.setInput(stream, true, true);
+                return new Dimension(reader.getWidth(0), reader.getHeight(0));
+            } finally {
+                reader.dispose();
+            }
+        } finally {
+            if (stream != null) {
+                stream.close();
+            }
+            in.close();
+        }
+    }
+
+    /**
+     * Reads the size of a PNG image from its header.
+     *
+     * @param png the PNG data
+     * @return the size of the image, or <code>null</code> when the data does
+     *         not start with a PNG header
+     */
+    public static Dimension readPNGSize(byte[] png) {
+        // Signature, followed by the length and type of the IHDR chunk
+        if (png.length < 24 || png[0] != (byte) 0x89 || png[1] != 'P' ||
+                png[2] != 'N' || png[3] != 'G' || png[12] != 'I' ||
+                png[13] != 'H' || png[14] != 'D' || png[15] != 'R') {
+            return null;
+        }
+        return new Dimension(readInt(png, 16), readInt(png, 20));
+    }
+
+    private static int readInt(byte[] data, int offset) {
+        return (data[offset] & 0xff) << 24 | (data[offset + 1] & 0xff) << 16 |
+                (data[offset + 2] & 0xff) << 8 | (data[offset + 3] & 0xff);
+    }
+}
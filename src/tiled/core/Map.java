@@ -12,9 +12,12 @@
 
 package tiled.core;
 
+import java.awt.Rectangle;
 import java.util.*;
+import java.util.concurrent.CopyOnWriteArrayList;
 
 import tiled.mapeditor.Resources;
+import tiled.util.PropertyMap;
 
 /**
  * The Map class is the focal point of the <code>tiled.core</code> package.
@@ -23,7 +26,8 @@ import tiled.mapeditor.Resources;
  *
  * @version $Id$
  */
-public class Map extends MultilayerPlane implements MapLayerChangeListener
+public class Map extends MultilayerPlane implements MapLayerChangeListener,
+        TilesetChangeListener
 {
     /** Orthogonal. */
     public static final int MDO_ORTHO   = 1;
@@ -36,12 +40,21 @@ public class Map extends MultilayerPlane implements MapLayerChangeListener
 
     private Vector<MapLayer> specialLayers;
     private Vector<TileSet> tilesets;
+    private TileGidIndex gidIndex;      // null when out of date
     private LinkedList<MapObject> objects;
 
     private int tileWidth, tileHeight;
     private int orientation = MDO_ORTHO;
-    private final List<MapChangeListener> mapChangeListeners = new LinkedList<MapChangeListener>();
-    private final List<MapParallaxChangeListener> mapParallaxChangeListeners = new LinkedList<MapParallaxChangeListener>();
+    private final List<MapChangeListener> mapChangeListeners = new CopyOnWriteArrayList<MapChangeListener>();
+    private final List<MapParallaxChangeListener> mapParallaxChangeListeners = new CopyOnWriteArrayList<MapParallaxChangeListener>();
+
+    // Changes collected while an update is in progress, see beginUpdate()
+    private int updateDepth;
+    private boolean mapChangePending;
+    private Set<MapLayer> changedLayers;
+    private Set<TileSet> changedTilesets;
+    private LinkedHashMap<MapLayer, Rectangle> changedRegions;
+    private LinkedHashMap<MapLayer, MapLayerChangeEvent> renames;
     private Properties properties;
     private String filename;
     private float eyeDistance = 100;
@@ -55,7 +68,7 @@ public class Map extends MultilayerPlane implements MapLayerChangeListener
     public Map(int width, int height) {
         super(width, height);
 
-        properties = new Properties();
+        properties = new PropertyMap();
         tilesets = new Vector<TileSet>();
         specialLayers = new Vector<MapLayer>();
         objects = new LinkedList<MapObject>();
@@ -90,21 +103,110 @@ public class Map extends MultilayerPlane implements MapLayerChangeListener
     
         
     /**
-     * Notifies all registered map change listeners about a change.
+     * Starts an update of the map. Until the matching call to
+     * {@link #endUpdate()}, general change notifications are held back and
+     * changes to the tiles or names of layers are combined per layer. They
+     * are published when the outermost update ends, followed by a single
+     * {@link MapChangedEvent} describing all layers, tilesets and regions
+     * that were touched. Updates may be nested.
+     * <p>
+     * The addition, removal and reordering of layers and tilesets is still
+     * reported right away, since listeners keep track of these by index.
+     */
+    public void beginUpdate() {
+        if (updateDepth++ == 0) {
+            changedLayers = new LinkedHashSet<MapLayer>();
+            changedTilesets = new LinkedHashSet<TileSet>();
+            changedRegions = new LinkedHashMap<MapLayer, Rectangle>();
+            renames = new LinkedHashMap<MapLayer, MapLayerChangeEvent>();
+        }
+    }
+
+    /**
+     * Ends an update started with {@link #beginUpdate()}. When this ends the
+     * outermost update, the changes collected since it began are published.
+     */
+    public void endUpdate() {
+        if (updateDepth == 0) {
+            throw new IllegalStateException("No update in progress");
+        }
+        if (--updateDepth > 0) {
+            return;
+        }
+
+        final Set<MapLayer> layers = changedLayers;
+        final Set<TileSet> sets = changedTilesets;
+        final LinkedHashMap<MapLayer, Rectangle> regions = changedRegions;
+        final LinkedHashMap<MapLayer, MapLayerChangeEvent> names = renames;
+        final boolean pending = mapChangePending;
+        changedLayers = null;
+        changedTilesets = null;
+        changedRegions = null;
+        renames = null;
+        mapChangePending = false;
+
+        // Layers that were removed again during the update are skipped
+        Rectangle region = null;
+        for (java.util.Map.Entry<MapLayer, Rectangle> entry : regions.entrySet()) {
+            final Rectangle r = entry.getValue();
+            region = region == null ? new Rectangle(r) : region.union(r);
+            final int index = findLayerIndex(entry.getKey());
+            if (index >= 0) {
+                fireLayerChanged(index,
+                        MapLayerChangeEvent.createTilesChangeEvent(r));
+            }
+        }
+        for (java.util.Map.Entry<MapLayer, MapLayerChangeEvent> entry : names.entrySet()) {
+            final int index = findLayerIndex(entry.getKey());
+            if (index >= 0) {
+                fireLayerChanged(index, entry.getValue());
+            }
+        }
+
+        if (pending) {
+            fireMapChanged(new MapChangedEvent(this, layers, sets, region));
+        }
+    }
+
+    /**
+     * Notifies all registered map change listeners about a change. While an
+     * update is in progress, the notification is postponed until it ends.
      */
     protected void fireMapChanged() {
-        MapChangedEvent event = null;
-        // clone mapChangeListeners first, because otherwise we'll get
-        // concurrent modification exceptions if a listener calls something
-        // that add or removes listeners
-        Iterable<MapChangeListener> mapChangeListenersClone = new Vector<MapChangeListener>(mapChangeListeners);
-
-        for(MapChangeListener l : mapChangeListenersClone) {
-            if (event == null)
-                event = new MapChangedEvent(this);
+        if (updateDepth > 0) {
+            mapChangePending = true;
+        } else if (!mapChangeListeners.isEmpty()) {
+            fireMapChanged(new MapChangedEvent(this));
+        }
+    }
+
+    private void fireMapChanged(MapChangedEvent event) {
+        // The listeners are copied on write, so a listener may add or remove
+        // listeners without disturbing this loop
+        for (MapChangeListener l : mapChangeListeners) {
             l.mapChanged(event);
         }
     }
+
+    /**
+     * Records a layer as touched by the update in progress, if any.
+     */
+    private void layerTouched(MapLayer layer) {
+        if (updateDepth > 0) {
+            changedLayers.add(layer);
+            mapChangePending = true;
+        }
+    }
+
+    /**
+     * Records a tileset as touched by the update in progress, if any.
+     */
+    private void tilesetTouched(TileSet tileset) {
+        if (updateDepth > 0) {
+            changedTilesets.add(tileset);
+            mapChangePending = true;
+        }
+    }
     
     protected void fireLayerRemoved(int layerIndex){
         MapChangedEvent e = new MapChangedEvent(this, layerIndex); 
@@ -196,6 +298,7 @@ public class Map extends MultilayerPlane implements MapLayerChangeListener
         layer.setMap(this);
         super.addLayer(layer);
         layer.addMapLayerChangeListener(this);
+        layerTouched(layer);
         fireMapChanged();
         fireLayerAdded(getLayerVector().indexOf(layer));
         return layer;
@@ -218,13 +321,17 @@ public class Map extends MultilayerPlane implements MapLayerChangeListener
     public void insertLayer(int index, MapLayer layer) {
         super.insertLayer(index, layer);
         layer.addMapLayerChangeListener(this);
+        layerTouched(layer);
         fireMapChanged();
         fireLayerAdded(index);
     }
 
     public void setLayer(int index, MapLayer layer) {
         layer.setMap(this);
+        final MapLayer old = getLayer(index);
         super.setLayer(index, layer);
+        layerTouched(old);
+        layerTouched(layer);
         fireMapChanged();
         fireLayerRemoved(index);
         fireLayerAdded(index);
@@ -270,6 +377,9 @@ public class Map extends MultilayerPlane implements MapLayerChangeListener
         }
 
         tilesets.add(tileset);
+        tileset.addTilesetChangeListener(this);
+        gidIndex = null;
+        tilesetTouched(tileset);
         fireTilesetAdded(tileset);
     }
 
@@ -288,21 +398,195 @@ public class Map extends MultilayerPlane implements MapLayerChangeListener
         if (tilesetIndex == -1)
             return;
 
-        // Go through the map and remove any instances of the tiles in the set
-        Iterator<Object> tileIterator = tileset.iterator();
-        while (tileIterator.hasNext()) {
-            Tile tile = (Tile)tileIterator.next();
-            Iterator<MapLayer> layerIterator = getLayers();
-            while (layerIterator.hasNext()) {
-                MapLayer ml = (MapLayer) layerIterator.next();
-                if (ml instanceof TileLayer) {
-                    ((TileLayer) ml).removeTile(tile);
+        beginUpdate();
+        try {
+            // Go through the map and remove any instances of the tiles in
+            // the set
+            Iterator tileIterator = tileset.iterator();
+            while (tileIterator.hasNext()) {
+                Tile tile = (Tile)tileIterator.next();
+                Iterator<MapLayer> layerIterator = getLayers();
+                while (layerIterator.hasNext()) {
+                    MapLayer ml = (MapLayer) layerIterator.next();
+                    if (ml instanceof TileLayer) {
+                        ((TileLayer) ml).removeTile(tile);
+                    }
+                }
+            }
+
+            tilesets.remove(tileset);
+            tileset.removeTilesetChangeListener(this);
+            gidIndex = null;
+            tilesetTouched(tileset);
+            fireTilesetRemoved(tilesetIndex);
+        } finally {
+            endUpdate();
+        }
+    }
+
+    /**
+     * Makes images that occur more than once in the tilesets of the map
+     * share a single image, so that their pixels are kept in memory only
+     * once. This decodes all images of the tilesets to compare them.
+     *
+     * @return the number of images that are now shared
+     * @see TileSet#shareImages(TileSet)
+     */
+    public int shareTilesetImages() {
+        int shared = 0;
+        for (int i = 0; i < tilesets.size(); i++) {
+            final TileSet tileset = tilesets.get(i);
+            for (int j = 0; j <= i; j++) {
+                shared += tileset.shareImages(tilesets.get(j));
+            }
+        }
+        return shared;
+    }
+
+    /**
+     * Replaces each tile that is the same as another tile of its tileset by
+     * that other tile, in all layers of the map. Duplicate tiles are removed
+     * from tilesets that are not cut from a tileset image, together with the
+     * images no longer used by any tile. Tiles used in animations are left
+     * alone.
+     *
+     * @return the number of duplicate tiles that were replaced
+     * @throws LayerLockedException when a duplicate tile is used on a
+     *         locked layer
+     * @see #findDuplicateTiles()
+     */
+    public int mergeDuplicateTiles() throws LayerLockedException {
+        return mergeDuplicateTiles(findDuplicateTiles());
+    }
+
+    /**
+     * Finds the tiles that are the same as another tile of their tileset,
+     * leaving out tiles used in animations.
+     *
+     * @return a map from each duplicate tile to the tile it is the same as
+     * @see TileSet#findDuplicateTiles()
+     */
+    public java.util.Map<Tile, Tile> findDuplicateTiles() {
+        // Tiles used as animation frames are referred to by the animations
+        final Set<Tile> animationFrames = new HashSet<Tile>();
+        for (TileSet tileset : tilesets) {
+            Iterator<?> tileIterator = tileset.iterator();
+            while (tileIterator.hasNext()) {
+                Object tile = tileIterator.next();
+                if (tile instanceof AnimatedTile) {
+                    collectFrames(((AnimatedTile) tile).getSprite(),
+                            animationFrames);
                 }
             }
         }
 
-        tilesets.remove(tileset);
-        fireTilesetRemoved(tilesetIndex);
+        final java.util.Map<Tile, Tile> duplicates =
+                new LinkedHashMap<Tile, Tile>();
+        for (TileSet tileset : tilesets) {
+            for (java.util.Map.Entry<Tile, Tile> entry :
+                    tileset.findDuplicateTiles().entrySet()) {
+                if (!animationFrames.contains(entry.getKey())) {
+                    duplicates.put(entry.getKey(), entry.getValue());
+                }
+            }
+        }
+        return duplicates;
+    }
+
+    /**
+     * Replaces the given duplicate tiles by the tiles they are the same as,
+     * in all layers of the map. The duplicate tiles are removed from
+     * tilesets that are not cut from a tileset image, together with the
+     * images no longer used by any tile.
+     *
+     * @param duplicates a map from each duplicate tile to the tile to
+     *                   replace it with, as found by
+     *                   {@link #findDuplicateTiles()}
+     * @return the number of duplicate tiles that were replaced
+     * @throws LayerLockedException when a duplicate tile is used on a
+     *         locked layer
+     */
+    public int mergeDuplicateTiles(java.util.Map<Tile, Tile> duplicates)
+            throws LayerLockedException {
+        if (duplicates.isEmpty()) {
+            return 0;
+        }
+
+        for (MapLayer layer : getLayerVector()) {
+            if (layer instanceof TileLayer && layer.getLocked()) {
+                for (Tile duplicate : duplicates.keySet()) {
+                    if (((TileLayer) layer).isUsed(duplicate)) {
+                        throw new LayerLockedException(
+                                "Attempted to merge tiles used on a " +
+                                "locked layer.");
+                    }
+                }
+            }
+        }
+
+        beginUpdate();
+        try {
+            for (MapLayer layer : getLayerVector()) {
+                if (layer instanceof TileLayer) {
+                    for (java.util.Map.Entry<Tile, Tile> entry :
+                            duplicates.entrySet()) {
+                        ((TileLayer) layer).replaceTile(
+                                entry.getKey(), entry.getValue());
+                    }
+                }
+            }
+
+            for (TileSet tileset : tilesets) {
+                if (!tileset.isSetFromImage()) {
+                    removeDuplicates(tileset, duplicates.keySet());
+                }
+            }
+        } finally {
+            endUpdate();
+        }
+        return duplicates.size();
+    }
+
+    private static void collectFrames(Sprite sprite, Set<Tile> frames) {
+        if (sprite == null) {
+            return;
+        }
+        for (int k = 0; k < sprite.getTotalKeys(); k++) {
+            Sprite.KeyFrame key = sprite.getKey(k);
+            for (int f = 0; f < key.getTotalFrames(); f++) {
+                frames.add(key.getFrame(f));
+            }
+        }
+    }
+
+    /**
+     * Removes the given tiles from the tileset, and those of their images
+     * that are no longer used by any of its tiles. Images that were already
+     * unused are left alone.
+     */
+    private static void removeDuplicates(TileSet tileset,
+                                         Set<Tile> duplicates) {
+        Set<Integer> removedImages = new HashSet<Integer>();
+        for (int id = 0; id <= tileset.getMaxTileId(); id++) {
+            Tile tile = tileset.getTile(id);
+            if (tile != null && duplicates.contains(tile)) {
+                tileset.removeTile(id);
+                removedImages.add(tile.getImageId());
+            }
+        }
+
+        Iterator<?> tileIterator = tileset.iterator();
+        while (tileIterator.hasNext() && !removedImages.isEmpty()) {
+            Tile tile = (Tile) tileIterator.next();
+            if (tile != null) {
+                removedImages.remove(tile.getImageId());
+            }
+        }
+        for (Integer id : removedImages) {
+            if (tileset.containsImage(id.intValue())) {
+                tileset.removeImage(id.intValue());
+            }
+        }
     }
 
     public void addObject(MapObject o) {
@@ -332,6 +616,7 @@ public class Map extends MultilayerPlane implements MapLayerChangeListener
     public MapLayer removeLayer(int index) {
         MapLayer layer = super.removeLayer(index);
         layer.removeMapLayerChangeListener(this);
+        layerTouched(layer);
         fireMapChanged();
         fireLayerRemoved(index);
         return layer;
@@ -354,10 +639,15 @@ public class Map extends MultilayerPlane implements MapLayerChangeListener
      * @see MultilayerPlane#removeAllLayers
      */
     public void removeAllLayers() {
-        while(getTotalLayers() > 0){
-            getLayer(0).removeMapLayerChangeListener(this);
-            removeLayer(0);
-            fireLayerRemoved(0);
+        beginUpdate();
+        try {
+            while(getTotalLayers() > 0){
+                getLayer(0).removeMapLayerChangeListener(this);
+                removeLayer(0);
+                fireLayerRemoved(0);
+            }
+        } finally {
+            endUpdate();
         }
     }
 
@@ -399,8 +689,13 @@ public class Map extends MultilayerPlane implements MapLayerChangeListener
      * @see MultilayerPlane#mergeLayerDown
      */
     public void mergeLayerDown(int index) {
-        super.mergeLayerDown(index);
-        fireMapChanged();
+        beginUpdate();
+        try {
+            super.mergeLayerDown(index);
+            fireMapChanged();
+        } finally {
+            endUpdate();
+        }
     }
 
     public void setFilename(String filename) {
@@ -433,8 +728,13 @@ public class Map extends MultilayerPlane implements MapLayerChangeListener
      * @see MultilayerPlane#resize
      */
     public void resize(int width, int height, int dx, int dy) {
-        super.resize(width, height, dx, dy);
-        fireMapChanged();
+        beginUpdate();
+        try {
+            super.resize(width, height, dx, dy);
+            fireMapChanged();
+        } finally {
+            endUpdate();
+        }
     }
 
     public void setOrientation(int orientation) {
@@ -468,13 +768,40 @@ public class Map extends MultilayerPlane implements MapLayerChangeListener
      *         or <code>null</code> when no such tileset exists
      */
     public TileSet findTileSetForTileGID(int gid) {
-        TileSet has = null;
-        for (TileSet tileset : tilesets) {
-            if (tileset.getFirstGid() <= gid) {
-                has = tileset;
-            }
+        return getGidIndex().findTileSet(gid);
+    }
+
+    /**
+     * Get the tile with the given global tile id, only to be used when
+     * loading a map. The lookup table used for this is built on the first
+     * call and kept until the tilesets of the map change, so resolving all
+     * the cells of a map takes constant time per cell.
+     *
+     * @param gid a global tile id
+     * @return the tile with the given global tile id, or <code>null</code>
+     *         when no such tile exists
+     */
+    public Tile getTileForTileGID(int gid) {
+        return getGidIndex().getTile(gid);
+    }
+
+    private TileGidIndex getGidIndex() {
+        if (gidIndex == null) {
+            gidIndex = new TileGidIndex(tilesets);
         }
-        return has;
+        return gidIndex;
+    }
+
+    public void tilesetChanged(TilesetChangedEvent event) {
+        // Tiles were added or removed, or the first global id changed
+        gidIndex = null;
+        tilesetTouched(event.getTileset());
+    }
+
+    public void nameChanged(TilesetChangedEvent event, String oldName, String newName) {
+    }
+
+    public void sourceChanged(TilesetChangedEvent event, String oldSource, String newSource) {
     }
 
     /**
@@ -545,6 +872,47 @@ public class Map extends MultilayerPlane implements MapLayerChangeListener
         return maxHeight;
     }
 
+    /**
+     * Returns the number of cells in the tile layers of this map that are set
+     * to the given tile. The tile layers keep track of their own usage
+     * counts, so this only takes time proportional to the number of layers.
+     *
+     * @param tile the tile to count
+     * @return the number of cells using the tile
+     * @see TileLayer#getUsageCount(Tile)
+     */
+    public int getUsageCount(Tile tile) {
+        int count = 0;
+        Iterator<MapLayer> itr = getLayers();
+        while (itr.hasNext()) {
+            MapLayer layer = itr.next();
+            if (layer instanceof TileLayer) {
+                count += ((TileLayer) layer).getUsageCount(tile);
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Returns the number of tiles of the given tileset that are used at
+     * least once in the tile layers of this map.
+     *
+     * @param tileset the tileset to check
+     * @return the number of used tiles
+     */
+    public int getUsedTileCount(TileSet tileset) {
+        int used = 0;
+        Iterator tileIterator = tileset.iterator();
+
+        while (tileIterator.hasNext()) {
+            if (getUsageCount((Tile) tileIterator.next()) > 0) {
+                used++;
+            }
+        }
+
+        return used;
+    }
+
     /**
      * Swaps the tile sets at the given indices.
      */
@@ -553,6 +921,7 @@ public class Map extends MultilayerPlane implements MapLayerChangeListener
         TileSet set = tilesets.get(index0);
         tilesets.set(index0, tilesets.get(index1));
         tilesets.set(index1, set);
+        gidIndex = null;
 
         if (index0 > index1) {
             int temp = index1;
@@ -639,8 +1008,26 @@ public class Map extends MultilayerPlane implements MapLayerChangeListener
         }
     }
 
-    public void layerChanged(MapLayer layerIndex, MapLayerChangeEvent e) {
-        fireLayerChanged(findLayerIndex(layerIndex), e);
+    public void layerChanged(MapLayer layer, MapLayerChangeEvent e) {
+        if (updateDepth == 0) {
+            fireLayerChanged(findLayerIndex(layer), e);
+            return;
+        }
+
+        // Combine the changes to the layer until the update ends
+        changedLayers.add(layer);
+        if (e.getChangeType() == MapLayerChangeEvent.CHANGETYPE_TILES) {
+            final Rectangle region = changedRegions.get(layer);
+            changedRegions.put(layer, region == null ?
+                    new Rectangle(e.getRegion()) : region.union(e.getRegion()));
+        } else if (e.getChangeType() == MapLayerChangeEvent.CHANGETYPE_NAME) {
+            final MapLayerChangeEvent first = renames.get(layer);
+            renames.put(layer, first == null ? e :
+                    MapLayerChangeEvent.createNameChangeEvent(
+                            first.getOldName(), e.getNewName()));
+        } else {
+            fireLayerChanged(findLayerIndex(layer), e);
+        }
     }
     
 }
@@ -47,7 +47,8 @@ public interface MapChangeListener extends EventListener
     /// sequence after remove(N)
     public void layerMoved(MapChangedEvent e);
     
-    /// This event is fired every time the name of a layer is changed.
+    /// This event is fired every time the name or the tiles of a layer are
+    /// changed. layerChangeEvent.getChangeType() tells which of the two.
     public void layerChanged(MapChangedEvent e, MapLayerChangeEvent layerChangeEvent);
     
     public void tilesetAdded(MapChangedEvent e, TileSet tileset);
@@ -12,7 +12,10 @@
 
 package tiled.core;
 
+import java.awt.Rectangle;
+import java.util.Collections;
 import java.util.EventObject;
+import java.util.Set;
 
 /**
  * @version $Id$
@@ -21,6 +24,9 @@ public class MapChangedEvent extends EventObject
 {
     private int layerIndex;
     private int oldLayerIndex = -1;
+    private Set<MapLayer> changedLayers;
+    private Set<TileSet> changedTilesets;
+    private Rectangle changedRegion;
     
     public MapChangedEvent(Map map) {
         this(map, -1);
@@ -37,6 +43,19 @@ public class MapChangedEvent extends EventObject
         this.oldLayerIndex = oldLayerIndex;
     }
     
+    /**
+     * Creates the event published at the end of an update of the map.
+     *
+     * @see Map#beginUpdate()
+     */
+    MapChangedEvent(Map map, Set<MapLayer> layers, Set<TileSet> tilesets,
+                    Rectangle region) {
+        this(map, -1);
+        changedLayers = Collections.unmodifiableSet(layers);
+        changedTilesets = Collections.unmodifiableSet(tilesets);
+        changedRegion = region;
+    }
+
     public int getLayerIndex(){
         return layerIndex;
     }
@@ -48,4 +67,39 @@ public class MapChangedEvent extends EventObject
     public Map getMap() {
         return (Map) getSource();
     }
+
+    /**
+     * Returns the layers that were added, removed or modified during an
+     * update of the map.
+     *
+     * @return the touched layers, or <code>null</code> when this event was
+     *         not published at the end of an update
+     * @see Map#beginUpdate()
+     */
+    public Set<MapLayer> getChangedLayers() {
+        return changedLayers;
+    }
+
+    /**
+     * Returns the tilesets that were added, removed or modified during an
+     * update of the map.
+     *
+     * @return the touched tilesets, or <code>null</code> when this event was
+     *         not published at the end of an update
+     * @see Map#beginUpdate()
+     */
+    public Set<TileSet> getChangedTilesets() {
+        return changedTilesets;
+    }
+
+    /**
+     * Returns the smallest rectangle containing all tiles that were changed
+     * during an update of the map, in tile coordinates.
+     *
+     * @return the changed region, or <code>null</code> when no tiles were
+     *         changed or this event was not published at the end of an update
+     */
+    public Rectangle getChangedRegion() {
+        return changedRegion == null ? null : new Rectangle(changedRegion);
+    }
 }
@@ -17,6 +17,8 @@ import java.awt.geom.Area;
 import java.util.Properties;
 import java.util.Vector;
 
+import tiled.util.PropertyMap;
+
 /**
  * A layer of a map.
  *
@@ -45,7 +47,7 @@ public abstract class MapLayer implements Cloneable
     private Map myMap;
     protected float opacity = 1.0f;
     protected Rectangle bounds;
-    private Properties properties = new Properties();
+    private Properties properties = new PropertyMap();
     private Vector<MapLayerChangeListener> listeners = new Vector<MapLayerChangeListener>();
 
     public MapLayer() {
@@ -309,6 +311,9 @@ public abstract class MapLayer implements Cloneable
         clone.bounds = new Rectangle(bounds);
         clone.properties = (Properties) properties.clone();
 
+        // The clone is not part of the map this layer may belong to
+        clone.listeners = new Vector<MapLayerChangeListener>();
+
         return clone;
     }
 
@@ -397,14 +402,26 @@ public abstract class MapLayer implements Cloneable
         return this.viewPlaneInfinitelyFarAway;
     }
 
-    private void fireRenamed(String newName, String oldName) {
+    private void fireRenamed(String oldName, String newName) {
         MapLayerChangeEvent e = MapLayerChangeEvent.createNameChangeEvent(oldName, newName);
         for(MapLayerChangeListener l : listeners)
             l.layerChanged(this, e);
     }
     
+    void fireTilesChanged(Rectangle region) {
+        MapLayerChangeEvent e = MapLayerChangeEvent.createTilesChangeEvent(region);
+        for(MapLayerChangeListener l : listeners)
+            l.layerChanged(this, e);
+    }
+    
+    boolean hasMapLayerChangeListeners() {
+        return !listeners.isEmpty();
+    }
+    
     void addMapLayerChangeListener(MapLayerChangeListener l){
-        listeners.add(l);
+        // Map.addLayer reaches this twice, through insertLayer as well
+        if (!listeners.contains(l))
+            listeners.add(l);
     }
     
     void removeMapLayerChangeListener(MapLayerChangeListener l){
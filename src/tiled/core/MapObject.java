@@ -18,12 +18,14 @@ import java.io.File;
 import java.io.IOException;
 import javax.imageio.ImageIO;
 
+import tiled.util.PropertyMap;
+
 /**
  * An object occupying an {@link ObjectGroup}.
  */
 public class MapObject implements Cloneable
 {
-    private Properties properties = new Properties();
+    private Properties properties;     // null until the object has any
     private ObjectGroup objectGroup;
     private Rectangle bounds = new Rectangle();
     private String name = "Object";
@@ -39,7 +41,9 @@ public class MapObject implements Cloneable
     public Object clone() throws CloneNotSupportedException {
         MapObject clone = (MapObject) super.clone();
         clone.bounds = new Rectangle(bounds);
-        clone.properties = (Properties) properties.clone();
+        if (properties != null) {
+            clone.properties = (Properties) properties.clone();
+        }
         return clone;
     }
 
@@ -66,6 +70,16 @@ public class MapObject implements Cloneable
 
     public void setBounds(Rectangle bounds) {
         this.bounds = bounds;
+        boundsChanged();
+    }
+
+    /**
+     * Lets the object group update its index after the bounds changed.
+     */
+    private void boundsChanged() {
+        if (objectGroup != null) {
+            objectGroup.objectMoved(this);
+        }
     }
 
     public String getImageSource() {
@@ -122,6 +136,7 @@ public class MapObject implements Cloneable
 
     public void setX(int x) {
         bounds.x = x;
+        boundsChanged();
     }
 
     public int getY() {
@@ -130,10 +145,12 @@ public class MapObject implements Cloneable
 
     public void setY(int y) {
         bounds.y = y;
+        boundsChanged();
     }
 
     public void translate(int dx, int dy) {
         bounds.translate(dx, dy);
+        boundsChanged();
     }
 
     public String getName() {
@@ -158,10 +175,12 @@ public class MapObject implements Cloneable
 
     public void setWidth(int width) {
         bounds.width = width;
+        boundsChanged();
     }
 
     public void setHeight(int height) {
         bounds.height = height;
+        boundsChanged();
     }
 
     public int getHeight() {
@@ -169,6 +188,9 @@ public class MapObject implements Cloneable
     }
 
     public Properties getProperties() {
+        if (properties == null) {
+            properties = new PropertyMap();
+        }
         return properties;
     }
 
@@ -0,0 +1,584 @@
+/*
+ *  Tiled Map Editor, (c) 2004-2008
+ *
+ *  This program is free software; you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation; either version 2 of the License, or
+ *  (at your option) any later version.
+ *
+ *  Adam Turk <aturk@biggeruniverse.com>
+ *  Bjorn Lindeijer <bjorn@lindeijer.nl>
+ */
+
+package tiled.core;
+
+import java.awt.Point;
+import java.awt.Rectangle;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * A {@link TileRaster} that keeps its cells in a memory-mapped file instead
+ * of on the heap, for layers too large to fit in memory. The operating
+ * system pages the cells in and out as they are used, so the heap only holds
+ * a small table with an entry per page of cells.
+ * <p>
+ * The cells are divided into square pages of {@link #PAGE_SIZE} by
+ * {@link #PAGE_SIZE} cells, stored in a temporary page file shared by all
+ * mapped rasters. The file is deleted once all rasters using it have been
+ * garbage collected. Like the chunks of a {@link ChunkedTileRaster}, a page is
+ * only stored once a non-empty value is written to it and released when its
+ * last non-empty cell is cleared, and pages are copied on write, so that
+ * copies of a raster taken for undo are cheap.
+ */
+public class MappedTileRaster extends TileRaster
+{
+    public static final int PAGE_SIZE = 128;
+    private static final int PAGE_SHIFT = 7;
+    private static final int PAGE_MASK = PAGE_SIZE - 1;
+    private static final int PAGE_CELLS = PAGE_SIZE * PAGE_SIZE;
+
+    private static PageFile sharedFile;
+
+    private final PageFile file;
+    private final int pagesX, pagesY;
+    private final int[] pages;          // slot in the page file, -1 if empty
+    private final int[] used;           // non-empty cells per page
+    private int allocated;
+
+    /**
+     * Constructs an empty raster, stored in the page file shared by all
+     * mapped rasters.
+     *
+     * @param width  the width of the raster in cells
+     * @param height the height of the raster in cells
+     * @throws IOException when the page file could not be created
+     */
+    public MappedTileRaster(int width, int height) throws IOException {
+        this(width, height, getSharedFile());
+        file.unreserve();
+    }
+
+    private MappedTileRaster(int width, int height, PageFile file) {
+        super(width, height);
+        this.file = file;
+        pagesX = (width + PAGE_MASK) >> PAGE_SHIFT;
+        pagesY = (height + PAGE_MASK) >> PAGE_SHIFT;
+        pages = new int[pagesX * pagesY];
+        Arrays.fill(pages, -1);
+        used = new int[pages.length];
+        file.register(this, pages);
+    }
+
+    /**
+     * Returns the shared page file, reserving it for a raster that is about
+     * to register with it so that it is not deleted meanwhile.
+     */
+    private static synchronized PageFile getSharedFile() throws IOException {
+        if (sharedFile == null) {
+            sharedFile = new PageFile();
+        }
+        sharedFile.reserve();
+        return sharedFile;
+    }
+
+    /**
+     * Returns the page file slot of the given page, first making a private
+     * copy of the page when it is shared with another raster.
+     */
+    private int writablePage(int p) {
+        final int slot = pages[p];
+        if (file.isShared(slot)) {
+            pages[p] = file.allocate(slot);
+            file.release(slot);
+        }
+        return pages[p];
+    }
+
+    public int get(int x, int y) {
+        final int slot = pages[(y >> PAGE_SHIFT) * pagesX + (x >> PAGE_SHIFT)];
+        return slot < 0 ? 0 :
+                file.get(slot, ((y & PAGE_MASK) << PAGE_SHIFT) | (x & PAGE_MASK));
+    }
+
+    public void set(int x, int y, int value) {
+        final int p = (y >> PAGE_SHIFT) * pagesX + (x >> PAGE_SHIFT);
+        if (pages[p] < 0) {
+            if (value == 0) {
+                return;
+            }
+            pages[p] = file.allocate(-1);
+            allocated++;
+        }
+
+        final int i = ((y & PAGE_MASK) << PAGE_SHIFT) | (x & PAGE_MASK);
+        final int old = file.get(pages[p], i);
+        if (old == value) {
+            return;
+        }
+        if (value == 0 && used[p] == 1) {
+            // Clearing the last cell releases the page, no need to copy it
+            file.release(pages[p]);
+            pages[p] = -1;
+            used[p] = 0;
+            allocated--;
+            return;
+        }
+
+        file.put(writablePage(p), i, value);
+        if (old == 0) {
+            used[p]++;
+        } else if (value == 0) {
+            used[p]--;
+        }
+    }
+
+    protected TileRaster create(int width, int height) {
+        return new MappedTileRaster(width, height, file);
+    }
+
+    public TileRaster copy() {
+        // Both rasters now share all pages
+        MappedTileRaster copy = new MappedTileRaster(width, height, file);
+        System.arraycopy(pages, 0, copy.pages, 0, pages.length);
+        System.arraycopy(used, 0, copy.used, 0, used.length);
+        copy.allocated = allocated;
+        for (int slot : pages) {
+            if (slot >= 0) {
+                file.retain(slot);
+            }
+        }
+        return copy;
+    }
+
+    public void copyTo(TileRaster target, int dx, int dy) {
+        final Rectangle overlap = new Rectangle(0, 0, width, height)
+                .intersection(new Rectangle(-dx, -dy,
+                        target.getWidth(), target.getHeight()));
+        if (overlap.isEmpty()) {
+            return;
+        }
+
+        final Rectangle pageBounds = new Rectangle();
+        final int[] row = new int[PAGE_SIZE];
+        for (int py = 0; py < pagesY; py++) {
+            for (int px = 0; px < pagesX; px++) {
+                pageBounds.setBounds(px << PAGE_SHIFT, py << PAGE_SHIFT,
+                        PAGE_SIZE, PAGE_SIZE);
+                Rectangle r = pageBounds.intersection(overlap);
+                if (r.isEmpty()) {
+                    continue;
+                }
+
+                final int slot = pages[py * pagesX + px];
+                if (slot < 0) {
+                    target.fill(r.x + dx, r.y + dy, r.width, r.height, 0);
+                    continue;
+                }
+                for (int y = r.y; y < r.y + r.height; y++) {
+                    file.get(slot, ((y & PAGE_MASK) << PAGE_SHIFT) |
+                            (r.x & PAGE_MASK), row, 0, r.width);
+                    target.setCells(r.x + dx, y + dy, r.width, row, 0);
+                }
+            }
+        }
+    }
+
+    public void fill(int x, int y, int w, int h, int value) {
+        final int x1 = x + w, y1 = y + h;
+        for (int py = y >> PAGE_SHIFT; py <= (y1 - 1) >> PAGE_SHIFT; py++) {
+            for (int px = x >> PAGE_SHIFT; px <= (x1 - 1) >> PAGE_SHIFT; px++) {
+                if (pages[py * pagesX + px] < 0 && value == 0) {
+                    continue;
+                }
+                final int fx0 = Math.max(x, px << PAGE_SHIFT);
+                final int fy0 = Math.max(y, py << PAGE_SHIFT);
+                final int fx1 = Math.min(x1, (px + 1) << PAGE_SHIFT);
+                final int fy1 = Math.min(y1, (py + 1) << PAGE_SHIFT);
+                for (int fy = fy0; fy < fy1; fy++) {
+                    for (int fx = fx0; fx < fx1; fx++) {
+                        set(fx, fy, value);
+                    }
+                }
+            }
+        }
+    }
+
+    public void getCells(int x, int y, int w, int[] dest, int offset) {
+        final int rowOffset = (y & PAGE_MASK) << PAGE_SHIFT;
+        final int rowPages = (y >> PAGE_SHIFT) * pagesX;
+        final int x1 = x + w;
+
+        while (x < x1) {
+            final int n = Math.min(x1, (x | PAGE_MASK) + 1) - x;
+            final int slot = pages[rowPages + (x >> PAGE_SHIFT)];
+            if (slot < 0) {
+                Arrays.fill(dest, offset, offset + n, 0);
+            } else {
+                file.get(slot, rowOffset | (x & PAGE_MASK), dest, offset, n);
+            }
+            x += n;
+            offset += n;
+        }
+    }
+
+    public List<Rectangle> getDataRegions() {
+        // Runs of stored pages within a row of pages are joined, which keeps
+        // the list short for densely painted layers
+        List<Rectangle> regions = new ArrayList<Rectangle>();
+        for (int py = 0; py < pagesY; py++) {
+            final int y0 = py << PAGE_SHIFT;
+            int px = 0;
+            while (px < pagesX) {
+                if (pages[py * pagesX + px] < 0) {
+                    px++;
+                    continue;
+                }
+                final int start = px;
+                while (px < pagesX && pages[py * pagesX + px] >= 0) {
+                    px++;
+                }
+                final int x0 = start << PAGE_SHIFT;
+                regions.add(new Rectangle(x0, y0,
+                        Math.min(px << PAGE_SHIFT, width) - x0,
+                        Math.min(PAGE_SIZE, height - y0)));
+            }
+        }
+        return regions;
+    }
+
+    public void countValues(int[] counts) {
+        final int[] row = new int[PAGE_SIZE];
+        for (int p = 0; p < pages.length; p++) {
+            final int slot = pages[p];
+            final int x0 = (p % pagesX) << PAGE_SHIFT;
+            final int y0 = (p / pagesX) << PAGE_SHIFT;
+            final int w = Math.min(PAGE_SIZE, width - x0);
+            final int h = Math.min(PAGE_SIZE, height - y0);
+            if (slot < 0) {
+                counts[0] += w * h;
+                continue;
+            }
+            for (int y = 0; y < h; y++) {
+                file.get(slot, y << PAGE_SHIFT, row, 0, w);
+                for (int i = 0; i < w; i++) {
+                    counts[row[i]]++;
+                }
+            }
+        }
+    }
+
+    public boolean isEmpty() {
+        return allocated == 0;
+    }
+
+    public Point locate(int value, boolean invert) {
+        final boolean emptyMatches = (value == 0) != invert;
+        if (!emptyMatches && allocated == 0) {
+            return null;
+        }
+
+        final int[] row = new int[PAGE_SIZE];
+        for (int y = 0; y < height; y++) {
+            final int rowOffset = (y & PAGE_MASK) << PAGE_SHIFT;
+            for (int px = 0; px < pagesX; px++) {
+                final int slot = pages[(y >> PAGE_SHIFT) * pagesX + px];
+                final int x0 = px << PAGE_SHIFT;
+                if (slot < 0) {
+                    if (emptyMatches) {
+                        return new Point(x0, y);
+                    }
+                    continue;
+                }
+                final int w = Math.min(PAGE_SIZE, width - x0);
+                file.get(slot, rowOffset, row, 0, w);
+                for (int i = 0; i < w; i++) {
+                    if ((row[i] == value) != invert) {
+                        return new Point(x0 + i, y);
+                    }
+                }
+            }
+        }
+        return null;
+    }
+
+    public int replace(int find, int replacement) {
+        if (find == replacement) {
+            return 0;
+        }
+        if (find == 0) {
+            return super.replace(find, replacement);
+        }
+
+        int count = 0;
+        for (int p = 0; p < pages.length; p++) {
+            int slot = pages[p];
+            if (slot < 0) {
+                continue;
+            }
+            int replaced = 0;
+            for (int i = 0; i < PAGE_CELLS; i++) {
+                if (file.get(slot, i) == find) {
+                    if (replaced == 0) {
+                        slot = writablePage(p);
+                    }
+                    file.put(slot, i, replacement);
+                    replaced++;
+                }
+            }
+            if (replacement == 0 && replaced > 0) {
+                used[p] -= replaced;
+                if (used[p] == 0) {
+                    file.release(slot);
+                    pages[p] = -1;
+                    allocated--;
+                }
+            }
+            count += replaced;
+        }
+        return count;
+    }
+
+    /**
+     * Refers to a raster using the page file, so that its pages can be
+     * released once the raster has been garbage collected.
+     */
+    private static class Owner extends WeakReference<MappedTileRaster>
+    {
+        final int[] pages;
+
+        Owner(MappedTileRaster raster, int[] pages,
+              ReferenceQueue<MappedTileRaster> queue)
+        {
+            super(raster, queue);
+            this.pages = pages;
+        }
+    }
+
+    /**
+     * A temporary file holding the pages of mapped rasters. The file is
+     * mapped in regions of {@link #REGION_PAGES} pages, which are mapped as
+     * they are first needed. Pages are reference counted, so that rasters
+     * can share them. A daemon thread releases the pages of rasters as they
+     * are garbage collected, and deletes the file once no raster uses it.
+     */
+    private static final class PageFile
+    {
+        private static final int REGION_SHIFT = 8;
+        private static final int REGION_PAGES = 1 << REGION_SHIFT;
+        private static final int REGION_MASK = REGION_PAGES - 1;
+        private static final long REGION_BYTES = (long) REGION_PAGES * PAGE_CELLS * 4;
+
+        private final File file;
+        private final FileChannel channel;
+        private int reservations;       // rasters about to register
+        private IntBuffer[] regions = new IntBuffer[16];
+        private int[] references = new int[REGION_PAGES];
+        private int slots;              // slots used so far
+        private int[] free = new int[64];
+        private int freeCount;
+
+        // Keeps the owners themselves reachable, or they would not be enqueued
+        private final Set<Owner> owners = new HashSet<Owner>();
+        private final ReferenceQueue<MappedTileRaster> queue =
+                new ReferenceQueue<MappedTileRaster>();
+
+        PageFile() throws IOException {
+            file = File.createTempFile("tiled", ".tiles");
+            file.deleteOnExit();
+            channel = new RandomAccessFile(file, "rw").getChannel();
+
+            Thread cleaner = new Thread("Tile page file cleaner") {
+                public void run() {
+                    clean();
+                }
+            };
+            cleaner.setDaemon(true);
+            cleaner.start();
+        }
+
+        synchronized void reserve() {
+            reservations++;
+        }
+
+        synchronized void unreserve() {
+            reservations--;
+        }
+
+        synchronized void register(MappedTileRaster raster, int[] pages) {
+            owners.add(new Owner(raster, pages, queue));
+        }
+
+        /**
+         * Releases the pages of rasters as they are garbage collected, until
+         * no raster uses the file any more, and then deletes the file.
+         */
+        private void clean() {
+            try {
+                while (true) {
+                    final Reference<? extends MappedTileRaster> reference =
+                            queue.remove();
+                    synchronized (MappedTileRaster.class) {
+                        synchronized (this) {
+                            releaseOwner(reference);
+                            expunge();
+                            if (owners.isEmpty() && reservations == 0) {
+                                if (sharedFile == this) {
+                                    sharedFile = null;
+                                }
+                                close();
+                                return;
+                            }
+                        }
+                    }
+                }
+            } catch (InterruptedException e) {
+                // The file is still deleted on exit
+            }
+        }
+
+        private void close() {
+            try {
+                channel.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+            if (!file.delete()) {
+                // Mapped files can not be deleted on some systems
+                file.deleteOnExit();
+            }
+        }
+
+        int get(int slot, int i) {
+            return regions[slot >> REGION_SHIFT].get(
+                    (slot & REGION_MASK) * PAGE_CELLS + i);
+        }
+
+        void get(int slot, int i, int[] dest, int offset, int n) {
+            final IntBuffer region = regions[slot >> REGION_SHIFT];
+            i += (slot & REGION_MASK) * PAGE_CELLS;
+            for (int k = 0; k < n; k++) {
+                dest[offset + k] = region.get(i + k);
+            }
+        }
+
+        void put(int slot, int i, int value) {
+            regions[slot >> REGION_SHIFT].put(
+                    (slot & REGION_MASK) * PAGE_CELLS + i, value);
+        }
+
+        synchronized boolean isShared(int slot) {
+            return references[slot] > 1;
+        }
+
+        synchronized void retain(int slot) {
+            references[slot]++;
+        }
+
+        synchronized void release(int slot) {
+            if (--references[slot] == 0) {
+                if (freeCount == free.length) {
+                    free = grow(free, free.length * 2);
+                }
+                free[freeCount++] = slot;
+            }
+        }
+
+        /**
+         * Allocates a page, filled with the contents of the given page or
+         * with zeros.
+         *
+         * @param source the slot of the page to copy, or -1 for an empty page
+         * @return the slot of the new page
+         */
+        synchronized int allocate(int source) {
+            expunge();
+
+            final int slot;
+            final boolean reused = freeCount > 0;
+            if (reused) {
+                slot = free[--freeCount];
+            } else {
+                slot = slots++;
+                if (slot >= references.length) {
+                    references = grow(references, references.length * 2);
+                }
+                mapRegion(slot >> REGION_SHIFT);
+            }
+            references[slot] = 1;
+
+            final IntBuffer region = regions[slot >> REGION_SHIFT];
+            final int start = (slot & REGION_MASK) * PAGE_CELLS;
+            if (source >= 0) {
+                final IntBuffer from = regions[source >> REGION_SHIFT];
+                final int fromStart = (source & REGION_MASK) * PAGE_CELLS;
+                for (int i = 0; i < PAGE_CELLS; i++) {
+                    region.put(start + i, from.get(fromStart + i));
+                }
+            } else if (reused) {
+                // New parts of the file read as zeros, reused pages do not
+                for (int i = 0; i < PAGE_CELLS; i++) {
+                    region.put(start + i, 0);
+                }
+            }
+            return slot;
+        }
+
+        private void mapRegion(int r) {
+            if (r >= regions.length) {
+                IntBuffer[] grown = new IntBuffer[regions.length * 2];
+                System.arraycopy(regions, 0, grown, 0, regions.length);
+                regions = grown;
+            }
+            if (regions[r] != null) {
+                return;
+            }
+            try {
+                regions[r] = channel.map(FileChannel.MapMode.READ_WRITE,
+                        r * REGION_BYTES, REGION_BYTES)
+                        .order(ByteOrder.nativeOrder()).asIntBuffer();
+            } catch (IOException e) {
+                throw new IllegalStateException(
+                        "Could not map tile data: " + e.getMessage(), e);
+            }
+        }
+
+        /**
+         * Releases the pages of rasters that were garbage collected.
+         */
+        private void expunge() {
+            Reference<? extends MappedTileRaster> reference;
+            while ((reference = queue.poll()) != null) {
+                releaseOwner(reference);
+            }
+        }
+
+        private void releaseOwner(Reference<? extends MappedTileRaster> reference) {
+            if (owners.remove(reference)) {
+                for (int slot : ((Owner) reference).pages) {
+                    if (slot >= 0) {
+                        release(slot);
+                    }
+                }
+            }
+        }
+
+        private static int[] grow(int[] array, int length) {
+            int[] grown = new int[length];
+            System.arraycopy(array, 0, grown, 0, array.length);
+            return grown;
+        }
+    }
+}
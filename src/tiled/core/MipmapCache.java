@@ -0,0 +1,289 @@
+/*
+ *  Tiled Map Editor, (c) 2004-2008
+ *
+ *  This program is free software; you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation; either version 2 of the License, or
+ *  (at your option) any later version.
+ *
+ *  Adam Turk <aturk@biggeruniverse.com>
+ *  Bjorn Lindeijer <bjorn@lindeijer.nl>
+ */
+
+package tiled.core;
+
+import java.awt.Graphics2D;
+import java.awt.Image;
+import java.awt.RenderingHints;
+import java.awt.image.BufferedImage;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Set;
+
+import tiled.util.TiledConfiguration;
+import tiled.util.Workers;
+
+/**
+ * A cache of scaled tile images, shared by all tilesets. Scaled images are
+ * kept within a memory budget, evicting the least recently used ones when
+ * the budget is exceeded. The budget is read from the
+ * <code>display/scaledImageCache</code> preference, in megabytes.
+ * <p>
+ * The original images are referenced weakly, so that the scaled images of
+ * tilesets that are no longer used are dropped along with them.
+ * <p>
+ * Images scaled below half their size are made by halving them repeatedly,
+ * so that each scaled image is made from the next larger one instead of
+ * from the original. Images can be scaled on the background thread of
+ * {@link Workers} with {@link #request(Image, double)}, while callers draw
+ * the original image scaled on the fly until the scaled image is available.
+ */
+public final class MipmapCache
+{
+    private static class Key extends WeakReference<Image>
+    {
+        final double zoom;
+        private final int hash;
+
+        Key(Image source, double zoom, ReferenceQueue<Image> queue) {
+            super(source, queue);
+            this.zoom = zoom;
+            final long bits = Double.doubleToLongBits(zoom);
+            hash = System.identityHashCode(source) * 31 +
+                    (int) (bits ^ (bits >>> 32));
+        }
+
+        Key(Image source, double zoom) {
+            this(source, zoom, null);
+        }
+
+        public boolean equals(Object o) {
+            if (o == this) {
+                return true;
+            }
+            if (!(o instanceof Key)) {
+                return false;
+            }
+            final Key other = (Key) o;
+            final Image source = get();
+            return source != null && source == other.get() &&
+                    zoom == other.zoom;
+        }
+
+        public int hashCode() {
+            return hash;
+        }
+    }
+
+    // In access order, so the eldest entry is the least recently used one
+    private static final LinkedHashMap<Key, BufferedImage> images =
+            new LinkedHashMap<Key, BufferedImage>(64, 0.75f, true);
+    private static final Set<Key> pending = new HashSet<Key>();
+    private static final ReferenceQueue<Image> queue =
+            new ReferenceQueue<Image>();
+    private static long size;
+    private static long budget = TiledConfiguration.node("display")
+            .getInt("scaledImageCache", 64) * 1024L * 1024L;
+
+    private MipmapCache() {
+    }
+
+    /**
+     * Sets the amount of memory the scaled images may take up, evicting
+     * images when the cache currently takes up more.
+     *
+     * @param bytes the memory budget in bytes
+     */
+    public static synchronized void setBudget(long bytes) {
+        budget = bytes;
+        evict();
+    }
+
+    /**
+     * @return the memory budget in bytes
+     */
+    public static synchronized long getBudget() {
+        return budget;
+    }
+
+    /**
+     * Returns the scaled image when it is in the cache, without scaling it
+     * otherwise.
+     *
+     * @param source the original image
+     * @param zoom   the zoom level
+     * @return the scaled image, or <code>null</code> when it is not cached
+     */
+    public static synchronized Image get(Image source, double zoom) {
+        expunge();
+        return images.get(new Key(source, zoom));
+    }
+
+    /**
+     * Returns the scaled image, scaling it right away when it is not in the
+     * cache yet.
+     *
+     * @param source the original image
+     * @param zoom   the zoom level
+     * @return the scaled image, or <code>null</code> when the image has no
+     *         size yet or would be scaled to nothing
+     */
+    public static Image getScaledImage(Image source, double zoom) {
+        final Image cached = get(source, zoom);
+        if (cached != null) {
+            return cached;
+        }
+
+        final BufferedImage scaled = scale(source, zoom);
+        if (scaled != null) {
+            put(source, zoom, scaled);
+        }
+        return scaled;
+    }
+
+    /**
+     * Has the image scaled in the background, unless it is already cached
+     * or being scaled.
+     *
+     * @param source the original image
+     * @param zoom   the zoom level
+     */
+    public static void request(Image source, double zoom) {
+        request(Collections.singletonList(source), zoom);
+    }
+
+    /**
+     * Has the given images scaled in the background by a single task,
+     * leaving out those that are already cached or being scaled.
+     *
+     * @param sources the original images
+     * @param zoom    the zoom level
+     */
+    public static void request(Collection<? extends Image> sources,
+                               final double zoom) {
+        final List<Key> keys = new ArrayList<Key>();
+        synchronized (MipmapCache.class) {
+            for (Image source : sources) {
+                final Key key = new Key(source, zoom, queue);
+                if (!images.containsKey(key) && pending.add(key)) {
+                    keys.add(key);
+                }
+            }
+        }
+        if (keys.isEmpty()) {
+            return;
+        }
+
+        Workers.getBackgroundExecutor().execute(new Runnable() {
+            public void run() {
+                for (Key key : keys) {
+                    try {
+                        final Image source = key.get();
+                        if (source != null) {
+                            getScaledImage(source, zoom);
+                        }
+                    } finally {
+                        synchronized (MipmapCache.class) {
+                            pending.remove(key);
+                        }
+                    }
+                }
+            }
+        });
+    }
+
+    /**
+     * Removes all scaled versions of the given image, for when the image is
+     * replaced or no longer used.
+     *
+     * @param source the original image
+     */
+    public static synchronized void invalidate(Image source) {
+        final Iterator<java.util.Map.Entry<Key, BufferedImage>> it =
+                images.entrySet().iterator();
+        while (it.hasNext()) {
+            final java.util.Map.Entry<Key, BufferedImage> entry = it.next();
+            if (entry.getKey().get() == source) {
+                size -= bytes(entry.getValue());
+                it.remove();
+            }
+        }
+    }
+
+    private static synchronized void put(Image source, double zoom,
+                                         BufferedImage image) {
+        expunge();
+        final BufferedImage previous =
+                images.put(new Key(source, zoom, queue), image);
+        if (previous != null) {
+            size -= bytes(previous);
+        }
+        size += bytes(image);
+        evict();
+    }
+
+    /**
+     * Removes the scaled images of original images that were garbage
+     * collected.
+     */
+    private static void expunge() {
+        Object key;
+        while ((key = queue.poll()) != null) {
+            final BufferedImage image = images.remove(key);
+            if (image != null) {
+                size -= bytes(image);
+            }
+        }
+    }
+
+    private static void evict() {
+        final Iterator<BufferedImage> it = images.values().iterator();
+        while (size > budget && it.hasNext()) {
+            size -= bytes(it.next());
+            it.remove();
+        }
+    }
+
+    private static long bytes(BufferedImage image) {
+        return (long) image.getWidth() * image.getHeight() * 4;
+    }
+
+    private static BufferedImage scale(Image source, double zoom) {
+        final int width = source.getWidth(null);
+        final int height = source.getHeight(null);
+        final int scaledWidth = (int) (width * zoom);
+        final int scaledHeight = (int) (height * zoom);
+        if (width <= 0 || height <= 0 ||
+                scaledWidth <= 0 || scaledHeight <= 0) {
+            return null;
+        }
+
+        Image from = source;
+        if (zoom < 0.5) {
+            // Every pixel of the original should contribute to the result,
+            // which bilinear filtering only achieves down to half the size
+            final Image larger = getScaledImage(source, zoom * 2);
+            if (larger != null) {
+                from = larger;
+            }
+        }
+
+        BufferedImage scaled = new BufferedImage(scaledWidth, scaledHeight,
+                BufferedImage.TYPE_INT_ARGB);
+        Graphics2D g = scaled.createGraphics();
+        g.setRenderingHint(RenderingHints.KEY_INTERPOLATION,
+                RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+        g.setRenderingHint(RenderingHints.KEY_RENDERING,
+                RenderingHints.VALUE_RENDER_QUALITY);
+        g.drawImage(from, 0, 0, scaledWidth, scaledHeight, null);
+        g.dispose();
+        return scaled;
+    }
+}
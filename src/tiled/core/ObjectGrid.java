@@ -0,0 +1,224 @@
+/*
+ *  Tiled Map Editor, (c) 2004-2008
+ *
+ *  This program is free software; you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation; either version 2 of the License, or
+ *  (at your option) any later version.
+ *
+ *  Adam Turk <aturk@biggeruniverse.com>
+ *  Bjorn Lindeijer <bjorn@lindeijer.nl>
+ */
+
+package tiled.core;
+
+import java.awt.Rectangle;
+import java.awt.geom.Rectangle2D;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+
+import tiled.util.LongHashMap;
+
+/**
+ * A uniform grid over the objects of an {@link ObjectGroup}, used to find
+ * the objects near a point or within a rectangle without looking at every
+ * object of the group. Each object is listed in all grid cells touched by
+ * its bounds, except for objects spanning too many cells, which are kept in
+ * a separate list and are considered by every query.
+ * <p>
+ * The grid works in the coordinates of the objects, and has to be told
+ * whenever the bounds of an object change.
+ */
+class ObjectGrid
+{
+    // Side of a grid cell in pixels
+    private static final int CELL_SIZE = 256;
+
+    // Objects touching more cells than this go into the list of large ones
+    private static final int MAX_CELLS = 64;
+
+    private static final Comparator<Entry> ORDER = new Comparator<Entry>() {
+        public int compare(Entry a, Entry b) {
+            return a.order < b.order ? -1 : a.order > b.order ? 1 : 0;
+        }
+    };
+
+    private static class Entry
+    {
+        final MapObject object;
+        final long order;       // position in the order of addition
+        int x0, y0, x1, y1;     // range of cells the object is listed in
+        boolean large;
+        int stamp;              // last query that found the object
+
+        Entry(MapObject object, long order) {
+            this.object = object;
+            this.order = order;
+        }
+    }
+
+    private final LongHashMap<List<Entry>> cells =
+            new LongHashMap<List<Entry>>();
+    private final List<Entry> large = new ArrayList<Entry>();
+    private final HashMap<MapObject, Entry> entries =
+            new HashMap<MapObject, Entry>();
+    private long nextOrder;
+    private int stamp;
+
+    private static int cell(double v) {
+        return (int) Math.floor(v / CELL_SIZE);
+    }
+
+    /**
+     * Adds an object to the grid. Objects found by a query are returned in
+     * the order in which they were added.
+     */
+    public void add(MapObject object) {
+        if (entries.containsKey(object)) {
+            return;
+        }
+        final Entry entry = new Entry(object, nextOrder++);
+        entries.put(object, entry);
+        list(entry);
+    }
+
+    public void remove(MapObject object) {
+        final Entry entry = entries.remove(object);
+        if (entry != null) {
+            unlist(entry);
+        }
+    }
+
+    /**
+     * Lists an object in the cells touched by its current bounds. Does
+     * nothing for objects that are not in the grid.
+     */
+    public void update(MapObject object) {
+        final Entry entry = entries.get(object);
+        if (entry == null) {
+            return;
+        }
+
+        final Rectangle b = object.getBounds();
+        if (!entry.large &&
+                cell(b.x) == entry.x0 && cell(b.y) == entry.y0 &&
+                cell(b.x + Math.max(0, b.width)) == entry.x1 &&
+                cell(b.y + Math.max(0, b.height)) == entry.y1) {
+            return;
+        }
+        unlist(entry);
+        list(entry);
+    }
+
+    private void list(Entry entry) {
+        final Rectangle b = entry.object.getBounds();
+        entry.x0 = cell(b.x);
+        entry.y0 = cell(b.y);
+        entry.x1 = cell(b.x + Math.max(0, b.width));
+        entry.y1 = cell(b.y + Math.max(0, b.height));
+
+        final long count = (long) (entry.x1 - entry.x0 + 1) *
+                (entry.y1 - entry.y0 + 1);
+        entry.large = count > MAX_CELLS;
+        if (entry.large) {
+            large.add(entry);
+            return;
+        }
+
+        for (int cy = entry.y0; cy <= entry.y1; cy++) {
+            for (int cx = entry.x0; cx <= entry.x1; cx++) {
+                final long key = LongHashMap.pack(cx, cy);
+                List<Entry> list = cells.get(key);
+                if (list == null) {
+                    list = new ArrayList<Entry>(4);
+                    cells.put(key, list);
+                }
+                list.add(entry);
+            }
+        }
+    }
+
+    private void unlist(Entry entry) {
+        if (entry.large) {
+            large.remove(entry);
+            return;
+        }
+
+        for (int cy = entry.y0; cy <= entry.y1; cy++) {
+            for (int cx = entry.x0; cx <= entry.x1; cx++) {
+                final long key = LongHashMap.pack(cx, cy);
+                final List<Entry> list = cells.get(key);
+                if (list != null && list.remove(entry) && list.isEmpty()) {
+                    cells.remove(key);
+                }
+            }
+        }
+    }
+
+    /**
+     * Returns the objects whose bounds may touch any of the given areas,
+     * including their edges. The result may contain objects that do not
+     * actually touch them, so the caller still has to test each object. The
+     * objects are returned in the order in which they were added.
+     *
+     * @param areas the areas to search, in the coordinates of the objects
+     * @return the candidate objects
+     */
+    public List<MapObject> getCandidates(Rectangle2D... areas) {
+        final int current = ++stamp;
+        final List<Entry> found = new ArrayList<Entry>();
+
+        for (Entry entry : large) {
+            entry.stamp = current;
+            found.add(entry);
+        }
+
+        for (Rectangle2D area : areas) {
+            final int x0 = cell(area.getMinX());
+            final int y0 = cell(area.getMinY());
+            final int x1 = cell(area.getMaxX());
+            final int y1 = cell(area.getMaxY());
+
+            if ((double) (x1 - x0 + 1) * (y1 - y0 + 1) > cells.size()) {
+                // Fewer cells are populated than the area covers
+                for (long key : cells.keys()) {
+                    final int cx = LongHashMap.unpackX(key);
+                    final int cy = LongHashMap.unpackY(key);
+                    if (cx >= x0 && cx <= x1 && cy >= y0 && cy <= y1) {
+                        collect(cells.get(key), current, found);
+                    }
+                }
+            } else {
+                for (int cy = y0; cy <= y1; cy++) {
+                    for (int cx = x0; cx <= x1; cx++) {
+                        collect(cells.get(LongHashMap.pack(cx, cy)), current,
+                                found);
+                    }
+                }
+            }
+        }
+
+        Collections.sort(found, ORDER);
+        final List<MapObject> result = new ArrayList<MapObject>(found.size());
+        for (Entry entry : found) {
+            result.add(entry.object);
+        }
+        return result;
+    }
+
+    private static void collect(List<Entry> list, int current,
+                                List<Entry> found) {
+        if (list == null) {
+            return;
+        }
+        for (Entry entry : list) {
+            if (entry.stamp != current) {
+                entry.stamp = current;
+                found.add(entry);
+            }
+        }
+    }
+}
@@ -18,16 +18,24 @@ import java.awt.geom.Area;
 import java.awt.geom.Ellipse2D;
 import java.awt.geom.Line2D;
 import java.awt.geom.Rectangle2D;
-import java.util.LinkedList;
 import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
 import java.util.Vector;
 
 /**
  * A layer containing {@link MapObject map objects}.
+ * <p>
+ * The objects are indexed by their location, so that finding the objects at
+ * a point or in a rectangle only looks at the objects nearby. The index
+ * follows the changes made through the setters of {@link MapObject}, but not
+ * changes made directly to the rectangle returned by
+ * {@link MapObject#getBounds()}.
  */
 public class ObjectGroup extends MapLayer
 {
-    private LinkedList<MapObject> objects = new LinkedList<MapObject>();
+    private LinkedHashSet<MapObject> objects = new LinkedHashSet<MapObject>();
+    private ObjectGrid grid = new ObjectGrid();
 
     /**
      * Default constructor.
@@ -114,10 +122,12 @@ public class ObjectGroup extends MapLayer
 
     public Object clone() throws CloneNotSupportedException {
         ObjectGroup clone = (ObjectGroup) super.clone();
-        clone.objects = new LinkedList<MapObject>();
+        clone.objects = new LinkedHashSet<MapObject>();
+        clone.grid = new ObjectGrid();
         for (MapObject object : objects) {
             final MapObject objectClone = (MapObject) object.clone();
             clone.objects.add(objectClone);
+            clone.grid.add(objectClone);
             objectClone.setObjectGroup(clone);
         }
         return clone;
@@ -132,34 +142,66 @@ public class ObjectGroup extends MapLayer
 
     public void addObject(MapObject o) {
         objects.add(o);
+        grid.add(o);
         o.setObjectGroup(this);
     }
 
     public void removeObject(MapObject o) {
         objects.remove(o);
+        grid.remove(o);
         o.setObjectGroup(null);
     }
 
-    public Iterator<MapObject> getObjects() {
-        return objects.iterator();
+    /**
+     * Called by a {@link MapObject} of this group when its bounds changed.
+     */
+    void objectMoved(MapObject o) {
+        grid.update(o);
     }
 
-    public MapObject getObjectAt(int x, int y) {
-        for (MapObject obj : objects) {
-            // Attempt to get an object bordering the point that has no width
-            if (obj.getWidth() == 0 && obj.getX() + bounds.x == x) {
-                return obj;
+    public Iterator<MapObject> getObjects() {
+        final Iterator<MapObject> iterator = objects.iterator();
+        return new Iterator<MapObject>() {
+            private MapObject current;
+
+            public boolean hasNext() {
+                return iterator.hasNext();
             }
 
-            // Attempt to get an object bordering the point that has no height
-            if (obj.getHeight() == 0 && obj.getY() + bounds.y == y) {
-                return obj;
+            public MapObject next() {
+                return current = iterator.next();
             }
 
-            Rectangle rect = new Rectangle(obj.getX() + bounds.x * getMap().getTileWidth(),
-                    obj.getY() + bounds.y * getMap().getTileHeight(),
-                    obj.getWidth(), obj.getHeight());
-            if (rect.contains(x, y)) {
+            public void remove() {
+                iterator.remove();
+                grid.remove(current);
+                current.setObjectGroup(null);
+            }
+        };
+    }
+
+    /**
+     * Returns the first object containing the given point. An object without
+     * width or height is found when the point lies on its outline.
+     *
+     * @param x x coordinate in map pixel coordinates
+     * @param y y coordinate in map pixel coordinates
+     * @return the object, or <code>null</code> when there is none
+     */
+    public MapObject getObjectAt(int x, int y) {
+        // The objects are relative to the origin of the layer
+        x -= bounds.x * getMap().getTileWidth();
+        y -= bounds.y * getMap().getTileHeight();
+
+        for (MapObject obj : grid.getCandidates(
+                new Rectangle2D.Double(x, y, 0, 0))) {
+            final Rectangle rect = obj.getBounds();
+            if (rect.width == 0 || rect.height == 0) {
+                if (x >= rect.x && x <= rect.x + rect.width &&
+                        y >= rect.y && y <= rect.y + rect.height) {
+                    return obj;
+                }
+            } else if (rect.contains(x, y)) {
                 return obj;
             }
         }
@@ -173,15 +215,12 @@ public class ObjectGroup extends MapLayer
      * @return  objects that intersect the given rectangle
      */
     public MapObject[] findObjectsByOutline(Rectangle rect){
-        // FIXME: iterating over all objects is potentially very slow
-        // there's room for optimization here by using some sort of space
-        // partitioning for object storage
         Vector<MapObject> result = new Vector<MapObject>();
         Line2D l0 = new Line2D.Float();
         Line2D l1 = new Line2D.Float();
         Line2D l2 = new Line2D.Float();
         Line2D l3 = new Line2D.Float();
-        for (MapObject obj : objects) {
+        for (MapObject obj : grid.getCandidates(rect)) {
             Rectangle b = obj.getBounds();
             float x0 = b.x;
             float y0 = b.y;
@@ -206,7 +245,7 @@ public class ObjectGroup extends MapLayer
      */
     public MapObject[] findObjects(Rectangle rect){
         Vector<MapObject> result = new Vector<MapObject>();
-        for(MapObject o : objects){
+        for(MapObject o : grid.getCandidates(rect)){
             if(rect.contains(o.getBounds()))
                 result.add(o);
         }
@@ -218,12 +257,23 @@ public class ObjectGroup extends MapLayer
         Rectangle2D mouse = new Rectangle2D.Double(x - zoom - 1, y - zoom - 1, 2 * zoom + 1, 2 * zoom + 1);
         Shape shape;
 
-        for (MapObject obj : objects) {
+        // Objects without a size are drawn as circles scaled by the zoom,
+        // objects with a size are at least one zoomed pixel wide
+        final int offsetX = bounds.x * getMap().getTileWidth();
+        final int offsetY = bounds.y * getMap().getTileHeight();
+        final Rectangle2D points = new Rectangle2D.Double(
+                mouse.getX() / zoom - 10, mouse.getY() / zoom - 10,
+                mouse.getWidth() / zoom + 10, mouse.getHeight() / zoom + 10);
+        final Rectangle2D areas = new Rectangle2D.Double(
+                mouse.getX() - offsetX - zoom, mouse.getY() - offsetY - zoom,
+                mouse.getWidth() + zoom, mouse.getHeight() + zoom);
+
+        for (MapObject obj : grid.getCandidates(points, areas)) {
             if (obj.getWidth() == 0 && obj.getHeight() == 0) {
                 shape = new Ellipse2D.Double(obj.getX() * zoom, obj.getY() * zoom, 10 * zoom, 10 * zoom);
             } else {
-                shape = new Rectangle2D.Double(obj.getX() + bounds.x * getMap().getTileWidth(),
-                        obj.getY() + bounds.y * getMap().getTileHeight(),
+                shape = new Rectangle2D.Double(obj.getX() + offsetX,
+                        obj.getY() + offsetY,
                         obj.getWidth() > 0 ? obj.getWidth() : zoom,
                         obj.getHeight() > 0 ? obj.getHeight() : zoom);
             }
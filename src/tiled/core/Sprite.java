@@ -99,7 +99,7 @@ public class Sprite
         }
 
         public Tile getFrame(int f) {
-            if (f > 0 && f < frames.length) {
+            if (f >= 0 && f < frames.length) {
                 return frames[f];
             }
             return null;
@@ -130,6 +130,7 @@ public class Sprite
     }
 
     public Sprite(Tile[] frames) {
+        this();
         setFrames(frames);
     }
 
@@ -185,7 +186,7 @@ public class Sprite
                     currentFrame = 0;
                     break;
             }
-        } else if (c > currentKey.getLastFrame()) {
+        } else if (c >= currentKey.getLastFrame() + 1) {
             switch (currentKey.flags & KeyFrame.MASK_ANIMATION) {
                 case KeyFrame.KEY_LOOP:
                     currentFrame = 0;
@@ -277,6 +278,9 @@ public class Sprite
 
     public void addKey(KeyFrame k) {
         keys.add(k);
+        if (currentKey == null) {
+            currentKey = k;
+        }
     }
 
     public void removeKey(String name) {
@@ -299,6 +303,23 @@ public class Sprite
         }
     }
 
+    /**
+     * Advances the animation by the given amount of time, at the frame rate
+     * of the current key.
+     *
+     * @param seconds the time that passed
+     * @return <code>true</code> if a different frame is now current
+     */
+    public boolean advance(float seconds) {
+        if (currentKey == null || !bPlaying) {
+            return false;
+        }
+        final KeyFrame key = currentKey;
+        final int frame = (int) currentFrame;
+        setCurrentFrame(currentFrame + currentKey.getFrameRate() * seconds);
+        return key != currentKey || frame != (int) currentFrame;
+    }
+
     /**
      * Sets the current frame relative to the starting frame of the
      * current key.
@@ -13,9 +13,10 @@
 package tiled.core;
 
 import java.awt.*;
-import java.awt.image.BufferedImage;
 import java.util.Properties;
 
+import tiled.util.PropertyMap;
+
 /**
  * The core class for our tiles.
  *
@@ -23,17 +24,15 @@ import java.util.Properties;
  */
 public class Tile
 {
-    private Image internalImage, scaledImage;
+    private Image internalImage;
     private int id = -1;
     protected int tileImageId = -1;
     private int groundHeight;          // Height above/below "ground"
     private int tileOrientation;
-    private double myZoom = 1.0;
-    private Properties properties;
+    private Properties properties;     // null until the tile has any
     private TileSet tileset;
 
     public Tile() {
-        properties = new Properties();
     }
 
     public Tile(TileSet set) {
@@ -47,13 +46,11 @@ public class Tile
      * @param t
      */
     public Tile(Tile t) {
-        properties = (Properties)t.properties.clone();
+        if (t.properties != null) {
+            properties = (Properties)t.properties.clone();
+        }
         tileImageId = t.tileImageId;
         tileset = t.tileset;
-        if (tileset != null) {
-            scaledImage = getImage().getScaledInstance(
-                    -1, -1, Image.SCALE_DEFAULT);
-        }
     }
 
     /**
@@ -115,10 +112,88 @@ public class Tile
         properties = p;
     }
 
+    /**
+     * Returns the properties of this tile, which include the default tile
+     * properties of its tileset. The properties are created when they are
+     * first asked for, so use {@link #hasProperties()} to find out whether
+     * there are any.
+     *
+     * @return the properties of this tile
+     */
     public Properties getProperties() {
+        if (properties == null) {
+            properties = new PropertyMap(
+                    tileset != null ? tileset.getDefaultProperties() : null);
+        }
         return properties;
     }
 
+    /**
+     * Returns whether this tile has any properties, including the default
+     * tile properties of its tileset, without creating them.
+     *
+     * @return <code>true</code> when the tile has any properties
+     */
+    public boolean hasProperties() {
+        return !PropertyMap.isEmpty(peekProperties());
+    }
+
+    /**
+     * Returns whether this tile has the same properties as the given tile.
+     *
+     * @param t the other tile
+     * @return <code>true</code> when both tiles have the same properties
+     */
+    public boolean hasSamePropertiesAs(Tile t) {
+        return PropertyMap.equal(peekProperties(), t.peekProperties());
+    }
+
+    /**
+     * Returns the properties of this tile without creating them, which are
+     * the default tile properties of its tileset when it has none itself.
+     */
+    private Properties peekProperties() {
+        if (properties != null) {
+            return properties;
+        }
+        return tileset != null ? tileset.getDefaultProperties() : null;
+    }
+
+    /**
+     * @return whether properties have been created for this tile
+     */
+    boolean hasOwnProperties() {
+        return properties != null;
+    }
+
+    /**
+     * Chains the properties of this tile to the given defaults. Properties
+     * the tile took from its previous defaults are kept. Properties that
+     * were set as plain {@link Properties} are left as they are.
+     *
+     * @param defaults the default tile properties of the tileset
+     */
+    void inheritProperties(Properties defaults) {
+        if (!(properties instanceof PropertyMap)) {
+            // Without properties, the tile is chained to the defaults of its
+            // tileset once its properties are created
+            return;
+        }
+        PropertyMap map = (PropertyMap) properties;
+        Properties previous = map.getDefaults();
+        if (previous == defaults) {
+            return;
+        }
+        if (previous != null) {
+            for (String name : PropertyMap.names(previous)) {
+                if (!map.containsKey(name)) {
+                    map.setProperty(name, previous.getProperty(name));
+                }
+            }
+        }
+        map.setDefaults(defaults);
+    }
+
     /**
      * Returns the tile id of this tile, relative to tileset.
      *
@@ -151,9 +226,9 @@ public class Tile
 
     /**
      * This drawing function handles drawing the tile image at the
-     * specified zoom level. It will attempt to use a cached copy,
-     * but will rescale if the requested zoom does not equal the
-     * current cache zoom.
+     * specified zoom level. It will use a scaled copy from the
+     * {@link MipmapCache} when there is one. Otherwise the image is scaled
+     * while drawing, and a scaled copy is made in the background.
      *
      * @param g Graphics instance to draw to
      * @param x x-coord to draw tile at
@@ -161,15 +236,56 @@ public class Tile
      * @param zoom Zoom level to draw the tile
      */
     public void drawRaw(Graphics g, int x, int y, double zoom) {
-        Image img = getScaledImage(zoom);
+        Image img = getImage();
+        if (img != null && zoom != 1.0) {
+            Image scaled = MipmapCache.get(img, zoom);
+            if (scaled == null) {
+                MipmapCache.request(img, zoom);
+                int width = (int) (img.getWidth(null) * zoom);
+                int height = (int) (img.getHeight(null) * zoom);
+                if (!drawFromAtlas(g, x, y, width, height)) {
+                    g.drawImage(img, x, y - height, width, height, null);
+                }
+                return;
+            }
+            img = scaled;
+        }
+
         if (img != null) {
-            g.drawImage(img, x, y - img.getHeight(null), null);
+            int width = img.getWidth(null);
+            int height = img.getHeight(null);
+            if (zoom != 1.0 || !drawFromAtlas(g, x, y, width, height)) {
+                g.drawImage(img, x, y - height, null);
+            }
         } else {
             // TODO: Allow drawing IDs when no image data exists as a
             // config option
         }
     }
 
+    /**
+     * Draws the image of this tile from the atlas image of its tileset,
+     * scaled to the given size. Drawing many tiles from the same image
+     * allows them to be drawn without switching between images.
+     *
+     * @return <code>true</code> when the tile was drawn, <code>false</code>
+     *         when its image is not in an atlas
+     */
+    private boolean drawFromAtlas(Graphics g, int x, int y,
+                                  int width, int height) {
+        if (tileset == null) {
+            return false;
+        }
+        Image atlas = tileset.getAtlas();
+        Rectangle r = tileset.getAtlasRegion(tileImageId);
+        if (atlas == null || r == null) {
+            return false;
+        }
+        g.drawImage(atlas, x, y - height, x + width, y,
+                r.x, r.y, r.x + r.width, r.y + r.height, null);
+        return true;
+    }
+
     /**
      * Draws the tile at the given pixel coordinates in the given
      * graphics context, and at the given zoom level
@@ -231,43 +347,19 @@ public class Tile
     }
 
     /**
-     * Returns a scaled instance of the tile image. Using a MediaTracker
-     * instance, this function waits until the scaling operation is done.
-     * <p/>
-     * Internally it caches the scaled image in order to optimize the common
-     * case, where the same scale is requested as the last time.
+     * Returns a scaled instance of the tile image. Scaled images are kept in
+     * the {@link MipmapCache}, so the image is only scaled when it is not
+     * found there.
      *
      * @param zoom the requested zoom level
      * @return Image
      */
     public Image getScaledImage(double zoom) {
-        if (zoom == 1.0) {
-            return getImage();
-        } else if (zoom == myZoom && scaledImage != null) {
-            return scaledImage;
-        } else {
-            Image img = getImage();
-            if (img != null)
-            {
-                scaledImage = img.getScaledInstance(
-                        (int)(getWidth() * zoom), (int)(getHeight() * zoom),
-                        BufferedImage.SCALE_SMOOTH);
-
-                MediaTracker mediaTracker = new MediaTracker(new Canvas());
-                mediaTracker.addImage(scaledImage, 0);
-                try {
-                    mediaTracker.waitForID(0);
-                }
-                catch (InterruptedException ie) {
-                    System.err.println(ie);
-                }
-                mediaTracker.removeImage(scaledImage);
-                myZoom = zoom;
-                return scaledImage;
-            }
+        Image img = getImage();
+        if (zoom == 1.0 || img == null) {
+            return img;
         }
-
-        return null;
+        return MipmapCache.getScaledImage(img, zoom);
     }
 
     /**
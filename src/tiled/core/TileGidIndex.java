@@ -0,0 +1,131 @@
+/*
+ *  Tiled Map Editor, (c) 2004-2008
+ *
+ *  This program is free software; you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation; either version 2 of the License, or
+ *  (at your option) any later version.
+ *
+ *  Adam Turk <aturk@biggeruniverse.com>
+ *  Bjorn Lindeijer <bjorn@lindeijer.nl>
+ */
+
+package tiled.core;
+
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * Resolves global tile ids to tilesets and tiles. The tilesets are sorted by
+ * their first global id, so that the tileset owning a global id can be found
+ * with a binary search. When the range of global ids is small enough, a flat
+ * table from global id to tile is built as well.
+ * <p>
+ * The index is a snapshot of the tilesets at the time it was created. The
+ * {@link Map} discards it whenever the tilesets change.
+ */
+final class TileGidIndex
+{
+    /** Largest global id range for which a flat lookup table is built. */
+    private static final int MAX_TABLE_SIZE = 1 << 20;
+
+    private final TileSet[] tilesets;
+    private final int[] firstGids;
+    private Tile[] table;
+
+    /**
+     * Creates an index of the given tilesets.
+     *
+     * @param list the tilesets of a map
+     */
+    TileGidIndex(List<TileSet> list) {
+        tilesets = list.toArray(new TileSet[list.size()]);
+
+        // A stable sort, so that the last of several tilesets sharing the
+        // same first global id wins, as it did with the linear search
+        Arrays.sort(tilesets, new Comparator<TileSet>() {
+            public int compare(TileSet a, TileSet b) {
+                return a.getFirstGid() < b.getFirstGid() ? -1 :
+                        a.getFirstGid() > b.getFirstGid() ? 1 : 0;
+            }
+        });
+
+        firstGids = new int[tilesets.length];
+        for (int i = 0; i < tilesets.length; i++) {
+            firstGids[i] = tilesets[i].getFirstGid();
+        }
+    }
+
+    /**
+     * Returns the tileset with the highest first global id not larger than
+     * the given global id.
+     *
+     * @param gid a global tile id
+     * @return the tileset, or <code>null</code> when there is none
+     */
+    TileSet findTileSet(int gid) {
+        int low = 0, high = firstGids.length - 1;
+        int found = -1;
+
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            if (firstGids[mid] <= gid) {
+                found = mid;
+                low = mid + 1;
+            } else {
+                high = mid - 1;
+            }
+        }
+
+        return found >= 0 ? tilesets[found] : null;
+    }
+
+    /**
+     * Returns the tile with the given global id.
+     *
+     * @param gid a global tile id
+     * @return the tile, or <code>null</code> when no tile has this id
+     */
+    Tile getTile(int gid) {
+        if (table == null) {
+            table = buildTable();
+        }
+        if (table.length > 0) {
+            return gid >= 0 && gid < table.length ? table[gid] : null;
+        }
+
+        TileSet tileset = findTileSet(gid);
+        return tileset != null ? tileset.getTile(gid - tileset.getFirstGid())
+                : null;
+    }
+
+    /**
+     * Builds the flat lookup table, or returns an empty table when the range
+     * of global ids is too large or does not start at a positive id.
+     */
+    private Tile[] buildTable() {
+        if (tilesets.length == 0 || firstGids[0] < 0) {
+            return new Tile[0];
+        }
+
+        final int last = tilesets.length - 1;
+        long size = (long) firstGids[last] + tilesets[last].getMaxTileId() + 1;
+        if (size > MAX_TABLE_SIZE) {
+            return new Tile[0];
+        }
+
+        Tile[] tiles = new Tile[(int) size];
+        for (int i = 0; i < tilesets.length; i++) {
+            final TileSet tileset = tilesets[i];
+            final int end = i < last ? firstGids[i + 1] :
+                    (int) size;
+            final int count = Math.min(end - firstGids[i],
+                    tileset.getMaxTileId() + 1);
+            for (int id = 0; id < count; id++) {
+                tiles[firstGids[i] + id] = tileset.getTile(id);
+            }
+        }
+        return tiles;
+    }
+}
@@ -15,42 +15,103 @@ package tiled.core;
 import java.awt.Point;
 import java.awt.Rectangle;
 import java.awt.geom.Area;
-import java.util.HashMap;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
 import java.util.Properties;
 
+import tiled.util.LongHashMap;
+
 /**
  * A TileLayer is a specialized MapLayer, used for tracking two dimensional
- * tile data.
+ * tile data. The cells are stored as integers in a {@link TileRaster}, and
+ * resolved to {@link Tile} instances through the {@link TilePalette} of the
+ * layer.
  *
  * @version $Id$
  */
 public class TileLayer extends MapLayer
 {
-    protected Tile[][] map;
-    protected HashMap<Object, Properties> tileInstanceProperties = new HashMap<Object, Properties>();
+    /**
+     * Layers with more cells than this use a sparse {@link ChunkedTileRaster}
+     * instead of a {@link FlatTileRaster}.
+     */
+    public static final int SPARSE_THRESHOLD = 512 * 512;
+
+    /**
+     * Layers with more cells than this keep them in a memory-mapped
+     * {@link MappedTileRaster}, so that they do not need to fit in memory.
+     */
+    public static final int MAPPED_THRESHOLD = 8192 * 8192;
+
+    protected TileRaster raster;
+    protected TilePalette palette;
+    private int[] usage;    // cells per palette index, null until needed
+
+    // Region changed during the current batch of changes, in tile
+    // coordinates. The region is empty while dirtyX2 <= dirtyX1.
+    private int changeDepth;
+    private int dirtyX1, dirtyY1, dirtyX2, dirtyY2;
+    private AnimationIndex animationIndex;  // null until needed
+    // Keyed by the packed cell position relative to the layer origin
+    protected LongHashMap<Properties> tileInstanceProperties = new LongHashMap<Properties>();
     
     private int tileWidth;
     private int tileHeight;
     
+    /**
+     * Returns the instance properties of the tile at the given position.
+     *
+     * @param x Tile-space x coordinate
+     * @param y Tile-space y coordinate
+     * @return the properties, or <code>null</code> when the cell has none
+     */
     public Properties getTileInstancePropertiesAt(int x, int y) {
         if (!bounds.contains(x, y)) {
             return null;
         }
-        Object key = new Point(x, y);
-        return (Properties) tileInstanceProperties.get(key);
+        return tileInstanceProperties.get(
+                LongHashMap.pack(x - bounds.x, y - bounds.y));
     }
 
+    /**
+     * Sets the instance properties of the tile at the given position. Does
+     * nothing if (x, y) falls outside of this layer.
+     *
+     * @param x   Tile-space x coordinate
+     * @param y   Tile-space y coordinate
+     * @param tip the new properties, or <code>null</code> to remove them
+     */
     public void setTileInstancePropertiesAt(int x, int y, Properties tip) {
         if (bounds.contains(x, y)) {
-            Object key = new Point(x, y);
-            tileInstanceProperties.put(key, tip);
+            tileInstanceProperties.put(
+                    LongHashMap.pack(x - bounds.x, y - bounds.y), tip);
         }
     }
 
+    /**
+     * Returns the positions of all tiles that have instance properties, in
+     * top down, left to right order. Only the cells that actually have
+     * properties are visited.
+     *
+     * @return a list of tile-space positions
+     */
+    public List<Point> getTileInstancePropertyLocations() {
+        long[] keys = tileInstanceProperties.keys();
+        List<Point> locations = new ArrayList<Point>(keys.length);
+        for (long key : keys) {
+            locations.add(new Point(LongHashMap.unpackX(key) + bounds.x,
+                    LongHashMap.unpackY(key) + bounds.y));
+        }
+        return locations;
+    }
+
     /**
      * Default contructor.
      */
     public TileLayer() {
+        setBounds(bounds);
     }
 
     /**
@@ -92,46 +153,29 @@ public class TileLayer extends MapLayer
      * @see MapLayer#rotate(int)
      */
     public void rotate(int angle) {
-        Tile[][] trans;
-        int xtrans = 0, ytrans = 0;
-
         if (!canEdit())
             return;
 
         switch (angle) {
             case ROTATE_90:
-                trans = new Tile[bounds.width][bounds.height];
-                xtrans = bounds.height - 1;
-                break;
             case ROTATE_180:
-                trans = new Tile[bounds.height][bounds.width];
-                xtrans = bounds.width - 1;
-                ytrans = bounds.height - 1;
-                break;
             case ROTATE_270:
-                trans = new Tile[bounds.width][bounds.height];
-                ytrans = bounds.width - 1;
                 break;
             default:
                 System.out.println("Unsupported rotation (" + angle + ")");
                 return;
         }
 
-        double ra = Math.toRadians(angle);
-        int cos_angle = (int)Math.round(Math.cos(ra));
-        int sin_angle = (int)Math.round(Math.sin(ra));
-
-        for (int y = 0; y < bounds.height; y++) {
-            for (int x = 0; x < bounds.width; x++) {
-                int xrot = x * cos_angle - y * sin_angle;
-                int yrot = x * sin_angle + y * cos_angle;
-                trans[yrot + ytrans][xrot + xtrans] = getTileAt(x+bounds.x, y+bounds.y);
-            }
+        Rectangle before = new Rectangle(bounds);
+        if (angle == ROTATE_180) {
+            raster.rotate180();
+        } else {
+            raster = raster.rotate(angle);
         }
-
-        bounds.width = trans[0].length;
-        bounds.height = trans.length;
-        map = trans;
+        transformInstanceProperties(angle);
+        bounds.width = raster.getWidth();
+        bounds.height = raster.getHeight();
+        markDirty(before.union(bounds));
     }
 
     /**
@@ -147,17 +191,40 @@ public class TileLayer extends MapLayer
         if (!canEdit())
             return;
 
-        Tile[][] mirror = new Tile[bounds.height][bounds.width];
-        for (int y = 0; y < bounds.height; y++) {
-            for (int x = 0; x < bounds.width; x++) {
-                if (dir == MIRROR_VERTICAL) {
-                    mirror[y][x] = map[bounds.height - 1 - y][x];
-                } else {
-                    mirror[y][x] = map[y][bounds.width - 1 - x];
-                }
+        raster.mirror(dir);
+        transformInstanceProperties(
+                dir == MIRROR_VERTICAL ? MIRROR_VERTICAL : MIRROR_HORIZONTAL);
+        markDirty(bounds);
+    }
+
+    /**
+     * Moves the tile instance properties along with their tiles when the
+     * layer is rotated or mirrored. Has to be called while the bounds still
+     * have the dimensions from before the transformation.
+     *
+     * @param op one of the rotation angles or mirror directions
+     */
+    private void transformInstanceProperties(int op) {
+        if (tileInstanceProperties.isEmpty()) {
+            return;
+        }
+
+        final int w = bounds.width, h = bounds.height;
+        LongHashMap<Properties> transformed = new LongHashMap<Properties>();
+        for (long key : tileInstanceProperties.keys()) {
+            final int x = LongHashMap.unpackX(key);
+            final int y = LongHashMap.unpackY(key);
+            long newKey;
+            switch (op) {
+                case ROTATE_90:  newKey = LongHashMap.pack(h - 1 - y, x); break;
+                case ROTATE_180: newKey = LongHashMap.pack(w - 1 - x, h - 1 - y); break;
+                case ROTATE_270: newKey = LongHashMap.pack(y, w - 1 - x); break;
+                case MIRROR_VERTICAL: newKey = LongHashMap.pack(x, h - 1 - y); break;
+                default: newKey = LongHashMap.pack(w - 1 - x, y); break;
             }
+            transformed.put(newKey, tileInstanceProperties.get(key));
         }
-        map = mirror;
+        tileInstanceProperties = transformed;
     }
 
     /**
@@ -168,26 +235,59 @@ public class TileLayer extends MapLayer
      *         <code>false</code> otherwise.
      */
     public boolean isUsed(Tile t) {
-        for (int y = 0; y < bounds.height; y++) {
-            for (int x = 0; x < bounds.width; x++) {
-                if (map[y][x] == t) {
-                    return true;
-                }
-            }
+        return getUsageCount(t) > 0;
+    }
+
+    /**
+     * Returns the number of cells in this layer that are set to the given
+     * tile. The counts are kept up to date as tiles are placed, so after
+     * the first call this is a constant time operation.
+     *
+     * @param t the tile to count, or <code>null</code> to count the empty
+     *          cells
+     * @return the number of cells using the tile
+     */
+    public int getUsageCount(Tile t) {
+        int index = palette.indexOf(t);
+        if (index < 0) {
+            return 0;
         }
-        return false;
+        int[] counts = getUsage();
+        return index < counts.length ? counts[index] : 0;
     }
 
-    public boolean isEmpty() {
-        for (int p = 0; p < 2; p++) {
-            for (int y = 0; y < bounds.height; y++) {
-                for (int x = p; x < bounds.width; x += 2) {
-                    if (map[y][x] != null)
-                        return false;
-                }
-            }
+    /**
+     * Returns the usage counts indexed by palette index, counting the cells
+     * of the raster when they are not known yet.
+     */
+    private int[] getUsage() {
+        if (usage == null) {
+            usage = new int[palette.size()];
+            raster.countValues(usage);
         }
-        return true;
+        return usage;
+    }
+
+    /**
+     * Moves <code>count</code> cells from one palette index to another in
+     * the usage counts, if these are being tracked.
+     */
+    private void updateUsage(int from, int to, int count) {
+        if (usage == null || count == 0) {
+            return;
+        }
+        if (to >= usage.length) {
+            // The palette may also have been grown by a clone of this layer
+            int[] grown = new int[Math.max(palette.size(), usage.length * 2)];
+            System.arraycopy(usage, 0, grown, 0, usage.length);
+            usage = grown;
+        }
+        usage[from] -= count;
+        usage[to] += count;
+    }
+
+    public boolean isEmpty() {
+        return raster.isEmpty();
     }
 
     /**
@@ -200,7 +300,10 @@ public class TileLayer extends MapLayer
      */
     protected void setBounds(Rectangle bounds) {
         super.setBounds(bounds);
-        map = new Tile[bounds.height][bounds.width];
+        raster = createRaster(bounds.width, bounds.height);
+        palette = new TilePalette();
+        usage = null;
+        markDirty(bounds);
 
         // Tile instance properties is null when this method is called from
         // the constructor of MapLayer
@@ -209,6 +312,135 @@ public class TileLayer extends MapLayer
         }
     }
     
+    /**
+     * Creates the raster used to store the cells of this layer. Large layers
+     * get a sparse raster, which only allocates memory for the areas that
+     * are actually painted. Huge layers are stored in a memory-mapped file.
+     *
+     * @param width  width of the raster
+     * @param height height of the raster
+     * @return a new, empty raster
+     * @throws IllegalStateException when the file for a huge layer could
+     *         not be created, with the <code>IOException</code> as its cause
+     */
+    protected TileRaster createRaster(int width, int height) {
+        if ((long) width * height > MAPPED_THRESHOLD) {
+            try {
+                return new MappedTileRaster(width, height);
+            } catch (IOException e) {
+                // Such a layer would not fit in memory either
+                throw new IllegalStateException("Could not create the file " +
+                        "for the tiles of a " + width + "x" + height +
+                        " layer: " + e.getLocalizedMessage(), e);
+            }
+        }
+        if ((long) width * height > SPARSE_THRESHOLD) {
+            return new ChunkedTileRaster(width, height);
+        }
+        return new FlatTileRaster(width, height);
+    }
+
+    /**
+     * Returns the raster storing the cells of this layer. The cell values
+     * are indices into the palette returned by {@link #getPalette()}.
+     *
+     * @return the raster of this layer
+     */
+    public TileRaster getRaster() {
+        return raster;
+    }
+
+    /**
+     * Returns the palette used to resolve the cells of this layer.
+     *
+     * @return the palette of this layer
+     */
+    public TilePalette getPalette() {
+        return palette;
+    }
+
+    /**
+     * Starts a batch of changes to the tiles of this layer. Until the
+     * matching call to {@link #endChange()}, the regions affected by changes
+     * are combined instead of being published one by one. Batches may be
+     * nested, the combined region is published when the outermost batch
+     * ends.
+     *
+     * @see MapLayerChangeEvent#CHANGETYPE_TILES
+     */
+    public void beginChange() {
+        changeDepth++;
+    }
+
+    /**
+     * Ends a batch of changes started with {@link #beginChange()}.
+     */
+    public void endChange() {
+        if (changeDepth == 0 || --changeDepth > 0 || dirtyX2 <= dirtyX1) {
+            return;
+        }
+
+        Rectangle region = new Rectangle(dirtyX1, dirtyY1,
+                dirtyX2 - dirtyX1, dirtyY2 - dirtyY1);
+        dirtyX2 = dirtyX1;
+        fireTilesChanged(region);
+    }
+
+    /**
+     * Records that the tiles in the given region (in tile coordinates) have
+     * changed, publishing the change right away unless a batch of changes is
+     * in progress.
+     */
+    private void markDirty(int x, int y, int width, int height) {
+        if (animationIndex != null) {
+            animationIndex.invalidate(x - bounds.x, y - bounds.y, width, height);
+        }
+        if (changeDepth == 0) {
+            if (hasMapLayerChangeListeners()) {
+                fireTilesChanged(new Rectangle(x, y, width, height));
+            }
+        } else if (dirtyX2 <= dirtyX1) {
+            dirtyX1 = x;
+            dirtyY1 = y;
+            dirtyX2 = x + width;
+            dirtyY2 = y + height;
+        } else {
+            dirtyX1 = Math.min(dirtyX1, x);
+            dirtyY1 = Math.min(dirtyY1, y);
+            dirtyX2 = Math.max(dirtyX2, x + width);
+            dirtyY2 = Math.max(dirtyY2, y + height);
+        }
+    }
+
+    private void markDirty(Rectangle region) {
+        if (!region.isEmpty()) {
+            markDirty(region.x, region.y, region.width, region.height);
+        }
+    }
+
+    /**
+     * Returns the cells in the given region that hold an
+     * {@link AnimatedTile}. Only the parts of the layer that changed since
+     * the previous call are scanned, so calling this repeatedly takes time
+     * proportional to the number of animated cells in the region.
+     *
+     * @param region the region in tile coordinates
+     * @return the cells as pairs of x and y tile coordinates
+     */
+    public int[] getAnimatedCells(Rectangle region) {
+        if (animationIndex == null) {
+            animationIndex = new AnimationIndex();
+        }
+        final Rectangle r = new Rectangle(region);
+        r.translate(-bounds.x, -bounds.y);
+        final int[] cells = animationIndex.getCells(raster, palette, r);
+        for (int i = 0; i < cells.length; i += 2) {
+            cells[i] += bounds.x;
+            cells[i + 1] += bounds.y;
+        }
+        return cells;
+    }
+
     /**
      * Creates a diff of the two layers, <code>ml</code> is considered the
      * significant difference.
@@ -281,11 +513,12 @@ public class TileLayer extends MapLayer
                     "Attempted to remove tile when this layer is locked.");
         }
 
-        for (int y = 0; y < bounds.height; y++) {
-            for (int x = 0; x < bounds.width; x++) {
-                if (map[y][x] == tile) {
-                    setTileAt(x + bounds.x, y + bounds.y, null);
-                }
+        int index = palette.indexOf(tile);
+        if (index > 0) {
+            int count = raster.replace(index, 0);
+            updateUsage(index, 0, count);
+            if (count > 0) {
+                markDirty(bounds);
             }
         }
     }
@@ -300,10 +533,65 @@ public class TileLayer extends MapLayer
      */
     public void setTileAt(int tx, int ty, Tile ti) {
         if (bounds.contains(tx, ty) && !getLocked()) {
-            map[ty - bounds.y][tx - bounds.x] = ti;
+            final int x = tx - bounds.x;
+            final int y = ty - bounds.y;
+            final int index = palette.findOrAdd(ti);
+            final int old = raster.get(x, y);
+            if (old != index) {
+                raster.set(x, y, index);
+                updateUsage(old, index, 1);
+                markDirty(tx, ty, 1, 1);
+            }
         }
     }
-    
+
+    /**
+     * Sets a horizontal run of cells, starting at the specified position.
+     * The cell values are indices into the palette of this layer, as
+     * returned by <code>getPalette().findOrAdd(tile)</code>. Cells falling
+     * outside of this layer are skipped. This is faster than setting the
+     * tiles one by one, since the cells of the run are updated together.
+     *
+     * @param tx     x position of the first cell
+     * @param ty     y position of the cells
+     * @param values the palette indices to set, 0 for empty cells
+     * @param offset index of the first value in <code>values</code>
+     * @param length the number of cells to set
+     * @see #getPalette()
+     */
+    public void setCellsAt(int tx, int ty, int[] values, int offset,
+                           int length) {
+        final int x0 = Math.max(tx, bounds.x);
+        final int x1 = Math.min(tx + length, bounds.x + bounds.width);
+        if (ty < bounds.y || ty >= bounds.y + bounds.height || x0 >= x1 ||
+                getLocked()) {
+            return;
+        }
+
+        final int w = x1 - x0;
+        final int start = offset + x0 - tx;
+        final int[] old = new int[w];
+
+        raster.getCells(x0 - bounds.x, ty - bounds.y, w, old, 0);
+        int first = -1, last = -1;
+        for (int i = 0; i < w; i++) {
+            if (values[start + i] != old[i]) {
+                updateUsage(old[i], values[start + i], 1);
+                if (first < 0) {
+                    first = i;
+                }
+                last = i;
+            }
+        }
+
+        if (first >= 0) {
+            final int n = last - first + 1;
+            raster.setCells(x0 + first - bounds.x, ty - bounds.y, n, values,
+                    start + first);
+            markDirty(x0 + first, ty, n, 1);
+        }
+    }
+
     /**
      * Returns the tile at the specified position.
      *
@@ -314,7 +602,8 @@ public class TileLayer extends MapLayer
      */
     public Tile getTileAt(int tx, int ty) {
         return (bounds.contains(tx, ty)) ?
-                map[ty - bounds.y][tx - bounds.x] : null;
+                palette.getTile(raster.get(tx - bounds.x, ty - bounds.y)) :
+                null;
     }
 
     /**
@@ -326,14 +615,16 @@ public class TileLayer extends MapLayer
      *         <code>null</code> if it is not found
      */
     public Point locationOf(Tile t) {
-        for (int y = bounds.y; y < bounds.height + bounds.y; y++) {
-            for (int x = bounds.x; x < bounds.width + bounds.x; x++) {
-                if (getTileAt(x, y) == t) {
-                    return new Point(x, y);
-                }
-            }
+        int index = palette.indexOf(t);
+        if (index < 0) {
+            return null;
         }
-        return null;
+
+        Point location = raster.locate(index, false);
+        if (location != null) {
+            location.translate(bounds.x, bounds.y);
+        }
+        return location;
     }
 
     /**
@@ -347,13 +638,180 @@ public class TileLayer extends MapLayer
         if (!canEdit())
             return;
 
-        for (int y = bounds.y; y < bounds.y + bounds.height; y++) {
-            for (int x = bounds.x; x < bounds.x + bounds.width; x++) {
-                if(getTileAt(x,y) == find) {
-                    setTileAt(x, y, replace);
+        int index = palette.indexOf(find);
+        if (index >= 0) {
+            int replacement = palette.findOrAdd(replace);
+            int count = raster.replace(index, replacement);
+            updateUsage(index, replacement, count);
+            if (count > 0) {
+                markDirty(bounds);
+            }
+        }
+    }
+
+    /**
+     * Sets all cells in the given region to the given tile. Cells outside
+     * of this layer are ignored.
+     *
+     * @param region the region in tile coordinates
+     * @param tile   the tile to place, or <code>null</code> to clear
+     */
+    public void fillRegion(Rectangle region, Tile tile) {
+        transfer(new TileMask(region), null, tile, false);
+    }
+
+    /**
+     * Sets all cells of the given mask to the given tile. Cells outside of
+     * this layer are ignored.
+     *
+     * @param mask the cells to set
+     * @param tile the tile to place, or <code>null</code> to clear
+     */
+    public void fillRegion(TileMask mask, Tile tile) {
+        transfer(mask, null, tile, false);
+    }
+
+    /**
+     * Copies the cells in the given region from another layer onto this
+     * layer, including the empty cells. Cells outside of the other layer
+     * are considered empty.
+     *
+     * @param other  the layer to copy from
+     * @param region the region in tile coordinates
+     */
+    public void copyRegion(TileLayer other, Rectangle region) {
+        transfer(new TileMask(region), other, null, false);
+    }
+
+    /**
+     * Copies the cells of the given mask from another layer onto this
+     * layer, including the empty cells.
+     *
+     * @param other the layer to copy from
+     * @param mask  the cells to copy
+     * @see #copyRegion(TileLayer, Rectangle)
+     */
+    public void copyRegion(TileLayer other, TileMask mask) {
+        transfer(mask, other, null, false);
+    }
+
+    /**
+     * Copies the non-empty cells in the given region from another layer
+     * onto this layer. Cells that are empty in the other layer are left
+     * untouched.
+     *
+     * @param other  the layer to merge from
+     * @param region the region in tile coordinates
+     */
+    public void mergeRegion(TileLayer other, Rectangle region) {
+        transfer(new TileMask(region), other, null, true);
+    }
+
+    /**
+     * Copies the non-empty cells of the given mask from another layer onto
+     * this layer.
+     *
+     * @param other the layer to merge from
+     * @param mask  the cells to merge
+     * @see #mergeRegion(TileLayer, Rectangle)
+     */
+    public void mergeRegion(TileLayer other, TileMask mask) {
+        transfer(mask, other, null, true);
+    }
+
+    /**
+     * Sets the cells of the given mask, one row at a time. The new values
+     * are either taken from the <code>source</code> layer, or when it is
+     * <code>null</code>, they are all set to the <code>fill</code> tile.
+     * With <code>merge</code> set, empty source cells are skipped.
+     */
+    private void transfer(TileMask mask, TileLayer source, Tile fill,
+                          boolean merge)
+    {
+        if (getLocked())
+            return;
+
+        final Rectangle area = mask.getBounds().intersection(bounds);
+        if (area.isEmpty())
+            return;
+
+        final int fillIndex = source == null ? palette.findOrAdd(fill) : 0;
+
+        // Source palette indices translated to this palette, 0 while unknown
+        final int[] remap = source != null && source.palette != palette ?
+                new int[source.palette.size()] : null;
+
+        final int[] cells = new int[area.width];
+        final int[] old = new int[area.width];
+
+        beginChange();
+        for (int y = area.y; y < area.y + area.height; y++) {
+            final int[] spans = mask.getSpans(y);
+            for (int s = 0; s < spans.length; s += 2) {
+                final int x0 = Math.max(spans[s], area.x);
+                final int x1 = Math.min(spans[s + 1], area.x + area.width);
+                if (x0 >= x1) {
+                    continue;
+                }
+                final int w = x1 - x0;
+
+                if (source == null) {
+                    Arrays.fill(cells, 0, w, fillIndex);
+                } else {
+                    source.readCells(x0, y, w, cells);
+                    if (remap != null) {
+                        for (int i = 0; i < w; i++) {
+                            final int v = cells[i];
+                            if (v != 0) {
+                                if (remap[v] == 0) {
+                                    remap[v] = palette.findOrAdd(
+                                            source.palette.getTile(v));
+                                }
+                                cells[i] = remap[v];
+                            }
+                        }
+                    }
+                }
+
+                raster.getCells(x0 - bounds.x, y - bounds.y, w, old, 0);
+                int first = -1, last = -1;
+                for (int i = 0; i < w; i++) {
+                    if (merge && cells[i] == 0) {
+                        cells[i] = old[i];
+                    } else if (cells[i] != old[i]) {
+                        updateUsage(old[i], cells[i], 1);
+                        if (first < 0) {
+                            first = i;
+                        }
+                        last = i;
+                    }
+                }
+
+                if (first >= 0) {
+                    final int n = last - first + 1;
+                    raster.setCells(x0 + first - bounds.x, y - bounds.y, n,
+                            cells, first);
+                    markDirty(x0 + first, y, n, 1);
                 }
             }
         }
+        endChange();
+    }
+
+    /**
+     * Reads a horizontal run of raw cell values, given in tile coordinates.
+     * Cells outside of this layer are read as empty.
+     */
+    private void readCells(int x, int y, int w, int[] dest) {
+        final int x0 = Math.max(x, bounds.x);
+        final int x1 = Math.min(x + w, bounds.x + bounds.width);
+        if (y < bounds.y || y >= bounds.y + bounds.height || x0 >= x1) {
+            Arrays.fill(dest, 0, w, 0);
+            return;
+        }
+        Arrays.fill(dest, 0, x0 - x, 0);
+        Arrays.fill(dest, x1 - x, w, 0);
+        raster.getCells(x0 - bounds.x, y - bounds.y, x1 - x0, dest, x0 - x);
     }
 
     /**
@@ -363,14 +821,13 @@ public class TileLayer extends MapLayer
         if (!other.canEdit())
             return;
 
-        for (int y = bounds.y; y < bounds.y + bounds.height; y++) {
-            for (int x = bounds.x; x < bounds.x + bounds.width; x++) {
-                Tile tile = getTileAt(x, y);
-                if (tile != null) {
-                    ((TileLayer) other).setTileAt(x, y, tile);
-                }
-            }
+        TileLayer otherLayer = (TileLayer) other;
+        otherLayer.beginChange();
+        for (Rectangle region : raster.getDataRegions()) {
+            region.translate(bounds.x, bounds.y);
+            otherLayer.mergeRegion(this, region);
         }
+        otherLayer.endChange();
     }
 
     /**
@@ -384,16 +841,7 @@ public class TileLayer extends MapLayer
         if (!canEdit())
             return;
 
-        Rectangle boundBox = mask.getBounds();
-
-        for (int y = boundBox.y; y < boundBox.y + boundBox.height; y++) {
-            for (int x = boundBox.x; x < boundBox.x + boundBox.width; x++) {
-                Tile tile = ((TileLayer) other).getTileAt(x, y);
-                if (mask.contains(x, y) && tile != null) {
-                    setTileAt(x, y, tile);
-                }
-            }
-        }
+        mergeRegion((TileLayer) other, new TileMask(mask));
     }
 
     /**
@@ -406,12 +854,8 @@ public class TileLayer extends MapLayer
     public void copyFrom(MapLayer other) {
         if (!canEdit())
             return;
-            
-        for (int y = bounds.y; y < bounds.y + bounds.height; y++) {
-            for (int x = bounds.x; x < bounds.x + bounds.width; x++) {
-                setTileAt(x, y, ((TileLayer) other).getTileAt(x, y));
-            }
-        }
+
+        copyRegion((TileLayer) other, bounds);
     }
 
     /**
@@ -425,15 +869,7 @@ public class TileLayer extends MapLayer
         if (!canEdit())
             return;
 
-        Rectangle boundBox = mask.getBounds();
-
-        for (int y = boundBox.y; y < boundBox.y + boundBox.height; y++) {
-            for (int x = boundBox.x; x < boundBox.x + boundBox.width; x++) {
-                if (mask.contains(x,y)) {
-                    setTileAt(x, y, ((TileLayer) other).getTileAt(x, y));
-                }
-            }
-        }
+        copyRegion((TileLayer) other, new TileMask(mask));
     }
 
     /**
@@ -454,16 +890,17 @@ public class TileLayer extends MapLayer
             return;    // can't copy to this layer
         }
         
+        Rectangle before = new Rectangle(tl.bounds);
         super.copyTo(other);
         
         tl.tileWidth = tileWidth;
         tl.tileHeight = tileHeight;
-        for (int y = bounds.y; y < bounds.y + bounds.height; y++) {
-            for (int x = bounds.x; x < bounds.x + bounds.width; x++) {
-                tl.setTileAt(x, y, getTileAt(x, y));
-            }
-        }
-        
+
+        // The bounds were just copied over, so the data is copied as a whole
+        tl.raster = raster.copy();
+        tl.palette = palette;
+        tl.usage = usage != null ? usage.clone() : null;
+        tl.markDirty(before.union(tl.bounds));
     }
 
     /**
@@ -476,22 +913,21 @@ public class TileLayer extends MapLayer
     public Object clone() throws CloneNotSupportedException {
         TileLayer clone = (TileLayer) super.clone();
 
-        // Clone the layer data
-        clone.map = new Tile[map.length][];
-        clone.tileInstanceProperties = new HashMap<Object, Properties>();
-
-        for (int i = 0; i < map.length; i++) {
-            clone.map[i] = new Tile[map[i].length];
-            System.arraycopy(map[i], 0, clone.map[i], 0, map[i].length);
-
-            for (int j = 0; j < map[i].length; j++) {
-                Properties p = getTileInstancePropertiesAt(i, j);
-
-                if (p != null) {
-                    Integer key = i + j * bounds.width;
-                    clone.tileInstanceProperties.put(key, (Properties) p.clone());
-                }
-            }
+        // Clone the layer data, which shares the storage with this layer
+        // until either is modified. The palette only ever grows, so it can
+        // be shared with the clone.
+        clone.raster = raster.copy();
+        if (usage != null) {
+            clone.usage = usage.clone();
+        }
+        clone.changeDepth = 0;
+        clone.dirtyX2 = clone.dirtyX1;
+        clone.animationIndex = null;
+        clone.tileInstanceProperties = new LongHashMap<Properties>();
+
+        for (long key : tileInstanceProperties.keys()) {
+            Properties p = tileInstanceProperties.get(key);
+            clone.tileInstanceProperties.put(key, (Properties) p.clone());
         }
 
         return clone;
@@ -509,27 +945,26 @@ public class TileLayer extends MapLayer
         if (getLocked())
             return;
 
-        Tile[][] newMap = new Tile[height][width];
-        HashMap<Object, Properties> newTileInstanceProperties = new HashMap<Object, Properties>();
+        TileRaster newRaster = createRaster(width, height);
+        raster.copyTo(newRaster, dx, dy);
+        LongHashMap<Properties> newTileInstanceProperties = new LongHashMap<Properties>();
 
-        int maxX = Math.min(width, bounds.width + dx);
-        int maxY = Math.min(height, bounds.height + dy);
-
-        for (int x = Math.max(0, dx); x < maxX; x++) {
-            for (int y = Math.max(0, dy); y < maxY; y++) {
-                newMap[y][x] = getTileAt(x - dx, y - dy);
-
-                Properties tip = getTileInstancePropertiesAt(x - dx, y - dy);
-                if (tip != null) {
-                    newTileInstanceProperties.put(new Point(x, y), tip);
-                }
+        for (long key : tileInstanceProperties.keys()) {
+            int x = LongHashMap.unpackX(key) + dx;
+            int y = LongHashMap.unpackY(key) + dy;
+            if (x >= 0 && y >= 0 && x < width && y < height) {
+                newTileInstanceProperties.put(LongHashMap.pack(x, y),
+                        tileInstanceProperties.get(key));
             }
         }
 
-        map = newMap;
+        Rectangle before = new Rectangle(bounds);
+        raster = newRaster;
+        usage = null;
         tileInstanceProperties = newTileInstanceProperties;
         bounds.width = width;
         bounds.height = height;
+        markDirty(before.union(bounds));
     }
     
     /// sets both tile width and tile height for this layer. Equivalent to
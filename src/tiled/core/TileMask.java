@@ -0,0 +1,286 @@
+/*
+ *  Tiled Map Editor, (c) 2004-2008
+ *
+ *  This program is free software; you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation; either version 2 of the License, or
+ *  (at your option) any later version.
+ *
+ *  Adam Turk <aturk@biggeruniverse.com>
+ *  Bjorn Lindeijer <bjorn@lindeijer.nl>
+ */
+
+package tiled.core;
+
+import java.awt.Rectangle;
+import java.awt.geom.Area;
+import java.awt.geom.PathIterator;
+import java.awt.geom.Rectangle2D;
+import java.util.Arrays;
+
+/**
+ * A set of tile positions, stored as horizontal spans of cells per row. A
+ * mask is created once from a rectangle or an {@link Area}, after which the
+ * masked operations of {@link TileLayer} can process it row by row instead
+ * of testing every cell against the area.
+ * <p>
+ * A cell (x, y) is part of a mask created from an area exactly when
+ * <code>area.contains(x, y)</code>.
+ */
+public class TileMask
+{
+    private static final int[] NO_SPANS = new int[0];
+
+    private final Rectangle bounds;
+    private final int[][] rows;     // spans per row, see getSpans(int)
+
+    /**
+     * Creates a mask covering the given rectangle.
+     *
+     * @param r the rectangle in tile coordinates
+     */
+    public TileMask(Rectangle r) {
+        bounds = new Rectangle(r);
+        if (bounds.isEmpty()) {
+            bounds.setSize(0, 0);
+        }
+        rows = new int[bounds.height][];
+        Arrays.fill(rows, new int[] {bounds.x, bounds.x + bounds.width});
+    }
+
+    /**
+     * Creates a mask of the cells whose top left corner is contained in the
+     * given area.
+     *
+     * @param area the area in tile coordinates
+     */
+    public TileMask(Area area) {
+        bounds = area.getBounds();
+        if (bounds.isEmpty()) {
+            bounds.setSize(0, 0);
+        }
+        rows = new int[bounds.height][];
+
+        if (area.isRectangular()) {
+            // Rectangle2D.contains includes the top and left edges only
+            final Rectangle2D r = area.getBounds2D();
+            final int x0 = (int) Math.ceil(r.getMinX());
+            final int x1 = (int) Math.ceil(r.getMaxX());
+            final int y0 = (int) Math.ceil(r.getMinY());
+            final int y1 = (int) Math.ceil(r.getMaxY());
+            final int[] span = x0 < x1 ? new int[] {x0, x1} : NO_SPANS;
+            for (int y = 0; y < rows.length; y++) {
+                final int ty = bounds.y + y;
+                rows[y] = ty >= y0 && ty < y1 ? span : NO_SPANS;
+            }
+        } else if (!scanRectilinear(area)) {
+            scanArea(area);
+        }
+    }
+
+    /**
+     * Fills in the spans for an area made up of horizontal and vertical
+     * edges only, which is the case for any selection made of tiles. The
+     * crossings of the edges with each row are summed up according to the
+     * winding rule of the area.
+     *
+     * @return <code>false</code> when the area has other kinds of edges, in
+     *         which case nothing was filled in
+     */
+    private boolean scanRectilinear(Area area) {
+        // Vertical edges as (x, top, bottom, direction)
+        double[] edges = new double[64];
+        int edgeCount = 0;
+
+        final double[] coords = new double[6];
+        double startX = 0, startY = 0, lastX = 0, lastY = 0;
+        final PathIterator it = area.getPathIterator(null);
+        final boolean nonZero = it.getWindingRule() == PathIterator.WIND_NON_ZERO;
+
+        for (; !it.isDone(); it.next()) {
+            double x, y;
+            switch (it.currentSegment(coords)) {
+                case PathIterator.SEG_MOVETO:
+                    startX = lastX = coords[0];
+                    startY = lastY = coords[1];
+                    continue;
+                case PathIterator.SEG_LINETO:
+                    x = coords[0];
+                    y = coords[1];
+                    break;
+                case PathIterator.SEG_CLOSE:
+                    x = startX;
+                    y = startY;
+                    break;
+                default:
+                    return false;
+            }
+
+            if (x == lastX && y != lastY) {
+                if (edgeCount * 4 == edges.length) {
+                    double[] grown = new double[edges.length * 2];
+                    System.arraycopy(edges, 0, grown, 0, edges.length);
+                    edges = grown;
+                }
+                final int e = edgeCount++ * 4;
+                edges[e] = x;
+                edges[e + 1] = Math.min(y, lastY);
+                edges[e + 2] = Math.max(y, lastY);
+                edges[e + 3] = y > lastY ? 1 : -1;
+            } else if (y != lastY) {
+                return false;
+            }
+            lastX = x;
+            lastY = y;
+        }
+
+        final double[] crossings = new double[edgeCount];
+        final int[] winding = new int[edgeCount];
+        int[] spans = new int[16];
+
+        for (int y = 0; y < rows.length; y++) {
+            // A cell is sampled at its top left corner, which is inside when
+            // the interior lies to the right and below it
+            final double ty = bounds.y + y;
+            int n = 0;
+            for (int i = 0; i < edgeCount * 4; i += 4) {
+                if (edges[i + 1] <= ty && ty < edges[i + 2]) {
+                    // Insertion sort, rows rarely cross many edges
+                    int j = n++;
+                    for (; j > 0 && crossings[j - 1] > edges[i]; j--) {
+                        crossings[j] = crossings[j - 1];
+                        winding[j] = winding[j - 1];
+                    }
+                    crossings[j] = edges[i];
+                    winding[j] = (int) edges[i + 3];
+                }
+            }
+
+            int count = 0;
+            int w = 0;
+            int spanStart = 0;
+            boolean inside = false;
+            for (int i = 0; i < n; i++) {
+                w += winding[i];
+                if (i + 1 < n && crossings[i + 1] == crossings[i]) {
+                    continue;
+                }
+                final boolean nowInside = nonZero ? w != 0 : (w & 1) != 0;
+                if (nowInside == inside) {
+                    continue;
+                }
+                inside = nowInside;
+
+                final int cell = (int) Math.ceil(crossings[i]);
+                if (inside) {
+                    spanStart = cell;
+                } else if (cell > spanStart) {
+                    if (count > 0 && spans[count - 1] >= spanStart) {
+                        spans[count - 1] = cell;
+                        continue;
+                    }
+                    if (count == spans.length) {
+                        int[] grown = new int[spans.length * 2];
+                        System.arraycopy(spans, 0, grown, 0, count);
+                        spans = grown;
+                    }
+                    spans[count++] = spanStart;
+                    spans[count++] = cell;
+                }
+            }
+            rows[y] = toSpans(spans, count);
+        }
+        return true;
+    }
+
+    /**
+     * Fills in the spans by testing each cell against the area, for areas
+     * with curved or diagonal edges.
+     */
+    private void scanArea(Area area) {
+        int[] spans = new int[16];
+        for (int y = 0; y < rows.length; y++) {
+            final int ty = bounds.y + y;
+            int count = 0;
+            int spanStart = 0;
+            boolean inside = false;
+            for (int x = bounds.x; x <= bounds.x + bounds.width; x++) {
+                final boolean contained = x < bounds.x + bounds.width &&
+                        area.contains(x, ty);
+                if (contained && !inside) {
+                    spanStart = x;
+                } else if (!contained && inside) {
+                    if (count == spans.length) {
+                        int[] grown = new int[spans.length * 2];
+                        System.arraycopy(spans, 0, grown, 0, count);
+                        spans = grown;
+                    }
+                    spans[count++] = spanStart;
+                    spans[count++] = x;
+                }
+                inside = contained;
+            }
+            rows[y] = toSpans(spans, count);
+        }
+    }
+
+    private static int[] toSpans(int[] spans, int count) {
+        if (count == 0) {
+            return NO_SPANS;
+        }
+        int[] row = new int[count];
+        System.arraycopy(spans, 0, row, 0, count);
+        return row;
+    }
+
+    /**
+     * Returns the bounds of this mask. All cells of the mask lie within this
+     * rectangle.
+     *
+     * @return a new rectangle in tile coordinates
+     */
+    public Rectangle getBounds() {
+        return new Rectangle(bounds);
+    }
+
+    /**
+     * Returns the spans of cells in the given row. The spans are stored in
+     * pairs, each pair giving the x coordinate of the first cell of the span
+     * and the x coordinate just past the last cell. The spans are sorted and
+     * do not overlap. The returned array must not be modified.
+     *
+     * @param y the row in tile coordinates
+     * @return the spans, an empty array when the row has no cells
+     */
+    public int[] getSpans(int y) {
+        y -= bounds.y;
+        return y >= 0 && y < rows.length ? rows[y] : NO_SPANS;
+    }
+
+    /**
+     * @param x x coordinate of the cell
+     * @param y y coordinate of the cell
+     * @return <code>true</code> if the cell is part of this mask
+     */
+    public boolean contains(int x, int y) {
+        final int[] spans = getSpans(y);
+        for (int i = 0; i < spans.length && spans[i] <= x; i += 2) {
+            if (x < spans[i + 1]) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @return <code>true</code> if this mask contains no cells
+     */
+    public boolean isEmpty() {
+        for (int[] spans : rows) {
+            if (spans.length > 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
@@ -0,0 +1,127 @@
+/*
+ *  Tiled Map Editor, (c) 2004-2008
+ *
+ *  This program is free software; you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation; either version 2 of the License, or
+ *  (at your option) any later version.
+ *
+ *  Adam Turk <aturk@biggeruniverse.com>
+ *  Bjorn Lindeijer <bjorn@lindeijer.nl>
+ */
+
+package tiled.core;
+
+import java.util.IdentityHashMap;
+
+/**
+ * Maps the {@link Tile} instances placed on a tile layer to small integer
+ * indices, so that the layer itself only needs to store one <code>int</code>
+ * per cell. Index 0 is reserved for the empty cell (<code>null</code>).
+ * <p>
+ * A palette only ever grows, which means an index stays valid for as long as
+ * the palette exists. This allows layers and their clones to share a palette
+ * and to exchange raw cell data without translating it.
+ *
+ * @see TileRaster
+ * @see TileLayer
+ */
+public class TilePalette
+{
+    private Tile[] tiles;
+    private int size;
+    private final IdentityHashMap<Tile, Integer> indices;
+
+    // One entry cache, since the same tile is usually set many times in a row
+    private Tile lastTile;
+    private int lastIndex;
+
+    private boolean animated;
+
+    /**
+     * Constructs an empty palette.
+     */
+    public TilePalette() {
+        tiles = new Tile[16];
+        size = 1;
+        indices = new IdentityHashMap<Tile, Integer>();
+    }
+
+    /**
+     * Returns the index of the given tile in this palette.
+     *
+     * @param tile the tile to look up, may be <code>null</code>
+     * @return the index of the tile, 0 for <code>null</code> or -1 when the
+     *         tile is not part of this palette
+     */
+    public int indexOf(Tile tile) {
+        if (tile == null) {
+            return 0;
+        }
+        if (tile == lastTile) {
+            return lastIndex;
+        }
+        Integer index = indices.get(tile);
+        if (index == null) {
+            return -1;
+        }
+        lastTile = tile;
+        lastIndex = index.intValue();
+        return lastIndex;
+    }
+
+    /**
+     * Returns the index of the given tile, adding it to the palette when it
+     * is not part of it yet.
+     *
+     * @param tile the tile to look up, may be <code>null</code>
+     * @return the index of the tile, 0 for <code>null</code>
+     */
+    public int findOrAdd(Tile tile) {
+        int index = indexOf(tile);
+        if (index >= 0) {
+            return index;
+        }
+
+        if (size == tiles.length) {
+            Tile[] grown = new Tile[size * 2];
+            System.arraycopy(tiles, 0, grown, 0, size);
+            tiles = grown;
+        }
+
+        index = size++;
+        tiles[index] = tile;
+        indices.put(tile, Integer.valueOf(index));
+        animated |= tile instanceof AnimatedTile;
+        lastTile = tile;
+        lastIndex = index;
+        return index;
+    }
+
+    /**
+     * Returns the tile at the given index.
+     *
+     * @param index a palette index
+     * @return the tile with the given index, or <code>null</code> for index 0
+     */
+    public Tile getTile(int index) {
+        return tiles[index];
+    }
+
+    /**
+     * @return <code>true</code> if any tile in this palette is an
+     *         {@link AnimatedTile}
+     */
+    public boolean hasAnimatedTiles() {
+        return animated;
+    }
+
+    /**
+     * Returns the number of indices in use, including the empty index 0.
+     *
+     * @return the number of indices in use
+     */
+    public int size() {
+        return size;
+    }
+}
@@ -0,0 +1,330 @@
+/*
+ *  Tiled Map Editor, (c) 2004-2008
+ *
+ *  This program is free software; you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation; either version 2 of the License, or
+ *  (at your option) any later version.
+ *
+ *  Adam Turk <aturk@biggeruniverse.com>
+ *  Bjorn Lindeijer <bjorn@lindeijer.nl>
+ */
+
+package tiled.core;
+
+import java.awt.Point;
+import java.awt.Rectangle;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A two dimensional grid of integer cell values, used by {@link TileLayer} to
+ * store its tile data. The values are indices into a {@link TilePalette},
+ * where 0 stands for an empty cell. Coordinates are relative to the top left
+ * corner of the raster.
+ * <p>
+ * Subclasses only need to implement cell access; the bulk operations defined
+ * here fall back to cell by cell copies and should be overridden where the
+ * storage allows something faster.
+ */
+public abstract class TileRaster
+{
+    protected final int width;
+    protected final int height;
+
+    protected TileRaster(int width, int height) {
+        this.width = width;
+        this.height = height;
+    }
+
+    /**
+     * @return the width of this raster in cells
+     */
+    public int getWidth() {
+        return width;
+    }
+
+    /**
+     * @return the height of this raster in cells
+     */
+    public int getHeight() {
+        return height;
+    }
+
+    /**
+     * Returns the value of the cell at (x, y). The coordinates are not
+     * checked.
+     *
+     * @param x x coordinate of the cell
+     * @param y y coordinate of the cell
+     * @return the cell value
+     */
+    public abstract int get(int x, int y);
+
+    /**
+     * Sets the value of the cell at (x, y). The coordinates are not checked.
+     *
+     * @param x     x coordinate of the cell
+     * @param y     y coordinate of the cell
+     * @param value the new cell value
+     */
+    public abstract void set(int x, int y, int value);
+
+    /**
+     * Creates a new, empty raster of the same kind as this one.
+     *
+     * @param width  width of the new raster
+     * @param height height of the new raster
+     * @return the new raster
+     */
+    protected abstract TileRaster create(int width, int height);
+
+    /**
+     * Creates an independent copy of this raster. Implementations may share
+     * storage between the copy and this raster for as long as neither of
+     * them is modified, so taking a copy should be cheap.
+     *
+     * @return the copy
+     */
+    public abstract TileRaster copy();
+
+    /**
+     * Copies the cells of this raster onto the given raster, shifted by
+     * (dx, dy). Cells falling outside of the target raster are dropped, and
+     * cells of the target not covered by this raster are left untouched.
+     *
+     * @param target the raster to copy to
+     * @param dx     the shift in x direction
+     * @param dy     the shift in y direction
+     * @see MapLayer#resize(int, int, int, int)
+     */
+    public void copyTo(TileRaster target, int dx, int dy) {
+        final int maxX = Math.min(target.width, width + dx);
+        final int maxY = Math.min(target.height, height + dy);
+
+        for (int y = Math.max(0, dy); y < maxY; y++) {
+            for (int x = Math.max(0, dx); x < maxX; x++) {
+                target.set(x, y, get(x - dx, y - dy));
+            }
+        }
+    }
+
+    /**
+     * Returns a rotated copy of this raster. For 90 and 270 degrees the width
+     * and height of the result are swapped.
+     *
+     * @param angle one of {@link MapLayer#ROTATE_90},
+     *              {@link MapLayer#ROTATE_180} or {@link MapLayer#ROTATE_270}
+     * @return the rotated raster
+     * @throws IllegalArgumentException when the angle is not supported
+     */
+    public TileRaster rotate(int angle) {
+        TileRaster rotated;
+
+        switch (angle) {
+            case MapLayer.ROTATE_90:
+                rotated = create(height, width);
+                for (int y = 0; y < height; y++) {
+                    for (int x = 0; x < width; x++) {
+                        rotated.set(height - 1 - y, x, get(x, y));
+                    }
+                }
+                break;
+            case MapLayer.ROTATE_180:
+                rotated = create(width, height);
+                for (int y = 0; y < height; y++) {
+                    for (int x = 0; x < width; x++) {
+                        rotated.set(width - 1 - x, height - 1 - y, get(x, y));
+                    }
+                }
+                break;
+            case MapLayer.ROTATE_270:
+                rotated = create(height, width);
+                for (int y = 0; y < height; y++) {
+                    for (int x = 0; x < width; x++) {
+                        rotated.set(y, width - 1 - x, get(x, y));
+                    }
+                }
+                break;
+            default:
+                throw new IllegalArgumentException(
+                        "Unsupported rotation (" + angle + ")");
+        }
+
+        return rotated;
+    }
+
+    /**
+     * Rotates the cells of this raster by 180 degrees in place, by reversing
+     * the order of the rows and of the cells within each row.
+     */
+    public void rotate180() {
+        mirror(MapLayer.MIRROR_VERTICAL);
+        mirror(MapLayer.MIRROR_HORIZONTAL);
+    }
+
+    /**
+     * Mirrors the cells of this raster in place.
+     *
+     * @param dir {@link MapLayer#MIRROR_VERTICAL} to mirror around the
+     *            horizontal axis, anything else to mirror around the vertical
+     *            axis
+     */
+    public void mirror(int dir) {
+        if (dir == MapLayer.MIRROR_VERTICAL) {
+            for (int y = 0; y < height / 2; y++) {
+                for (int x = 0; x < width; x++) {
+                    int v = get(x, y);
+                    set(x, y, get(x, height - 1 - y));
+                    set(x, height - 1 - y, v);
+                }
+            }
+        } else {
+            for (int y = 0; y < height; y++) {
+                for (int x = 0; x < width / 2; x++) {
+                    int v = get(x, y);
+                    set(x, y, get(width - 1 - x, y));
+                    set(width - 1 - x, y, v);
+                }
+            }
+        }
+    }
+
+    /**
+     * Sets all cells in the given rectangle to the given value. The rectangle
+     * has to lie within the raster.
+     *
+     * @param x     x coordinate of the rectangle
+     * @param y     y coordinate of the rectangle
+     * @param w     width of the rectangle
+     * @param h     height of the rectangle
+     * @param value the value to set
+     */
+    public void fill(int x, int y, int w, int h, int value) {
+        for (int fy = y; fy < y + h; fy++) {
+            for (int fx = x; fx < x + w; fx++) {
+                set(fx, fy, value);
+            }
+        }
+    }
+
+    /**
+     * Reads a horizontal run of cells into the given array. The run has to
+     * lie within the raster.
+     *
+     * @param x      x coordinate of the first cell
+     * @param y      y coordinate of the cells
+     * @param w      number of cells to read
+     * @param dest   the array to store the values in
+     * @param offset the index in <code>dest</code> of the first value
+     */
+    public void getCells(int x, int y, int w, int[] dest, int offset) {
+        for (int i = 0; i < w; i++) {
+            dest[offset + i] = get(x + i, y);
+        }
+    }
+
+    /**
+     * Writes a horizontal run of cells from the given array. The run has to
+     * lie within the raster.
+     *
+     * @param x      x coordinate of the first cell
+     * @param y      y coordinate of the cells
+     * @param w      number of cells to write
+     * @param src    the array holding the new values
+     * @param offset the index in <code>src</code> of the first value
+     */
+    public void setCells(int x, int y, int w, int[] src, int offset) {
+        for (int i = 0; i < w; i++) {
+            set(x + i, y, src[offset + i]);
+        }
+    }
+
+    /**
+     * Returns the regions of this raster that may contain non-empty cells.
+     * All cells outside of these regions are guaranteed to be 0, which allows
+     * callers to skip them.
+     *
+     * @return a list of non-overlapping rectangles
+     */
+    public List<Rectangle> getDataRegions() {
+        List<Rectangle> regions = new ArrayList<Rectangle>(1);
+        if (width > 0 && height > 0) {
+            regions.add(new Rectangle(0, 0, width, height));
+        }
+        return regions;
+    }
+
+    /**
+     * Counts how often each value occurs in this raster, including the empty
+     * value 0. The counts are added to the given array, which has to be large
+     * enough to be indexed by every value in the raster.
+     *
+     * @param counts the array to add the counts to, indexed by value
+     */
+    public void countValues(int[] counts) {
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                counts[get(x, y)]++;
+            }
+        }
+    }
+
+    /**
+     * @return <code>true</code> if all cells are 0, <code>false</code>
+     *         otherwise
+     */
+    public boolean isEmpty() {
+        return locate(0, true) == null;
+    }
+
+    /**
+     * @param value the value to look for
+     * @return <code>true</code> if at least one cell has the given value
+     */
+    public boolean contains(int value) {
+        return locate(value, false) != null;
+    }
+
+    /**
+     * Returns the first cell (searching top down, left to right) that has
+     * the given value, or with <code>invert</code> set, that does not have
+     * the given value.
+     *
+     * @param value  the value to look for
+     * @param invert whether to look for a cell that does not match instead
+     * @return the location of the cell, or <code>null</code> when there is
+     *         no such cell
+     */
+    public Point locate(int value, boolean invert) {
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                if ((get(x, y) == value) != invert) {
+                    return new Point(x, y);
+                }
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Replaces all cells having the value <code>find</code> with
+     * <code>replacement</code>.
+     *
+     * @param find        the value to replace
+     * @param replacement the replacement value
+     * @return the number of cells that were changed
+     */
+    public int replace(int find, int replacement) {
+        int count = 0;
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                if (get(x, y) == find) {
+                    set(x, y, replacement);
+                    count++;
+                }
+            }
+        }
+        return count;
+    }
+}
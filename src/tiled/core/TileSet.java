@@ -14,8 +14,10 @@ package tiled.core;
 
 import java.awt.*;
 import java.awt.image.BufferedImage;
+import java.awt.image.ColorModel;
 import java.awt.image.FilteredImageSource;
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.IOException;
 import java.util.*;
 import javax.imageio.ImageIO;
@@ -23,7 +25,11 @@ import javax.imageio.ImageIO;
 import tiled.mapeditor.util.TransparentImageFilter;
 import tiled.mapeditor.util.cutter.BasicTileCutter;
 import tiled.mapeditor.util.cutter.TileCutter;
+import tiled.util.ImageDigest;
+import tiled.util.LongHashMap;
 import tiled.util.NumberedSet;
+import tiled.util.PropertyMap;
+import tiled.util.Workers;
 
 /**
  * todo: Update documentation
@@ -52,6 +58,13 @@ public class TileSet
     private Color transparentColor;
     private Properties defaultTileProperties;
     private Image tileSetImage;
+    private LazyImage lazyTileSetImage; // until the tileset image is decoded
+    private volatile BufferedImage atlas;
+    private volatile Rectangle[] atlasRegions;  // per image id, null when not in atlas
+    private int atlasVersion;           // changes with the images and atlas
+    private long[] imageDigests;        // per image id, UNKNOWN until computed
+    private LongHashMap<int[]> imagesByDigest;
+    private BitSet undigested;          // ids of images not digested yet
     private LinkedList<TilesetChangeListener> tilesetChangeListeners;
     private java.util.Map<Integer, String> imageSources = new HashMap<Integer, String>();
 
@@ -61,11 +74,108 @@ public class TileSet
     public TileSet() {
         tiles = new NumberedSet();
         images = new NumberedSet();
+        imagesByDigest = new LongHashMap<int[]>();
+        undigested = new BitSet();
         tileDimensions = new Rectangle();
-        defaultTileProperties = new Properties();
+        defaultTileProperties = new PropertyMap();
         tilesetChangeListeners = new LinkedList();
     }
 
+    /**
+     * Copy constructor. The copy has its own tiles, but shares the images of
+     * the given set, so that the image data is only kept in memory once.
+     * Listeners are not copied.
+     *
+     * @param set the tileset to copy
+     */
+    public TileSet(TileSet set) {
+        this();
+        base = set.base;
+        firstGid = set.firstGid;
+        tilebmpFileLastModified = set.tilebmpFileLastModified;
+        tileCutter = set.tileCutter;
+        tileDimensions = new Rectangle(set.tileDimensions);
+        tileSpacing = set.tileSpacing;
+        tileMargin = set.tileMargin;
+        tilesPerRow = set.tilesPerRow;
+        externalSource = set.externalSource;
+        tilebmpFile = set.tilebmpFile;
+        name = set.name;
+        transparentColor = set.transparentColor;
+        defaultTileProperties = new PropertyMap();
+        defaultTileProperties.putAll(set.defaultTileProperties);
+        tileSetImage = set.tileSetImage;
+        lazyTileSetImage = set.lazyTileSetImage;
+        atlas = set.atlas;
+        if (set.atlasRegions != null) {
+            atlasRegions = set.atlasRegions.clone();
+        }
+        imageSources.putAll(set.imageSources);
+
+        for (int id = 0; id <= set.images.getMaxId(); id++) {
+            Object image = set.images.get(id);
+            if (image != null) {
+                images.put(id, image);
+            }
+        }
+        if (set.imageDigests != null) {
+            imageDigests = set.imageDigests.clone();
+            for (long digest : set.imagesByDigest.keys()) {
+                imagesByDigest.put(digest, set.imagesByDigest.get(digest));
+            }
+        }
+        undigested = (BitSet) set.undigested.clone();
+
+        // Tiles are copied first, so that animations can refer to the copies
+        java.util.Map<Tile, Tile> copies = new HashMap<Tile, Tile>();
+        for (int id = 0; id <= set.getMaxTileId(); id++) {
+            Tile tile = set.getTile(id);
+            if (tile == null) {
+                continue;
+            }
+            Tile copy = tile instanceof AnimatedTile ?
+                    new AnimatedTile(this) : new Tile(this);
+            if (tile.hasOwnProperties()) {
+                Properties props = (Properties) tile.getProperties().clone();
+                if (props instanceof PropertyMap && ((PropertyMap) props)
+                        .getDefaults() == set.defaultTileProperties) {
+                    ((PropertyMap) props).setDefaults(defaultTileProperties);
+                }
+                copy.setProperties(props);
+            }
+            copy.setImage(tile.getImageId());
+            copy.setId(tile.getId());
+            tiles.put(copy.getId(), copy);
+            copies.put(tile, copy);
+        }
+        for (java.util.Map.Entry<Tile, Tile> entry : copies.entrySet()) {
+            if (entry.getKey() instanceof AnimatedTile) {
+                ((AnimatedTile) entry.getValue()).setSprite(copySprite(
+                        ((AnimatedTile) entry.getKey()).getSprite(), copies));
+            }
+        }
+    }
+
+    private static Sprite copySprite(Sprite sprite,
+                                     java.util.Map<Tile, Tile> copies) {
+        if (sprite == null) {
+            return null;
+        }
+        Sprite copy = new Sprite();
+        for (int k = 0; k < sprite.getTotalKeys(); k++) {
+            Sprite.KeyFrame key = sprite.getKey(k);
+            Tile[] frames = new Tile[key.getTotalFrames()];
+            for (int f = 0; f < frames.length; f++) {
+                Tile frame = key.getFrame(f);
+                frames[f] = copies.containsKey(frame) ?
+                        copies.get(frame) : frame;
+            }
+            copy.createKey(key.getName(), frames, key.getFlags());
+            copy.getKey(k).setFrameRate(key.getFrameRate());
+        }
+        return copy;
+    }
+
     /**
      * Creates a tileset from a tileset image file.
      *
@@ -79,9 +189,28 @@ public class TileSet
     {
         setTilesetImageFilename(imgFilename);
 
+        if (cutter instanceof BasicTileCutter) {
+            Dimension size = LazyImage.readSize(
+                    new FileInputStream(imgFilename));
+            if (size != null) {
+                importTileBitmap(imgFilename, size, (BasicTileCutter) cutter);
+                return;
+            }
+        }
+
+        importTileBitmap(readTileBitmap(imgFilename), cutter);
+    }
+
+    /**
+     * Reads a tileset image, making the transparent color of this set
+     * transparent.
+     */
+    private BufferedImage readTileBitmap(String imgFilename)
+            throws IOException
+    {
         Image image = ImageIO.read(new File(imgFilename));
         if (image == null) {
-            throw new IOException("Failed to load " + tilebmpFile);
+            throw new IOException("Failed to load " + imgFilename);
         }
 
         Toolkit tk = Toolkit.getDefaultToolkit();
@@ -98,8 +227,65 @@ public class TileSet
                 image.getHeight(null),
                 BufferedImage.TYPE_INT_ARGB);
         buffered.getGraphics().drawImage(image, 0, 0, null);
+        return buffered;
+    }
 
-        importTileBitmap(buffered, cutter);
+    /**
+     * Creates a tileset from a tileset image file of the given size, without
+     * reading the image yet. The tileset image is read when the first of its
+     * tiles is drawn, and the tile images are then cut from it.
+     */
+    private void importTileBitmap(final String imgFilename,
+                                  final Dimension size,
+                                  BasicTileCutter cutter)
+    {
+        tileCutter = cutter;
+        tileSetImage = null;
+        setAtlas(null);
+
+        final LazyImage tilebmp = new LazyImage() {
+            protected Image load() throws IOException {
+                return toCompatibleImage(readTileBitmap(imgFilename));
+            }
+
+            public Dimension getSize() {
+                return new Dimension(size);
+            }
+        };
+        lazyTileSetImage = tilebmp;
+
+        tileDimensions = new Rectangle(cutter.getTileDimensions());
+        tileSpacing = cutter.getTileSpacing();
+        tileMargin = cutter.getTileMargin();
+        tilesPerRow = (size.width - 2 * tileMargin + tileSpacing) /
+                (tileDimensions.width + tileSpacing);
+        int rows = (size.height - 2 * tileMargin + tileSpacing) /
+                (tileDimensions.height + tileSpacing);
+        if (tilesPerRow <= 0) {
+            return;
+        }
+
+        for (int index = 0; index < tilesPerRow * rows; index++) {
+            final Rectangle region = getCutRegion(index);
+            Tile newTile = new Tile();
+            int imageId = addImage(new LazyImage() {
+                protected Image load() {
+                    Image image = tilebmp.getImage();
+                    if (!(image instanceof BufferedImage)) {
+                        return null;
+                    }
+                    return ((BufferedImage) image).getSubimage(
+                            region.x, region.y, region.width, region.height);
+                }
+
+                public Dimension getSize() {
+                    return region.getSize();
+                }
+            }, null);
+            newTile.setImage(imageId);
+            setAtlasRegion(imageId, region);
+            addNewTile(newTile);
+        }
     }
 
     /**
@@ -114,8 +300,11 @@ public class TileSet
         assert tilebmp != null;
         assert cutter != null;
 
+        tilebmp = toCompatibleImage(tilebmp);
         tileCutter = cutter;
         tileSetImage = tilebmp;
+        lazyTileSetImage = null;
+        setAtlas(tilebmp);
 
         cutter.setImage(tilebmp);
 
@@ -127,47 +316,282 @@ public class TileSet
             tilesPerRow = basicTileCutter.getTilesPerRow();
         }
 
+        int index = 0;
         Image tile = cutter.getNextTile();
         while (tile != null) {
             Tile newTile = new Tile();
-            newTile.setImage(addImage(tile));
+            int imageId = addImage(tile);
+            newTile.setImage(imageId);
+            setAtlasRegion(imageId, getCutRegion(index++));
             addNewTile(newTile);
             tile = cutter.getNextTile();
         }
     }
 
     /**
-     * Refreshes a tileset from a tileset image file.
+     * Returns the area of the tileset image from which the tile with the
+     * given index was cut, or <code>null</code> when it is not known.
+     */
+    private Rectangle getCutRegion(int index) {
+        if (!(tileCutter instanceof BasicTileCutter) || tilesPerRow <= 0) {
+            return null;
+        }
+        return new Rectangle(
+                tileMargin + (index % tilesPerRow) *
+                        (tileDimensions.width + tileSpacing),
+                tileMargin + (index / tilesPerRow) *
+                        (tileDimensions.height + tileSpacing),
+                tileDimensions.width, tileDimensions.height);
+    }
+
+    /**
+     * Returns an image with the same contents as the given one, in a format
+     * that can be drawn to the screen quickly.
+     */
+    private static BufferedImage toCompatibleImage(BufferedImage image) {
+        if (GraphicsEnvironment.isHeadless()) {
+            return image;
+        }
+
+        GraphicsConfiguration config = GraphicsEnvironment
+                .getLocalGraphicsEnvironment()
+                .getDefaultScreenDevice().getDefaultConfiguration();
+        ColorModel model = config.getColorModel(Transparency.TRANSLUCENT);
+
+        // Premultiplied images can not be saved the same way as before
+        if (model.isAlphaPremultiplied() ||
+                model.equals(image.getColorModel())) {
+            return image;
+        }
+
+        BufferedImage compatible = config.createCompatibleImage(
+                image.getWidth(), image.getHeight(), Transparency.TRANSLUCENT);
+        Graphics2D g = compatible.createGraphics();
+        g.setComposite(AlphaComposite.Src);
+        g.drawImage(image, 0, 0, null);
+        g.dispose();
+        return compatible;
+    }
+
+    /**
+     * Records that the image with the given id can be drawn from the given
+     * area of the atlas image.
+     */
+    private synchronized void setAtlasRegion(int imageId, Rectangle region) {
+        if (region == null) {
+            return;
+        }
+        if (atlasRegions == null || imageId >= atlasRegions.length) {
+            Rectangle[] grown = new Rectangle[Math.max(imageId + 1,
+                    atlasRegions == null ? 16 : atlasRegions.length * 2)];
+            if (atlasRegions != null) {
+                System.arraycopy(atlasRegions, 0, grown, 0,
+                        atlasRegions.length);
+            }
+            atlasRegions = grown;
+        }
+        atlasRegions[imageId] = region;
+    }
+
+    private synchronized void clearAtlasRegion(int imageId) {
+        atlasVersion++;
+        if (atlasRegions != null && imageId >= 0 &&
+                imageId < atlasRegions.length) {
+            atlasRegions[imageId] = null;
+        }
+    }
+
+    /**
+     * Replaces the atlas image, forgetting the areas of the images in it.
+     */
+    private synchronized void setAtlas(BufferedImage image) {
+        atlasVersion++;
+        atlasRegions = null;
+        atlas = image;
+    }
+
+    /**
+     * Returns the image holding the images of the tiles of this set side by
+     * side, when the tiles are drawn from such an atlas. This is the tileset
+     * image for sets cut from one, or an image packed by
+     * {@link #packAtlas()}.
      *
-     * @throws IOException
-     * @see TileSet#importTileBitmap(BufferedImage,TileCutter)
+     * @return the atlas image, or <code>null</code> when there is none
      */
-    private void refreshImportedTileBitmap()
-            throws IOException
-    {
-        String imgFilename = tilebmpFile.getPath();
+    public BufferedImage getAtlas() {
+        if (atlas == null && lazyTileSetImage != null) {
+            Image image = lazyTileSetImage.getImage();
+            if (image instanceof BufferedImage) {
+                atlas = (BufferedImage) image;
+            }
+        }
+        return atlas;
+    }
 
-        Image image = ImageIO.read(new File(imgFilename));
-        if (image == null) {
-            throw new IOException("Failed to load " + tilebmpFile);
+    /**
+     * Returns the area of the atlas image holding the image with the given
+     * id. The returned rectangle must not be modified.
+     *
+     * @param imageId the id of a tile image
+     * @return the area in the atlas image, or <code>null</code> when the
+     *         image is not drawn from the atlas
+     * @see #getAtlas()
+     */
+    public Rectangle getAtlasRegion(int imageId) {
+        final Rectangle[] regions = atlasRegions;
+        if (regions == null || imageId < 0 || imageId >= regions.length) {
+            return null;
         }
+        return regions[imageId];
+    }
 
-        Toolkit tk = Toolkit.getDefaultToolkit();
+    /**
+     * Packs the separate tile images of this set into a single atlas image,
+     * from which the tiles are then drawn. The separate images are kept, so
+     * they can still be saved as they were loaded. Does nothing for sets cut
+     * from a tileset image, which already have an atlas, and when an image
+     * has not been loaded completely.
+     */
+    public void packAtlas() {
+        // The images are packed from a snapshot, since they may be changed
+        // while the atlas is packed in the background
+        final Image[] snapshot;
+        final int version;
+        synchronized (this) {
+            snapshot = getAtlasImages();
+            version = atlasVersion;
+        }
+        if (snapshot == null) {
+            return;
+        }
 
-        if (transparentColor != null) {
-            int rgb = transparentColor.getRGB();
-            image = tk.createImage(
-                    new FilteredImageSource(image.getSource(),
-                            new TransparentImageFilter(rgb)));
+        // Pack the images in rows, aiming for a roughly square atlas
+        long area = 0;
+        int widest = 0;
+        for (Image image : snapshot) {
+            if (image != null) {
+                area += (long) image.getWidth(null) * image.getHeight(null);
+                widest = Math.max(widest, image.getWidth(null));
+            }
+        }
+        final int width = Math.max(widest, (int) Math.ceil(Math.sqrt(area)));
+
+        Rectangle[] regions = new Rectangle[snapshot.length];
+        int x = 0, y = 0, rowHeight = 0;
+        for (int id = 0; id < regions.length; id++) {
+            Image image = snapshot[id];
+            if (image == null) {
+                continue;
+            }
+            int w = image.getWidth(null);
+            int h = image.getHeight(null);
+            if (x + w > width) {
+                x = 0;
+                y += rowHeight;
+                rowHeight = 0;
+            }
+            regions[id] = new Rectangle(x, y, w, h);
+            x += w;
+            rowHeight = Math.max(rowHeight, h);
         }
 
-        BufferedImage buffered = new BufferedImage(
-                image.getWidth(null),
-                image.getHeight(null),
-                BufferedImage.TYPE_INT_ARGB);
-        buffered.getGraphics().drawImage(image, 0, 0, null);
+        BufferedImage packed = toCompatibleImage(new BufferedImage(
+                width, y + rowHeight, BufferedImage.TYPE_INT_ARGB));
+        Graphics2D g = packed.createGraphics();
+        g.setComposite(AlphaComposite.Src);
+        for (int id = 0; id < regions.length; id++) {
+            if (regions[id] != null) {
+                g.drawImage(snapshot[id], regions[id].x, regions[id].y, null);
+            }
+        }
+        g.dispose();
 
-        refreshImportedTileBitmap(buffered);
+        synchronized (this) {
+            // The atlas is left out when the images changed meanwhile
+            if (version != atlasVersion || atlas != null) {
+                return;
+            }
+            // The regions are set first, as tiles may be drawn meanwhile
+            atlasRegions = regions;
+            atlas = packed;
+        }
+    }
+
+    /**
+     * Returns the images to pack into an atlas by their ids, or
+     * <code>null</code> when this set is not to be packed.
+     */
+    private Image[] getAtlasImages() {
+        if (atlas != null || lazyTileSetImage != null || images.size() < 2) {
+            return null;
+        }
+        Image[] snapshot = new Image[images.getMaxId() + 1];
+        for (int id = 0; id < snapshot.length; id++) {
+            if (!images.containsId(id)) {
+                continue;
+            }
+            Image image = getLoadedImage(id);
+            if (image == null ||
+                    image.getWidth(null) <= 0 || image.getHeight(null) <= 0) {
+                return null;
+            }
+            snapshot[id] = image;
+        }
+        return snapshot;
+    }
+
+    /**
+     * Has the images of this set that have not been decoded yet decoded on
+     * the background thread of {@link Workers}. Once all images are decoded,
+     * separate tile images are packed into an atlas.
+     *
+     * @see #packAtlas()
+     */
+    public void prefetchImages() {
+        if (lazyTileSetImage != null) {
+            final LazyImage tilebmp = lazyTileSetImage;
+            if (!tilebmp.isLoaded()) {
+                Workers.getBackgroundExecutor().execute(new Runnable() {
+                    public void run() {
+                        tilebmp.getImage();
+                    }
+                });
+            }
+            return;
+        }
+
+        final java.util.List<LazyImage> pending = new ArrayList<LazyImage>();
+        for (int id = 0; id <= images.getMaxId(); id++) {
+            Object image = images.get(id);
+            if (image instanceof LazyImage &&
+                    !((LazyImage) image).isLoaded()) {
+                pending.add((LazyImage) image);
+            }
+        }
+        if (pending.isEmpty()) {
+            return;
+        }
+
+        Workers.getBackgroundExecutor().execute(new Runnable() {
+            public void run() {
+                for (LazyImage image : pending) {
+                    image.getImage();
+                }
+                packAtlas();
+            }
+        });
+    }
+
+    /**
+     * Refreshes a tileset from a tileset image file.
+     *
+     * @throws IOException
+     * @see TileSet#importTileBitmap(BufferedImage,TileCutter)
+     */
+    private void refreshImportedTileBitmap()
+            throws IOException
+    {
+        refreshImportedTileBitmap(readTileBitmap(tilebmpFile.getPath()));
     }
 
     /**
@@ -179,17 +603,31 @@ public class TileSet
     private void refreshImportedTileBitmap(BufferedImage tilebmp) {
         assert tilebmp != null;
 
+        tilebmp = toCompatibleImage(tilebmp);
         tileCutter.reset();
         tileCutter.setImage(tilebmp);
 
         tileSetImage = tilebmp;
+        lazyTileSetImage = null;
         tileDimensions = new Rectangle(tileCutter.getTileDimensions());
+        setAtlas(tilebmp);
 
+        // Tiles may share an image when their images were the same, so an
+        // image is only overlaid by the first tile using it
+        Set<Integer> overlaid = new HashSet<Integer>();
         int id = 0;
         Image tile = tileCutter.getNextTile();
         while (tile != null) {
-            int imgId = getTile(id).tileImageId;
-            overlayImage(imgId, tile);
+            Tile t = getTile(id);
+            int imgId = t.tileImageId;
+            if (overlaid.add(imgId)) {
+                overlayImage(imgId, tile);
+            } else if (!ImageDigest.samePixels(getImageById(imgId), tile)) {
+                imgId = addImage(tile);
+                t.setImage(imgId);
+                overlaid.add(imgId);
+            }
+            setAtlasRegion(imgId, getCutRegion(id));
             tile = tileCutter.getNextTile();
             id++;
         }
@@ -250,7 +688,10 @@ public class TileSet
      * @param firstGid first global id
      */
     public void setFirstGid(int firstGid) {
-        this.firstGid = firstGid;
+        if (this.firstGid != firstGid) {
+            this.firstGid = firstGid;
+            fireTilesetChanged();
+        }
     }
 
     /**
@@ -293,9 +734,8 @@ public class TileSet
             tileDimensions.height = t.getHeight();
         }
 
-        // Add any default properties
-        // TODO: use parent properties instead?
-        t.getProperties().putAll(defaultTileProperties);
+        // The default properties are shared, not copied into each tile
+        t.inheritProperties(defaultTileProperties);
 
         tiles.put(t.getId(), t);
         t.setTileSet(this);
@@ -323,10 +763,6 @@ public class TileSet
      * indices. Removal is simply setting the reference at the specified
      * index to <b>null</b>.
      *
-     * todo: Fix the behaviour of this function? It actually does seem to
-     * todo: invalidate other tile indices due to implementation of
-     * todo: NumberedSet.
-     *
      * @param i the index to remove
      */
     public void removeTile(int i) {
@@ -552,15 +988,263 @@ public class TileSet
     // TILE IMAGE CODE
 
     /**
-     * This function uses the CRC32 checksums to find the cached version of the
-     * image supplied.
+     * Finds the given image in this set, or an image with the same pixels.
      *
      * @param i an Image object
      * @return returns the id of the given image, or -1 if the image is not in
      *         the set
      */
     public int getIdByImage(Image i) {
-        return images.indexOf(i);
+        int id = images.indexOf(i);
+        for (int lazyId = 0; id == -1 && lazyId <= images.getMaxId(); lazyId++) {
+            if (images.get(lazyId) instanceof LazyImage &&
+                    getLoadedImage(lazyId) == i) {
+                id = lazyId;
+            }
+        }
+        if (id == -1) {
+            id = findImageByContent(i, ImageDigest.digest(i), false);
+        }
+        return id;
+    }
+
+    /**
+     * Returns the lowest id of an image with the same pixels as the given
+     * one, or -1 when there is none.
+     *
+     * @param decode whether to decode the images of this set that were not
+     *               decoded yet, which are skipped otherwise
+     */
+    private int findImageByContent(Image image, long digest, boolean decode) {
+        if (digest == ImageDigest.UNKNOWN) {
+            return -1;
+        }
+        updateDigests(decode);
+
+        final int[] ids = imagesByDigest.get(digest);
+        if (ids != null) {
+            for (int id : ids) {
+                if (ImageDigest.samePixels(getImageById(id), image)) {
+                    return id;
+                }
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Computes the digests of the images for which it is not known yet.
+     * Digests are only computed when images are looked up by content, and
+     * each image is only digested once, so loading a tileset or adding an
+     * image does not have to look at every pixel.
+     *
+     * @param decode whether to decode the images that were not decoded yet,
+     *               which are skipped otherwise
+     */
+    private void updateDigests(boolean decode) {
+        for (int id = undigested.nextSetBit(0); id >= 0;
+                id = undigested.nextSetBit(id + 1)) {
+            digestOf(id, decode);
+        }
+    }
+
+    /**
+     * Returns the digest of the image with the given id, computing it when
+     * it is not known yet.
+     *
+     * @param decode whether to decode the image when it was not decoded yet
+     * @return the digest, or {@link ImageDigest#UNKNOWN} when there is no
+     *         such image or it was not decoded
+     */
+    private long digestOf(int id, boolean decode) {
+        if (!undigested.get(id)) {
+            return imageDigests != null && id < imageDigests.length ?
+                    imageDigests[id] : ImageDigest.UNKNOWN;
+        }
+        if (!images.containsId(id)) {
+            undigested.clear(id);
+            return ImageDigest.UNKNOWN;
+        }
+        final Image image = decode ? getImageById(id) : getLoadedImage(id);
+        final long digest = image != null ?
+                ImageDigest.digest(image) : ImageDigest.UNKNOWN;
+        if (digest != ImageDigest.UNKNOWN) {
+            undigested.clear(id);
+            addDigest(id, digest);
+        }
+        return digest;
+    }
+
+    /**
+     * Records the digest of the image with the given id.
+     */
+    private void addDigest(int id, long digest) {
+        if (imageDigests == null || imageDigests.length <= id) {
+            long[] grown = new long[Math.max(id + 1,
+                    imageDigests == null ? 16 : imageDigests.length * 2)];
+            if (imageDigests != null) {
+                System.arraycopy(imageDigests, 0, grown, 0,
+                        imageDigests.length);
+            }
+            imageDigests = grown;
+        }
+        imageDigests[id] = digest;
+
+        final int[] ids = imagesByDigest.get(digest);
+        int[] grown;
+        if (ids == null) {
+            grown = new int[1];
+        } else {
+            grown = new int[ids.length + 1];
+            System.arraycopy(ids, 0, grown, 0, ids.length);
+        }
+        grown[grown.length - 1] = id;
+        Arrays.sort(grown);
+        imagesByDigest.put(digest, grown);
+    }
+
+    /**
+     * Forgets the digest of the image with the given id, for when the image
+     * is replaced or removed.
+     */
+    private void forgetDigest(int id) {
+        undigested.set(id);
+        if (imageDigests == null || id < 0 || id >= imageDigests.length ||
+                imageDigests[id] == ImageDigest.UNKNOWN) {
+            return;
+        }
+        final long digest = imageDigests[id];
+        imageDigests[id] = ImageDigest.UNKNOWN;
+
+        final int[] ids = imagesByDigest.get(digest);
+        if (ids == null) {
+            return;
+        }
+        if (ids.length == 1) {
+            imagesByDigest.remove(digest);
+            return;
+        }
+        int[] shrunk = new int[ids.length - 1];
+        int n = 0;
+        for (int other : ids) {
+            if (other != id && n < shrunk.length) {
+                shrunk[n++] = other;
+            }
+        }
+        imagesByDigest.put(digest, shrunk);
+    }
+
+    /**
+     * Returns whether the images with the given ids have the same pixels.
+     *
+     * @param id1 the id of the first image
+     * @param id2 the id of the second image
+     * @return <code>true</code> when both ids refer to images with the same
+     *         pixels, <code>false</code> otherwise
+     */
+    public boolean isSameImage(int id1, int id2) {
+        if (id1 == id2) {
+            return images.containsId(id1);
+        }
+        final Image a = getImageById(id1);
+        final Image b = getImageById(id2);
+        if (a == null || b == null) {
+            return false;
+        }
+        if (a == b) {
+            return true;
+        }
+        final long digest = digestOf(id1, true);
+        return digest != ImageDigest.UNKNOWN &&
+                digest == digestOf(id2, true) &&
+                ImageDigest.samePixels(a, b);
+    }
+
+    /**
+     * Makes the images of this set that have the same pixels as an image of
+     * the given set use that image, so that the pixels are only kept in
+     * memory once. Passing this set itself makes images that occur more
+     * than once in it share a single image. The ids of the images do not
+     * change. The images of both sets are decoded to compare them.
+     * <p>
+     * Nothing is changed for sets cut from a tileset image, since their
+     * images share the memory of the tileset image already.
+     *
+     * @param other the set to take the images from
+     * @return the number of images that are now shared
+     */
+    public int shareImages(TileSet other) {
+        if (isSetFromImage()) {
+            return 0;
+        }
+
+        int shared = 0;
+        for (int id = 0; id <= images.getMaxId(); id++) {
+            final long digest = digestOf(id, true);
+            if (digest == ImageDigest.UNKNOWN) {
+                continue;
+            }
+            final Image image = getLoadedImage(id);
+            final int match = other.findImageByContent(image, digest, true);
+            if (match == -1 || (other == this && match >= id)) {
+                continue;
+            }
+            final Image replacement = other.getImageById(match);
+            if (replacement != image) {
+                // The pixels are the same, so the atlas and digest still hold
+                MipmapCache.invalidate(image);
+                putImage(id, replacement);
+                shared++;
+            }
+        }
+        return shared;
+    }
+
+    /**
+     * Finds the tiles of this set that are the same as an earlier tile of
+     * the set: plain tiles with the same image and properties.
+     *
+     * @return a map from each duplicate tile to the first tile it is the
+     *         same as
+     */
+    public java.util.Map<Tile, Tile> findDuplicateTiles() {
+        java.util.Map<Tile, Tile> duplicates = new LinkedHashMap<Tile, Tile>();
+        LongHashMap<java.util.List<Tile>> byDigest =
+                new LongHashMap<java.util.List<Tile>>();
+
+        for (int id = 0; id <= getMaxTileId(); id++) {
+            Tile tile = getTile(id);
+            if (tile == null || tile.getClass() != Tile.class) {
+                continue;
+            }
+            int imageId = tile.getImageId();
+            final long digest = imageId < 0 ? ImageDigest.UNKNOWN :
+                    digestOf(imageId, true);
+            if (digest == ImageDigest.UNKNOWN) {
+                continue;
+            }
+
+            java.util.List<Tile> candidates = byDigest.get(digest);
+            if (candidates == null) {
+                candidates = new ArrayList<Tile>(1);
+                byDigest.put(digest, candidates);
+            }
+
+            Tile original = null;
+            for (Tile candidate : candidates) {
+                if (isSameImage(candidate.getImageId(), imageId) &&
+                        candidate.hasSamePropertiesAs(tile)) {
+                    original = candidate;
+                    break;
+                }
+            }
+            if (original == null) {
+                candidates.add(tile);
+            } else {
+                duplicates.put(tile, original);
+            }
+        }
+        return duplicates;
     }
 
     /**
@@ -569,7 +1253,50 @@ public class TileSet
      *         there is no such image
      */
     public Image getImageById(int id) {
-        return (Image) images.get(id);
+        Object image = images.get(id);
+        if (image instanceof LazyImage) {
+            return ((LazyImage) image).getImage();
+        }
+        return (Image) image;
+    }
+
+    /**
+     * Returns the image with the given id when it has been decoded already,
+     * without decoding it otherwise.
+     */
+    private Image getLoadedImage(int id) {
+        Object image = images.get(id);
+        if (image instanceof LazyImage) {
+            LazyImage lazy = (LazyImage) image;
+            return lazy.isLoaded() ? lazy.getImage() : null;
+        }
+        return (Image) image;
+    }
+
+    /**
+     * @param id
+     * @return whether there is an image with the given id, without decoding
+     *         it
+     */
+    public boolean containsImage(int id) {
+        return images.containsId(id);
+    }
+
+    /**
+     * Returns the image with the given id encoded as PNG, when it was loaded
+     * from PNG data that is still available, so that it can be saved without
+     * decoding it.
+     *
+     * @param id
+     * @return the PNG data, or <code>null</code> when it is not available
+     * @throws IOException when the data could not be read
+     */
+    public byte[] getImagePNGData(int id) throws IOException {
+        Object image = images.get(id);
+        if (image instanceof LazyImage) {
+            return ((LazyImage) image).getPNGData();
+        }
+        return null;
     }
     
     /**
@@ -591,7 +1318,36 @@ public class TileSet
      * @param image
      */
     public void overlayImage(int id, Image image) {
-        images.put(id, image);
+        Image old = getLoadedImage(id);
+        if (old != null && old != image) {
+            MipmapCache.invalidate(old);
+            clearAtlasRegion(id);
+        }
+        forgetDigest(id);
+        putImage(id, image);
+    }
+
+    /**
+     * Has the images of this tileset scaled to the given zoom level in the
+     * background, so that they can be drawn at that level without scaling
+     * them while drawing.
+     *
+     * @param zoom the zoom level
+     * @see MipmapCache
+     */
+    public void prefetchScaledImages(double zoom) {
+        if (zoom == 1.0) {
+            return;
+        }
+        // Images that were not decoded yet are scaled once they are drawn
+        final java.util.List<Image> loaded = new ArrayList<Image>();
+        for (int id = 0; id <= images.getMaxId(); id++) {
+            Image image = getLoadedImage(id);
+            if (image != null) {
+                loaded.add(image);
+            }
+        }
+        MipmapCache.request(loaded, zoom);
     }
 
     /**
@@ -605,7 +1361,11 @@ public class TileSet
      * @return dimensions of image with referenced by given key
      */
     public Dimension getImageDimensions(int id) {
-        Image img = (Image) images.get(id);
+        Object image = images.get(id);
+        if (image instanceof LazyImage && !((LazyImage) image).isLoaded()) {
+            return ((LazyImage) image).getSize();
+        }
+        Image img = getImageById(id);
         if (img != null) {
             return new Dimension(img.getWidth(null), img.getHeight(null));
         } else {
@@ -614,9 +1374,10 @@ public class TileSet
     }
 
     /**
-     * Adds the specified image to the image cache. If the image already exists
-     * in the cache, returns the id of the existing image. If it does not
-     * exist, this function adds the image and returns the new id.
+     * Adds the specified image to the image cache. If the image, or an image
+     * with the same pixels, already exists in the cache, returns the id of
+     * the existing image. If it does not exist, this function adds the image
+     * and returns the new id.
      *
      * @param image the java.awt.Image to add to the image cache
      * @param imageSource the path of the source image or null if none
@@ -624,8 +1385,20 @@ public class TileSet
      * @return the id as an <code>int</code> of the image in the cache
      */
     public int addImage(Image image, String imageSource) {
-        int id = images.findOrAdd(image);
-        if(imageSource != null)
+        int id = images.indexOf(image);
+        if (id == -1) {
+            long digest = ImageDigest.digest(image);
+            id = findImageByContent(image, digest, false);
+            if (id == -1) {
+                id = putImage(image);
+                if (digest != ImageDigest.UNKNOWN) {
+                    addDigest(id, digest);
+                } else {
+                    undigested.set(id);
+                }
+            }
+        }
+        if (imageSource != null && !imageSources.containsKey(id))
             imageSources.put(id, imageSource);
         return id;
     }
@@ -633,26 +1406,105 @@ public class TileSet
     public int addImage(Image image) {
         return addImage(image, null);
     }
+
+    /**
+     * Adds an image that is decoded once it is needed. Unlike
+     * {@link #addImage(Image, String)}, the image is not compared with the
+     * images already in the set, since that would require decoding it.
+     *
+     * @param image the image to add
+     * @param imageSource the path of the source image or null if none
+     *  is to be specified.
+     * @return the id of the image
+     */
+    public int addImage(LazyImage image, String imageSource) {
+        int id = putImage(image);
+        undigested.set(id);
+        if (imageSource != null)
+            imageSources.put(id, imageSource);
+        return id;
+    }
+
+    /**
+     * Adds an image that is decoded once it is needed, under the given id.
+     *
+     * @see #addImage(Image, int, String)
+     */
+    public int addImage(LazyImage image, int id, String imgSource) {
+        if(imgSource != null)
+            imageSources.put(id, imgSource);
+
+        clearAtlasRegion(id);
+        forgetDigest(id);
+        return putImage(id, image);
+    }
     
     public int addImage(Image image, int id, String imgSource) {
         if(imgSource != null)
             imageSources.put(id, imgSource);
         
-        return images.put(id, image);
+        clearAtlasRegion(id);
+        forgetDigest(id);
+        return putImage(id, image);
+    }
+
+    /**
+     * Puts the image with the given id of another set, together with its
+     * source, under the same id in this set. The image is not decoded.
+     *
+     * @param set the set to take the image from
+     * @param id  the id of the image
+     */
+    public void copyImage(TileSet set, int id) {
+        final Object image = set.images.get(id);
+        if (image instanceof LazyImage) {
+            addImage((LazyImage) image, id, set.getImageSource(id));
+        } else if (image != null) {
+            addImage((Image) image, id, set.getImageSource(id));
+        }
     }
 
     public void removeImage(int id) {
-        images.remove(id);
+        Image old = getLoadedImage(id);
+        if (old != null) {
+            MipmapCache.invalidate(old);
+        }
+        clearAtlasRegion(id);
+        forgetDigest(id);
+        synchronized (this) {
+            atlasVersion++;
+            images.remove(id);
+        }
         imageSources.remove(id);
     }
 
+    /**
+     * Stores an image under the given id. Images are changed while holding
+     * the lock of this set, so that the atlas is not packed from a set that
+     * is being changed.
+     */
+    private synchronized int putImage(int id, Object image) {
+        atlasVersion++;
+        return images.put(id, image);
+    }
+
+    /**
+     * Stores an image under a new id.
+     *
+     * @see #putImage(int, Object)
+     */
+    private synchronized int putImage(Object image) {
+        atlasVersion++;
+        return images.add(image);
+    }
+
     /**
      * Returns whether the tileset is derived from a tileset image.
      *
-     * @return tileSetImage != null
+     * @return whether the tiles are cut from a tileset image
      */
     public boolean isSetFromImage() {
-        return tileSetImage != null;
+        return tileSetImage != null || lazyTileSetImage != null;
     }
 
     /**
@@ -695,10 +1547,24 @@ public class TileSet
         return true;
     }
 
+    /**
+     * Sets the default properties of the tiles added to this set from now
+     * on. Tiles do not get a copy of the defaults, but fall back to them for
+     * properties they do not set themselves.
+     *
+     * @param defaultSetProperties the default tile properties
+     */
     public void setDefaultProperties(Properties defaultSetProperties) {
         defaultTileProperties = defaultSetProperties;
     }
 
+    /**
+     * @return the default properties of the tiles in this set
+     */
+    public Properties getDefaultProperties() {
+        return defaultTileProperties;
+    }
+
     public void addTilesetChangeListener(TilesetChangeListener listener) {
         tilesetChangeListeners.add(listener);
     }
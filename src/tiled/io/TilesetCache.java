@@ -0,0 +1,211 @@
+/*
+ *  Tiled Map Editor, (c) 2004-2008
+ *
+ *  This program is free software; you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation; either version 2 of the License, or
+ *  (at your option) any later version.
+ *
+ *  Adam Turk <aturk@biggeruniverse.com>
+ *  Bjorn Lindeijer <bjorn@lindeijer.nl>
+ */
+
+package tiled.io;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.SoftReference;
+import java.lang.ref.WeakReference;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.WeakHashMap;
+
+import tiled.core.TileSet;
+
+/**
+ * A cache of external tilesets, shared by all maps loaded in this process.
+ * When several maps use the same tileset file, the file is only read and its
+ * images are only decoded once. Each map gets its own copy of the tileset,
+ * sharing the images of the cached one.
+ * <p>
+ * Tilesets are cached by the canonical path of their file, and are read
+ * again when the file or its tileset image has been modified since. While
+ * copies of a tileset are in use, the cached tileset is kept. Once all
+ * copies have been released or garbage collected, it is only softly
+ * referenced, so it stays available for maps opened later until memory
+ * runs low.
+ */
+public final class TilesetCache
+{
+    private static class Entry
+    {
+        final long lastModified;
+        final long imageLastModified;
+        final SoftReference<TileSet> soft;
+        TileSet strong;         // held while copies are in use
+        int references;
+
+        Entry(long lastModified, TileSet tileset) {
+            this.lastModified = lastModified;
+            imageLastModified = getImageLastModified(tileset);
+            soft = new SoftReference<TileSet>(tileset);
+        }
+    }
+
+    /**
+     * Refers to a tileset handed out by the cache, so that the cache notices
+     * when it is garbage collected without having been released.
+     */
+    private static class Holder extends WeakReference<TileSet>
+    {
+        final Entry entry;
+
+        Holder(TileSet tileset, Entry entry) {
+            super(tileset, queue);
+            this.entry = entry;
+        }
+    }
+
+    private static final HashMap<String, Entry> entries =
+            new HashMap<String, Entry>();
+    private static final WeakHashMap<TileSet, Holder> holders =
+            new WeakHashMap<TileSet, Holder>();
+    // Keeps the holders themselves reachable, or they would not be enqueued
+    private static final Set<Holder> live = new HashSet<Holder>();
+    private static final ReferenceQueue<TileSet> queue =
+            new ReferenceQueue<TileSet>();
+
+    private TilesetCache() {
+    }
+
+    /**
+     * Returns a copy of the cached tileset read from the given file, when
+     * it is cached and the file has not been modified since. The copy should
+     * be released with {@link #release(TileSet)} once it is no longer used.
+     *
+     * @param filename the path of the tileset file
+     * @return a copy of the cached tileset, or <code>null</code> when the
+     *         file has to be read
+     */
+    public static synchronized TileSet acquire(String filename) {
+        expunge();
+
+        final File file = new File(filename);
+        final String path = getPath(file);
+        if (path == null) {
+            return null;
+        }
+        final Entry entry = entries.get(path);
+        if (entry == null) {
+            return null;
+        }
+
+        TileSet cached = entry.strong != null ? entry.strong : entry.soft.get();
+        if (cached == null || entry.lastModified != file.lastModified() ||
+                entry.imageLastModified != getImageLastModified(cached)) {
+            entries.remove(path);
+            return null;
+        }
+
+        final TileSet copy = new TileSet(cached);
+        hold(copy, entry, cached);
+        return copy;
+    }
+
+    /**
+     * Caches a tileset that has just been read from the given file. The
+     * cache keeps a copy of the tileset, so that changes made to the given
+     * tileset do not end up in the tilesets given to other maps. The given
+     * tileset counts as in use until it is released.
+     *
+     * @param filename the path of the tileset file
+     * @param tileset  the tileset read from the file
+     */
+    public static synchronized void put(String filename, TileSet tileset) {
+        expunge();
+
+        final File file = new File(filename);
+        final String path = getPath(file);
+        if (path == null) {
+            return;
+        }
+
+        final TileSet cached = new TileSet(tileset);
+        final Entry entry = new Entry(file.lastModified(), cached);
+        entries.put(path, entry);
+        hold(tileset, entry, cached);
+    }
+
+    /**
+     * Tells the cache that the given tileset is no longer used. Does nothing
+     * for tilesets that did not come from the cache.
+     *
+     * @param tileset a tileset that is no longer used
+     */
+    public static synchronized void release(TileSet tileset) {
+        final Holder holder = holders.remove(tileset);
+        if (holder != null && live.remove(holder)) {
+            // A cleared reference is not enqueued, so it is not counted twice
+            holder.clear();
+            unhold(holder.entry);
+        }
+        expunge();
+    }
+
+    /**
+     * Removes all tilesets from the cache.
+     */
+    public static synchronized void clear() {
+        entries.clear();
+        holders.clear();
+        live.clear();
+        expunge();
+    }
+
+    private static void hold(TileSet tileset, Entry entry, TileSet cached) {
+        entry.strong = cached;
+        entry.references++;
+        final Holder holder = new Holder(tileset, entry);
+        holders.put(tileset, holder);
+        live.add(holder);
+    }
+
+    private static void unhold(Entry entry) {
+        if (--entry.references <= 0) {
+            entry.references = 0;
+            entry.strong = null;
+        }
+    }
+
+    /**
+     * Counts down the entries of tilesets that were garbage collected
+     * without having been released.
+     */
+    private static void expunge() {
+        Reference<? extends TileSet> reference;
+        while ((reference = queue.poll()) != null) {
+            if (live.remove(reference)) {
+                unhold(((Holder) reference).entry);
+            }
+        }
+    }
+
+    private static String getPath(File file) {
+        if (!file.isFile()) {
+            return null;
+        }
+        try {
+            return file.getCanonicalPath();
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    private static long getImageLastModified(TileSet tileset) {
+        final String filename = tileset.getTilebmpFile();
+        return filename != null ? new File(filename).lastModified() : 0;
+    }
+}
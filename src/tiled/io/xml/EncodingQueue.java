@@ -0,0 +1,320 @@
+/*
+ *  Tiled Map Editor, (c) 2004-2008
+ *
+ *  This program is free software; you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation; either version 2 of the License, or
+ *  (at your option) any later version.
+ *
+ *  Adam Turk <aturk@biggeruniverse.com>
+ *  Bjorn Lindeijer <bjorn@lindeijer.nl>
+ */
+
+package tiled.io.xml;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Reader;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+
+import tiled.util.Workers;
+
+/**
+ * Encodes the pieces of character data of a document, like layer data and
+ * embedded images, on the worker threads ahead of the writer. The pieces
+ * are queued in document order before writing starts. A limited number of
+ * them is encoded at a time, and the writer takes them back in the same
+ * order. The document is therefore the same as when everything is encoded
+ * by the writer itself.
+ * <p>
+ * The encoded pieces that were not written yet are kept in memory up to
+ * {@link #MAX_BUFFERED_SIZE} characters in total. Beyond that, the rest of
+ * a piece is written to a temporary file, so that pieces of any size can be
+ * encoded ahead of the writer.
+ */
+class EncodingQueue
+{
+    /**
+     * The number of encoded characters that are kept in memory at most.
+     */
+    static final int MAX_BUFFERED_SIZE = 1 << 22;
+
+    private static final int CHUNK_SIZE = 1 << 16;
+
+    /**
+     * A piece of character data to encode.
+     */
+    interface Payload
+    {
+        /**
+         * Writes the encoded data to the given writer.
+         */
+        void encode(Writer out) throws IOException;
+    }
+
+    private static class Entry
+    {
+        final Object key;
+        final Payload payload;
+        Buffer buffer;
+        Future<?> result;
+
+        Entry(Object key, Payload payload) {
+            this.key = key;
+            this.payload = payload;
+        }
+    }
+
+    private final LinkedList<Entry> entries = new LinkedList<Entry>();
+    private final int window;
+    private int buffered;
+
+    /**
+     * @param window the number of pieces to encode ahead of the writer
+     */
+    EncodingQueue(int window) {
+        this.window = Math.max(1, window);
+    }
+
+    /**
+     * Queues a piece of data, which the writer is going to ask for after the
+     * pieces queued before.
+     *
+     * @param key     identifies the piece of data
+     * @param payload encodes the data
+     */
+    void add(Object key, Payload payload) {
+        entries.add(new Entry(key, payload));
+        submit();
+    }
+
+    /**
+     * Writes the data identified by the given key, waiting for it to be
+     * encoded when it was queued. Data that was not queued, or not in this
+     * order, is encoded right away by the given payload, straight to the
+     * writer.
+     *
+     * @param key     identifies the piece of data
+     * @param payload encodes the data when it was not queued
+     * @param out     the writer to write the encoded data to
+     */
+    void write(Object key, Payload payload, Writer out) throws IOException {
+        Entry entry = null;
+        for (Iterator<Entry> i = entries.iterator(); i.hasNext();) {
+            final Entry e = i.next();
+            if (e.key.equals(key)) {
+                entry = e;
+                break;
+            }
+        }
+        if (entry == null) {
+            payload.encode(out);
+            return;
+        }
+
+        // Pieces queued before this one were not asked for after all
+        while (entries.getFirst() != entry) {
+            cancel(entries.removeFirst());
+        }
+        entries.removeFirst();
+
+        if (entry.result == null) {
+            submit();
+            entry.payload.encode(out);
+            return;
+        }
+        try {
+            get(entry.result);
+            entry.buffer.writeTo(out);
+        } finally {
+            entry.buffer.dispose();
+            submit();
+        }
+    }
+
+    /**
+     * Cancels the encoding of the pieces that were not written.
+     */
+    void cancel() {
+        for (Entry entry : entries) {
+            cancel(entry);
+        }
+        entries.clear();
+    }
+
+    private static void cancel(Entry entry) {
+        if (entry.result != null) {
+            entry.result.cancel(false);
+            // Stops the encoding when it is running
+            entry.buffer.dispose();
+        }
+    }
+
+    /**
+     * Starts encoding the queued pieces that are within the window.
+     */
+    private void submit() {
+        int n = 0;
+        for (final Entry entry : entries) {
+            if (n++ == window) {
+                break;
+            }
+            if (entry.result == null) {
+                final Buffer buffer = new Buffer();
+                entry.buffer = buffer;
+                entry.result = Workers.getExecutor().submit(
+                        new Callable<Object>() {
+                            public Object call() throws IOException {
+                                entry.payload.encode(buffer);
+                                buffer.flush();
+                                return null;
+                            }
+                        });
+            }
+        }
+    }
+
+    private synchronized boolean reserve(int size) {
+        if (buffered + size > MAX_BUFFERED_SIZE) {
+            return false;
+        }
+        buffered += size;
+        return true;
+    }
+
+    private synchronized void unreserve(int size) {
+        buffered -= size;
+    }
+
+    private static void get(Future<?> result) throws IOException {
+        try {
+            result.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while encoding");
+        } catch (ExecutionException e) {
+            final Throwable cause = e.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            } else if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            } else if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            throw new IOException("Could not encode data: " + cause);
+        }
+    }
+
+    /**
+     * Holds an encoded piece of data until it is written. The data is kept
+     * in chunks of memory while the budget of the queue allows, and the rest
+     * of it in a temporary file.
+     */
+    private class Buffer extends Writer
+    {
+        private List<char[]> chunks = new ArrayList<char[]>();
+        private int count = CHUNK_SIZE;     // characters in the last chunk
+        private File file;
+        private Writer spill;
+        private boolean disposed;
+
+        public synchronized void write(char[] cbuf, int off, int len)
+                throws IOException {
+            if (disposed) {
+                throw new IOException("Encoding was cancelled");
+            }
+            while (len > 0 && spill == null) {
+                if (count == CHUNK_SIZE) {
+                    if (!reserve(CHUNK_SIZE)) {
+                        file = File.createTempFile("tiled", ".tmp");
+                        spill = new BufferedWriter(new OutputStreamWriter(
+                                new FileOutputStream(file), "UTF-8"));
+                        break;
+                    }
+                    chunks.add(new char[CHUNK_SIZE]);
+                    count = 0;
+                }
+                final int n = Math.min(len, CHUNK_SIZE - count);
+                System.arraycopy(cbuf, off, chunks.get(chunks.size() - 1),
+                        count, n);
+                count += n;
+                off += n;
+                len -= n;
+            }
+            if (len > 0) {
+                spill.write(cbuf, off, len);
+            }
+        }
+
+        public synchronized void flush() throws IOException {
+            if (spill != null) {
+                spill.flush();
+            }
+        }
+
+        public void close() throws IOException {
+            flush();
+        }
+
+        /**
+         * Writes the encoded data to the given writer.
+         */
+        synchronized void writeTo(Writer out) throws IOException {
+            for (int i = 0; i < chunks.size(); i++) {
+                out.write(chunks.get(i), 0,
+                        i < chunks.size() - 1 ? CHUNK_SIZE : count);
+            }
+            if (spill != null) {
+                spill.close();
+                spill = null;
+                final Reader in = new BufferedReader(new InputStreamReader(
+                        new FileInputStream(file), "UTF-8"));
+                try {
+                    final char[] data = new char[8192];
+                    int n;
+                    while ((n = in.read(data)) != -1) {
+                        out.write(data, 0, n);
+                    }
+                } finally {
+                    in.close();
+                }
+            }
+        }
+
+        /**
+         * Releases the memory and the file holding the data.
+         */
+        synchronized void dispose() {
+            if (disposed) {
+                return;
+            }
+            disposed = true;
+            unreserve(chunks.size() * CHUNK_SIZE);
+            chunks = null;
+            if (spill != null) {
+                try {
+                    spill.close();
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+                spill = null;
+            }
+            if (file != null) {
+                file.delete();
+            }
+        }
+    }
+}
@@ -0,0 +1,104 @@
+/*
+ *  Tiled Map Editor, (c) 2004-2008
+ *
+ *  This program is free software; you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation; either version 2 of the License, or
+ *  (at your option) any later version.
+ *
+ *  Adam Turk <aturk@biggeruniverse.com>
+ *  Bjorn Lindeijer <bjorn@lindeijer.nl>
+ */
+
+package tiled.io.xml;
+
+import java.util.zip.Deflater;
+
+/**
+ * The compression applied to base64 encoded layer data, as named by the
+ * <code>compression</code> attribute of the <code>data</code> element.
+ * Zlib compressed data is a deflate stream with a zlib header, gzip
+ * compressed data a deflate stream with a gzip header.
+ */
+public enum LayerCompression
+{
+    NONE(null),
+    ZLIB("zlib"),
+    GZIP("gzip");
+
+    private final String attributeValue;
+
+    private LayerCompression(String attributeValue) {
+        this.attributeValue = attributeValue;
+    }
+
+    /**
+     * @return the value of the <code>compression</code> attribute, or
+     *         <code>null</code> when the attribute is left out
+     */
+    public String getAttributeValue() {
+        return attributeValue;
+    }
+
+    /**
+     * Returns the compression named by the value of a
+     * <code>compression</code> attribute. Data with an unknown compression
+     * is read as uncompressed.
+     *
+     * @param value the attribute value, or <code>null</code>
+     * @return the compression
+     */
+    public static LayerCompression forAttributeValue(String value) {
+        for (LayerCompression compression : values()) {
+            if (compression.attributeValue != null &&
+                    compression.attributeValue.equalsIgnoreCase(value)) {
+                return compression;
+            }
+        }
+        return NONE;
+    }
+
+    public static LayerCompression valueOf(String s, LayerCompression defaultValue) {
+        if (s != null) {
+            try {
+                return LayerCompression.valueOf(s.toUpperCase());
+            } catch (IllegalArgumentException iax) {
+                // ignore and return default
+            }
+        }
+        return defaultValue;
+    }
+
+    /**
+     * The deflate strategies offered by {@link Deflater}.
+     */
+    public static enum Strategy {
+        DEFAULT(Deflater.DEFAULT_STRATEGY),
+        FILTERED(Deflater.FILTERED),
+        HUFFMAN_ONLY(Deflater.HUFFMAN_ONLY);
+
+        private final int value;
+
+        private Strategy(int value) {
+            this.value = value;
+        }
+
+        /**
+         * @return the strategy constant to pass to the deflater
+         */
+        public int getValue() {
+            return value;
+        }
+
+        public static Strategy valueOf(String s, Strategy defaultValue) {
+            if (s != null) {
+                try {
+                    return Strategy.valueOf(s.toUpperCase());
+                } catch (IllegalArgumentException iax) {
+                    // ignore and return default
+                }
+            }
+            return defaultValue;
+        }
+    }
+}
@@ -0,0 +1,420 @@
+/*
+ *  Tiled Map Editor, (c) 2004-2008
+ *
+ *  This program is free software; you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation; either version 2 of the License, or
+ *  (at your option) any later version.
+ *
+ *  Adam Turk <aturk@biggeruniverse.com>
+ *  Bjorn Lindeijer <bjorn@lindeijer.nl>
+ */
+
+package tiled.io.xml;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+import tiled.core.Map;
+import tiled.core.TileLayer;
+import tiled.core.TilePalette;
+
+/**
+ * Decodes the data of a tile layer while it is being read, placing the tiles
+ * on the layer as soon as their global ids are known. The data is either
+ * given as base64 encoded characters, optionally zlib or gzip compressed, or
+ * as global ids one by one.
+ * <p>
+ * The data passes through a few small buffers that are reused: characters
+ * are decoded into a byte buffer, which is inflated in bulk when compressed.
+ * The resulting bytes are read as little-endian global ids through an
+ * {@link IntBuffer} view, and the tiles are placed a run of a row at a time.
+ * The buffers are released once the data has been read. Global ids that
+ * can not be resolved yet are remembered in runs of adjacent cells, so that
+ * they can be resolved again in case tilesets follow the layer in the map
+ * file.
+ */
+class LayerDataDecoder
+{
+    private static final int BUFFER_SIZE = 8192;
+    private static final int MAX_CACHED_GID = 1 << 20;
+
+    private static final byte[] codes = new byte[128];
+    static {
+        for (int i = 0; i < codes.length; i++) codes[i] = -1;
+        for (int i = 'A'; i <= 'Z'; i++) codes[i] = (byte) (i - 'A');
+        for (int i = 'a'; i <= 'z'; i++) codes[i] = (byte) (26 + i - 'a');
+        for (int i = '0'; i <= '9'; i++) codes[i] = (byte) (52 + i - '0');
+        codes['+'] = 62;
+        codes['/'] = 63;
+    }
+
+    private final Map map;
+    private final TileLayer layer;
+    private final int width;
+    private final long cells;
+    private long cell;                  // index of the next cell to place
+
+    // Runs of cells whose global ids could not be resolved, each stored as
+    // x, y and length followed by the global ids
+    private int[] unresolved = new int[0];
+    private int unresolvedLength;
+    private int run = -1;               // offset of the last run, if open
+
+    // Base64 decoding state
+    private int accum;
+    private int shift;
+
+    // Bytes of global ids, the first few of which may be left over from an
+    // id that was not complete yet
+    private byte[] bytes = new byte[BUFFER_SIZE];
+    private IntBuffer ints = ByteBuffer.wrap(bytes)
+            .order(ByteOrder.LITTLE_ENDIAN).asIntBuffer();
+    private int byteCount;
+
+    // Decoded bytes, waiting to be inflated. For uncompressed data, this is
+    // the same buffer as the one holding the bytes of global ids.
+    private byte[] buffer;
+    private int buffered;
+
+    // Inflater for compressed data, null for uncompressed data
+    private Inflater inflater;
+    private byte[] header;              // gzip header read so far, if any
+    private int headerLength;
+
+    // Global ids to place, replaced by palette indices once resolved
+    private int[] gids = new int[BUFFER_SIZE / 4];
+    private int gidCount;
+
+    // Palette index plus one for each global id resolved so far, 0 for ids
+    // that have not been looked up yet
+    private final TilePalette palette;
+    private int[] indices = new int[256];
+
+    /**
+     * @param map         the map the layer is part of, used to resolve
+     *                    global ids
+     * @param layer       the layer to place the tiles on
+     * @param compression the compression of the data
+     */
+    LayerDataDecoder(Map map, TileLayer layer, LayerCompression compression) {
+        this.map = map;
+        this.layer = layer;
+        palette = layer.getPalette();
+        width = layer.getWidth();
+        cells = (long) width * layer.getHeight();
+
+        if (compression == LayerCompression.GZIP) {
+            // A gzip member wraps a raw deflate stream
+            inflater = new Inflater(true);
+            header = new byte[16];
+            buffer = new byte[BUFFER_SIZE];
+        } else if (compression == LayerCompression.ZLIB) {
+            inflater = new Inflater();
+            buffer = new byte[BUFFER_SIZE];
+        } else {
+            buffer = bytes;
+        }
+    }
+
+    /**
+     * Decodes the given base64 encoded characters. Characters that are not
+     * part of the base64 alphabet, like white space, are skipped.
+     */
+    void write(char[] ch, int start, int length) throws IOException {
+        final byte[] out = buffer;
+        int count = buffered;
+        int acc = accum;
+        int bits = shift;
+        for (int i = start, end = start + length; i < end; i++) {
+            final char c = ch[i];
+            final int value = c < 128 ? codes[c] : -1;
+            if (value < 0) {
+                continue;
+            }
+            acc = acc << 6 | value;
+            bits += 6;
+            if (bits >= 8) {
+                bits -= 8;
+                out[count++] = (byte) (acc >> bits);
+                if (count == out.length) {
+                    buffered = count;
+                    flush();
+                    count = buffered;
+                }
+            }
+        }
+        buffered = count;
+        accum = acc & 0xff;
+        shift = bits;
+    }
+
+    /**
+     * Places the tile with the given global id on the next cell, for layer
+     * data given as separate global ids.
+     */
+    void addGid(int gid) {
+        gids[gidCount++] = gid;
+        if (gidCount == gids.length) {
+            place(gidCount);
+            gidCount = 0;
+        }
+    }
+
+    /**
+     * Processes the data that is still buffered, once all data has been
+     * written, and releases the buffers.
+     */
+    void finish() throws IOException {
+        try {
+            flush();
+            place(gidCount);
+            gidCount = 0;
+        } finally {
+            release();
+        }
+    }
+
+    /**
+     * Ends the inflater and drops the buffers. Called by {@link #finish()},
+     * or directly when the data is not going to be finished.
+     */
+    void release() {
+        if (inflater != null) {
+            inflater.end();
+            inflater = null;
+        }
+        bytes = null;
+        ints = null;
+        buffer = null;
+        header = null;
+        gids = null;
+        indices = null;
+    }
+
+    /**
+     * @return whether any of the global ids could not be resolved
+     */
+    boolean hasUnresolved() {
+        return unresolvedLength > 0;
+    }
+
+    /**
+     * Places the tiles again whose global ids could not be resolved while
+     * the data was being read.
+     */
+    void resolve() {
+        // Ids that did not resolve before may resolve now
+        indices = new int[256];
+
+        int i = 0;
+        while (i < unresolvedLength) {
+            final int x = unresolved[i];
+            final int y = unresolved[i + 1];
+            final int n = unresolved[i + 2];
+            i += 3;
+            for (int j = i; j < i + n; j++) {
+                unresolved[j] = indexOf(unresolved[j]);
+            }
+            layer.setCellsAt(x, y, unresolved, i, n);
+            i += n;
+        }
+        unresolved = new int[0];
+        unresolvedLength = 0;
+        run = -1;
+        indices = null;
+    }
+
+    private void flush() throws IOException {
+        if (inflater == null) {
+            byteCount = buffered;
+            convert();
+            buffered = byteCount;
+        } else {
+            inflate(buffered);
+            buffered = 0;
+        }
+    }
+
+    private void inflate(int length) throws IOException {
+        int offset = 0;
+        if (header != null) {
+            offset = readHeader(buffer, length);
+            if (header != null) {
+                return;
+            }
+        }
+        if (inflater.finished() || offset == length) {
+            return;
+        }
+
+        inflater.setInput(buffer, offset, length - offset);
+        try {
+            while (!inflater.finished() && !inflater.needsInput()) {
+                final int n = inflater.inflate(bytes, byteCount,
+                        bytes.length - byteCount);
+                if (n == 0 && inflater.needsDictionary()) {
+                    throw new IOException("Corrupt layer data");
+                }
+                byteCount += n;
+                convert();
+            }
+        } catch (DataFormatException e) {
+            throw new IOException("Corrupt layer data: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Collects the bytes of the gzip header, and skips it once it is
+     * complete.
+     *
+     * @return the offset of the first byte after the header, or the length
+     *         of the data when the header is not complete yet
+     */
+    private int readHeader(byte[] data, int length) throws IOException {
+        for (int i = 0; i < length; i++) {
+            if (headerLength == header.length) {
+                byte[] grown = new byte[header.length * 2];
+                System.arraycopy(header, 0, grown, 0, header.length);
+                header = grown;
+            }
+            header[headerLength++] = data[i];
+            if (isHeaderComplete()) {
+                header = null;
+                return i + 1;
+            }
+        }
+        return length;
+    }
+
+    private boolean isHeaderComplete() throws IOException {
+        if (headerLength < 10) {
+            return false;
+        }
+        if ((header[0] & 0xff) != 0x1f || (header[1] & 0xff) != 0x8b ||
+                header[2] != 8) {
+            throw new IOException("Not in GZIP format");
+        }
+
+        final int flags = header[3];
+        int end = 10;
+        if ((flags & 4) != 0) {                 // extra field
+            if (headerLength < end + 2) {
+                return false;
+            }
+            end += 2 + ((header[end] & 0xff) | (header[end + 1] & 0xff) << 8);
+        }
+        if ((flags & 8) != 0) {                 // file name
+            end = skipString(end);
+        }
+        if ((flags & 16) != 0 && end >= 0) {    // comment
+            end = skipString(end);
+        }
+        if ((flags & 2) != 0 && end >= 0) {     // header checksum
+            end += 2;
+        }
+        return headerLength == end;
+    }
+
+    /**
+     * @return the offset after the zero terminated string starting at the
+     *         given offset, or -1 when the string is not complete yet
+     */
+    private int skipString(int offset) {
+        for (int i = offset; i < headerLength; i++) {
+            if (header[i] == 0) {
+                return i + 1;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Reads the complete global ids from the bytes, and places their tiles.
+     * The bytes of an incomplete id are kept for the next call.
+     */
+    private void convert() {
+        final int count = byteCount >> 2;
+        if (count > 0) {
+            ints.rewind();
+            ints.get(gids, 0, count);
+            place(count);
+            byteCount -= count << 2;
+            System.arraycopy(bytes, count << 2, bytes, 0, byteCount);
+        }
+    }
+
+    /**
+     * Places the tiles of the given number of buffered global ids, on the
+     * cells following the ones placed before.
+     */
+    private void place(int count) {
+        int i = 0;
+        while (i < count && cell < cells) {
+            final int x = (int) (cell % width);
+            final int y = (int) (cell / width);
+            final int n = (int) Math.min(Math.min(count - i, width - x),
+                    cells - cell);
+            for (int j = i; j < i + n; j++) {
+                final int gid = gids[j];
+                final int index = indexOf(gid);
+                if (index == 0 && gid > 0) {
+                    addUnresolved(x + j - i, y, gid);
+                } else {
+                    run = -1;
+                }
+                gids[j] = index;
+            }
+            layer.setCellsAt(x, y, gids, i, n);
+            i += n;
+            cell += n;
+        }
+    }
+
+    /**
+     * Remembers the global id of a cell that could not be resolved, adding
+     * it to the last run when the cell follows it.
+     */
+    private void addUnresolved(int x, int y, int gid) {
+        if (unresolvedLength + 4 > unresolved.length) {
+            int[] grown = new int[Math.max(64, unresolved.length * 2)];
+            System.arraycopy(unresolved, 0, grown, 0, unresolvedLength);
+            unresolved = grown;
+        }
+        if (run < 0 || unresolved[run + 1] != y ||
+                unresolved[run] + unresolved[run + 2] != x) {
+            run = unresolvedLength;
+            unresolved[unresolvedLength++] = x;
+            unresolved[unresolvedLength++] = y;
+            unresolved[unresolvedLength++] = 0;
+        }
+        unresolved[run + 2]++;
+        unresolved[unresolvedLength++] = gid;
+    }
+
+    /**
+     * Returns the palette index of the tile with the given global id, or 0
+     * when the id does not resolve to a tile.
+     */
+    private int indexOf(int gid) {
+        if (gid <= 0) {
+            return 0;
+        }
+        if (gid >= indices.length) {
+            if (gid >= MAX_CACHED_GID) {
+                return palette.findOrAdd(map.getTileForTileGID(gid));
+            }
+            int[] grown = new int[Math.max(gid + 1, indices.length * 2)];
+            System.arraycopy(indices, 0, grown, 0, indices.length);
+            indices = grown;
+        }
+        if (indices[gid] == 0) {
+            indices[gid] = palette.findOrAdd(map.getTileForTileGID(gid)) + 1;
+        }
+        return indices[gid] - 1;
+    }
+}
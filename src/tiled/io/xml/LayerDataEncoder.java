@@ -0,0 +1,199 @@
+/*
+ *  Tiled Map Editor, (c) 2004-2008
+ *
+ *  This program is free software; you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation; either version 2 of the License, or
+ *  (at your option) any later version.
+ *
+ *  Adam Turk <aturk@biggeruniverse.com>
+ *  Bjorn Lindeijer <bjorn@lindeijer.nl>
+ */
+
+package tiled.io.xml;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+/**
+ * Encodes the data of a tile layer while it is being written, the
+ * counterpart of {@link LayerDataDecoder}. Global ids are packed as
+ * little-endian integers into a byte buffer, which is deflated in bulk when
+ * the data is compressed. The result is base64 encoded straight into the
+ * given writer. Only a few small buffers are used, whatever the size of the
+ * layer.
+ */
+class LayerDataEncoder
+{
+    private static final int BUFFER_SIZE = 8192;
+
+    private static final char[] alphabet =
+            "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789+/"
+            .toCharArray();
+
+    // Header of a gzip member without file name or time stamp, with the
+    // operating system unknown like GZIPOutputStream writes it
+    private static final byte[] GZIP_HEADER = {
+            0x1f, (byte) 0x8b, Deflater.DEFLATED, 0, 0, 0, 0, 0, 0, (byte) 0xff
+    };
+
+    private final Writer out;
+
+    // Bytes of global ids, written through a little-endian int view
+    private final byte[] bytes = new byte[BUFFER_SIZE];
+    private final IntBuffer ints = ByteBuffer.wrap(bytes)
+            .order(ByteOrder.LITTLE_ENDIAN).asIntBuffer();
+
+    // Deflater for compressed data, null for uncompressed data
+    private Deflater deflater;
+    private CRC32 crc;                  // only for gzip compressed data
+    private byte[] deflated;
+
+    // Bytes waiting to be base64 encoded, since 3 bytes make 4 characters
+    private final byte[] pending = new byte[3];
+    private int pendingCount;
+    private final char[] chars = new char[BUFFER_SIZE];
+    private int charCount;
+
+    /**
+     * @param out         the writer to write the base64 encoded data to
+     * @param compression the compression to apply
+     * @param level       the deflate compression level, from 0 to 9, or
+     *                    {@link Deflater#DEFAULT_COMPRESSION}
+     * @param strategy    the deflate strategy
+     */
+    LayerDataEncoder(Writer out, LayerCompression compression, int level,
+                     int strategy) throws IOException {
+        this.out = out;
+
+        if (compression != LayerCompression.NONE) {
+            // A gzip member wraps a raw deflate stream
+            final boolean gzip = compression == LayerCompression.GZIP;
+            deflater = new Deflater(level, gzip);
+            deflater.setStrategy(strategy);
+            deflated = new byte[BUFFER_SIZE];
+            if (gzip) {
+                crc = new CRC32();
+                encode(GZIP_HEADER, 0, GZIP_HEADER.length);
+            }
+        }
+    }
+
+    /**
+     * Encodes the given global ids.
+     */
+    void write(int[] gids, int offset, int length) throws IOException {
+        while (length > 0) {
+            final int n = Math.min(length, ints.capacity());
+            ints.clear();
+            ints.put(gids, offset, n);
+            output(n << 2);
+            offset += n;
+            length -= n;
+        }
+    }
+
+    /**
+     * Writes the data that is still buffered.
+     */
+    void finish() throws IOException {
+        if (deflater != null) {
+            deflater.finish();
+            while (!deflater.finished()) {
+                deflate();
+            }
+
+            if (crc != null) {
+                final byte[] trailer = new byte[8];
+                writeIntLE(trailer, 0, (int) crc.getValue());
+                writeIntLE(trailer, 4, (int) deflater.getBytesRead());
+                encode(trailer, 0, trailer.length);
+            }
+            deflater.end();
+        }
+
+        // Pad the last group of characters
+        if (pendingCount > 0) {
+            final int val = (pending[0] & 0xff) << 16 |
+                    (pendingCount > 1 ? (pending[1] & 0xff) << 8 : 0);
+            chars[charCount++] = alphabet[val >> 18];
+            chars[charCount++] = alphabet[val >> 12 & 0x3f];
+            chars[charCount++] = pendingCount > 1 ? alphabet[val >> 6 & 0x3f] : '=';
+            chars[charCount++] = '=';
+            pendingCount = 0;
+        }
+        out.write(chars, 0, charCount);
+        charCount = 0;
+    }
+
+    private void output(int length) throws IOException {
+        if (deflater == null) {
+            encode(bytes, 0, length);
+            return;
+        }
+
+        if (crc != null) {
+            crc.update(bytes, 0, length);
+        }
+        deflater.setInput(bytes, 0, length);
+        while (!deflater.needsInput()) {
+            deflate();
+        }
+    }
+
+    private void deflate() throws IOException {
+        final int n = deflater.deflate(deflated, 0, deflated.length);
+        encode(deflated, 0, n);
+    }
+
+    /**
+     * Base64 encodes the given bytes, writing out the characters whenever
+     * the character buffer is full.
+     */
+    private void encode(byte[] data, int offset, int length)
+            throws IOException {
+        final int end = offset + length;
+
+        // Complete the group left over from the previous call
+        while (pendingCount > 0 && pendingCount < 3 && offset < end) {
+            pending[pendingCount++] = data[offset++];
+        }
+        if (pendingCount == 3) {
+            encodeGroup(pending, 0);
+            pendingCount = 0;
+        }
+
+        while (end - offset >= 3) {
+            encodeGroup(data, offset);
+            offset += 3;
+        }
+        while (offset < end) {
+            pending[pendingCount++] = data[offset++];
+        }
+    }
+
+    private void encodeGroup(byte[] data, int offset) throws IOException {
+        if (charCount + 4 > chars.length) {
+            out.write(chars, 0, charCount);
+            charCount = 0;
+        }
+        final int val = (data[offset] & 0xff) << 16 |
+                (data[offset + 1] & 0xff) << 8 | (data[offset + 2] & 0xff);
+        chars[charCount++] = alphabet[val >> 18];
+        chars[charCount++] = alphabet[val >> 12 & 0x3f];
+        chars[charCount++] = alphabet[val >> 6 & 0x3f];
+        chars[charCount++] = alphabet[val & 0x3f];
+    }
+
+    private static void writeIntLE(byte[] data, int offset, int value) {
+        data[offset] = (byte) value;
+        data[offset + 1] = (byte) (value >> 8);
+        data[offset + 2] = (byte) (value >> 16);
+        data[offset + 3] = (byte) (value >> 24);
+    }
+}
@@ -13,6 +13,7 @@
 package tiled.io.xml;
 
 import java.awt.Color;
+import java.awt.Dimension;
 import java.awt.Image;
 import java.io.*;
 import java.lang.reflect.Constructor;
@@ -25,19 +26,28 @@ import java.util.zip.GZIPInputStream;
 import javax.imageio.ImageIO;
 import javax.xml.parsers.DocumentBuilder;
 import javax.xml.parsers.DocumentBuilderFactory;
+import javax.xml.parsers.ParserConfigurationException;
+import javax.xml.parsers.SAXParser;
+import javax.xml.parsers.SAXParserFactory;
 
+import org.w3c.dom.CDATASection;
 import org.w3c.dom.Document;
 import org.w3c.dom.Element;
 import org.w3c.dom.NamedNodeMap;
 import org.w3c.dom.Node;
 import org.w3c.dom.NodeList;
+import org.w3c.dom.Text;
+import org.xml.sax.Attributes;
 import org.xml.sax.EntityResolver;
 import org.xml.sax.InputSource;
 import org.xml.sax.SAXException;
+import org.xml.sax.ext.LexicalHandler;
+import org.xml.sax.helpers.DefaultHandler;
 import tiled.core.*;
 import tiled.io.ImageHelper;
 import tiled.io.MapReader;
 import tiled.io.PluginLogger;
+import tiled.io.TilesetCache;
 import tiled.mapeditor.Resources;
 import tiled.mapeditor.util.cutter.BasicTileCutter;
 import tiled.util.Base64;
@@ -48,6 +58,9 @@ import tiled.util.Util;
  */
 public class XMLMapTransformer implements MapReader
 {
+    private static final String LEXICAL_HANDLER =
+            "http://xml.org/sax/properties/lexical-handler";
+
     private Map map;
     private String xmlPath;
     private PluginLogger logger;
@@ -210,11 +223,15 @@ public class XMLMapTransformer implements MapReader
         return o;
     }
 
-    private Image unmarshalImage(Node t, String baseDir) throws IOException
+    /**
+     * Reads an image element. The image is not decoded yet, only the data
+     * needed to decode it later is kept.
+     */
+    private LazyImage unmarshalImage(Node t, String baseDir) throws IOException
     {
-        Element e = ((Element)t);
-        ImageHelper.ImageFormat imageFormat = ImageHelper.ImageFormat.valueOf(e.getAttribute("format").toUpperCase(), ImageHelper.ImageFormat.PNG);
-        Image img = null;
+        final Element e = ((Element)t);
+        final ImageHelper.ImageFormat imageFormat = ImageHelper.ImageFormat.valueOf(e.getAttribute("format").toUpperCase(), ImageHelper.ImageFormat.PNG);
+        LazyImage img = null;
 
         String source = getAttributeValue(t, "source");
 
@@ -224,9 +241,30 @@ public class XMLMapTransformer implements MapReader
             } else {
                 source = makeUrl(baseDir + source);
             }
-            img = ImageIO.read(new URL(source));
-            // todo: check whether external images would also be faster drawn
-            // todo: from a scaled instance, see below
+            final URL url = new URL(source);
+            img = new LazyImage() {
+                protected Image load() throws IOException {
+                    // todo: check whether external images would also be faster drawn
+                    // todo: from a scaled instance, see below
+                    return ImageIO.read(url);
+                }
+
+                public Dimension getSize() {
+                    try {
+                        Dimension size = readSize(url.openStream());
+                        if (size != null) {
+                            return size;
+                        }
+                    } catch (IOException ignored) {
+                    }
+                    return super.getSize();
+                }
+
+                public byte[] getPNGData() throws IOException {
+                    byte[] data = readFully(url.openStream());
+                    return readPNGSize(data) != null ? data : null;
+                }
+            };
         } else {
             NodeList nl = t.getChildNodes();
 
@@ -240,28 +278,32 @@ public class XMLMapTransformer implements MapReader
                     } else {
                         String sdata = cdata.getNodeValue();
                         char[] charArray = sdata.trim().toCharArray();
-                        byte[] imageData = Base64.decode(charArray);
-                                                
-                        switch(imageFormat){
-                            case PNG:{
-                                img = ImageHelper.pngToImage(imageData);
-                            }    break;
-                            case RAW:{
-                                int width = Integer.parseInt(e.getAttribute("width"));
-                                int height = Integer.parseInt(e.getAttribute("height"));
-                                ImageHelper.PixelFormat pixelFormat = ImageHelper.PixelFormat.valueOf(e.getAttribute("pixelFormat"));
-                                boolean bigEndian = e.getAttribute("byteOrder").equals("bigEndian");
-                                img = ImageHelper.rawToImage(imageData, pixelFormat, bigEndian, width, height);
-                            }    break;
-                        }
+                        final byte[] imageData = Base64.decode(charArray);
+                        img = new LazyImage() {
+                            protected Image load() throws IOException {
+                                return decodeImage(e, imageFormat, imageData);
+                            }
 
-                        // Deriving a scaled instance, even if it has the same
-                        // size, somehow makes drawing of the tiles a lot
-                        // faster on various systems (seen on Linux, Windows
-                        // and MacOS X).
-                        img = img.getScaledInstance(
-                                img.getWidth(null), img.getHeight(null),
-                                Image.SCALE_FAST);
+                            public Dimension getSize() {
+                                Dimension size = null;
+                                if (imageFormat == ImageHelper.ImageFormat.PNG) {
+                                    size = readPNGSize(imageData);
+                                } else if (imageFormat == ImageHelper.ImageFormat.RAW) {
+                                    size = new Dimension(
+                                            Integer.parseInt(e.getAttribute("width")),
+                                            Integer.parseInt(e.getAttribute("height")));
+                                }
+                                return size != null ? size : super.getSize();
+                            }
+
+                            public byte[] getPNGData() {
+                                if (imageFormat == ImageHelper.ImageFormat.PNG &&
+                                        readPNGSize(imageData) != null) {
+                                    return imageData;
+                                }
+                                return null;
+                            }
+                        };
                     }
                     break;
                 }
@@ -281,6 +323,50 @@ public class XMLMapTransformer implements MapReader
         return img;
     }
 
+    private static Image decodeImage(Element e,
+                                     ImageHelper.ImageFormat imageFormat,
+                                     byte[] imageData) throws IOException
+    {
+        Image img = null;
+        switch(imageFormat){
+            case PNG:{
+                img = ImageHelper.pngToImage(imageData);
+            }    break;
+            case RAW:{
+                int width = Integer.parseInt(e.getAttribute("width"));
+                int height = Integer.parseInt(e.getAttribute("height"));
+                ImageHelper.PixelFormat pixelFormat = ImageHelper.PixelFormat.valueOf(e.getAttribute("pixelFormat"));
+                boolean bigEndian = e.getAttribute("byteOrder").equals("bigEndian");
+                img = ImageHelper.rawToImage(imageData, pixelFormat, bigEndian, width, height);
+            }    break;
+        }
+        if (img == null) {
+            throw new IOException("Failed to decode embedded image");
+        }
+
+        // Deriving a scaled instance, even if it has the same
+        // size, somehow makes drawing of the tiles a lot
+        // faster on various systems (seen on Linux, Windows
+        // and MacOS X).
+        return img.getScaledInstance(
+                img.getWidth(null), img.getHeight(null),
+                Image.SCALE_FAST);
+    }
+
+    private static byte[] readFully(InputStream in) throws IOException {
+        try {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            byte[] buffer = new byte[8192];
+            int n;
+            while ((n = in.read(buffer)) != -1) {
+                out.write(buffer, 0, n);
+            }
+            return out.toByteArray();
+        } finally {
+            in.close();
+        }
+    }
+
     private TileSet unmarshalTilesetFile(InputStream in, String filename)
         throws Exception
     {
@@ -348,8 +434,14 @@ public class XMLMapTransformer implements MapReader
                     logger.warn("tileset files should end in .tsx! ("+source+")");
                 }
 
-                InputStream in = new URL(makeUrl(filename)).openStream();
-                ext = unmarshalTilesetFile(in, filename);
+                ext = TilesetCache.acquire(filename);
+                if (ext == null) {
+                    InputStream in = new URL(makeUrl(filename)).openStream();
+                    ext = unmarshalTilesetFile(in, filename);
+                    if (ext != null) {
+                        TilesetCache.put(filename, ext);
+                    }
+                }
             } catch (FileNotFoundException fnf) {
                 logger.error("Could not find external tileset file " +
                         filename);
@@ -414,7 +506,7 @@ public class XMLMapTransformer implements MapReader
                         set.importTileBitmap(sourcePath, new BasicTileCutter(
                                 tileWidth, tileHeight, tileSpacing, tileMargin));
                     } else {
-                        Image image = unmarshalImage(child, tilesetBaseDir);
+                        LazyImage image = unmarshalImage(child, tilesetBaseDir);
                         String idValue = getAttributeValue(child, "id");
                         int imageId = Integer.parseInt(idValue);
                         set.addImage(image, imageId, imgSource);
@@ -426,13 +518,19 @@ public class XMLMapTransformer implements MapReader
                         set.addTile(tile);
                     } else {
                         Tile myTile = set.getTile(tile.getId());
-                        myTile.setProperties(tile.getProperties());
+                        if (tile.hasProperties()) {
+                            myTile.setProperties(tile.getProperties());
+                        }
                         //TODO: there is the possibility here of overlaying images,
                         //      which some people may want
                     }
                 }
             }
 
+            if (!hasTilesetImage) {
+                // Draw the separate tile images from a single image
+                set.packAtlas();
+            }
             return set;
         }
     }
@@ -466,10 +564,9 @@ public class XMLMapTransformer implements MapReader
             }
         }
 
-        Properties props = new Properties();
-        readProperties(children, props);
-
-        obj.setProperties(props);
+        if (containsProperties(children)) {
+            readProperties(children, obj.getProperties());
+        }
         return obj;
     }
 
@@ -485,6 +582,21 @@ public class XMLMapTransformer implements MapReader
      * @param children the children amongst which to find properties
      * @param props    the properties object to set the properties of
      */
+    /**
+     * Returns whether the given nodes contain any properties, so that
+     * properties only need to be created for elements that have them.
+     */
+    private static boolean containsProperties(NodeList children) {
+        for (int i = 0; i < children.getLength(); i++) {
+            final String name = children.item(i).getNodeName();
+            if ("property".equalsIgnoreCase(name) ||
+                    "properties".equals(name)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
     private static void readProperties(NodeList children, Properties props) {
         for (int i = 0; i < children.getLength(); i++) {
             Node child = children.item(i);
@@ -537,16 +649,18 @@ public class XMLMapTransformer implements MapReader
 
         tile.setTileSet(set);
 
-        readProperties(children, tile.getProperties());
+        // Tiles without properties of their own do not need to create any
+        if (containsProperties(children)) {
+            readProperties(children, tile.getProperties());
+        }
 
         for (int i = 0; i < children.getLength(); i++) {
             Node child = children.item(i);
             if ("image".equalsIgnoreCase(child.getNodeName())) {
                 int id = getAttribute(child, "id", -1);
                 String src = getAttribute(child, "source", null);
-                Image img = unmarshalImage(child, baseDir);
                 if (id < 0) {
-                    id = set.addImage(img, src);
+                    id = set.addImage(unmarshalImage(child, baseDir), src);
                 }
                 tile.setImage(id);
             } else if ("animation".equalsIgnoreCase(child.getNodeName())) {
@@ -580,20 +694,20 @@ public class XMLMapTransformer implements MapReader
             }
         }
 
-        Properties props = new Properties();
-        readProperties(children, props);
-        og.setProperties(props);
+        readProperties(children, og.getProperties());
 
         return og;
     }
 
     /**
-     * Loads a map layer from a layer node.
-     * @param t the node representing the "layer" element
-     * @return the loaded map layer
-     * @throws Exception
+     * Creates the tile layer described by the attributes of a layer element.
+     * Its tiles are placed while the layer data is read, after which the
+     * layer is completed by {@link #finishLayer(Node, TileLayer)}.
+     *
+     * @param t the layer element
+     * @return the new, empty layer
      */
-    private MapLayer readLayer(Node t) throws Exception {
+    private TileLayer createLayer(Node t) {
         final int layerWidth = getAttribute(t, "width", map.getWidth());
         final int layerHeight = getAttribute(t, "height", map.getHeight());
         final int layerTileWidth = getAttribute(t, "tileWidth", map.getTileWidth());
@@ -601,89 +715,35 @@ public class XMLMapTransformer implements MapReader
         
         TileLayer ml = new TileLayer(layerWidth, layerHeight, layerTileWidth, layerTileHeight);
 
-        final int offsetX = getAttribute(t, "x", 0);
-        final int offsetY = getAttribute(t, "y", 0);
-        final int visible = getAttribute(t, "visible", 1);
-        final float viewPlaneDistance = getAttribute(t, "viewPlaneDistance", 0.0f);
-        final boolean viewPlaneInfinitelyFarAway = getAttribute(t, "viewPlaneInfinitelyFarAway", false);
-        final String opacity = getAttributeValue(t, "opacity");
-
         ml.setName(getAttributeValue(t, "name"));
 
+        final String opacity = getAttributeValue(t, "opacity");
         if (opacity != null) {
             ml.setOpacity(Float.parseFloat(opacity));
         }
+        return ml;
+    }
+
+    /**
+     * Completes a layer once its data has been read, from the attributes and
+     * the remaining child elements of the layer element.
+     *
+     * @param t  the layer element, without its data
+     * @param ml the layer holding the tiles that were read
+     */
+    private void finishLayer(Node t, TileLayer ml) {
+        final int offsetX = getAttribute(t, "x", 0);
+        final int offsetY = getAttribute(t, "y", 0);
+        final int visible = getAttribute(t, "visible", 1);
+        final float viewPlaneDistance = getAttribute(t, "viewPlaneDistance", 0.0f);
+        final boolean viewPlaneInfinitelyFarAway = getAttribute(t, "viewPlaneInfinitelyFarAway", false);
 
         readProperties(t.getChildNodes(), ml.getProperties());
 
         for (Node child = t.getFirstChild(); child != null;
                 child = child.getNextSibling())
         {
-            String nodeName = child.getNodeName();
-            if ("data".equalsIgnoreCase(nodeName)) {
-                String encoding = getAttributeValue(child, "encoding");
-
-                if (encoding != null && "base64".equalsIgnoreCase(encoding)) {
-                    Node cdata = child.getFirstChild();
-                    if (cdata == null) {
-                        logger.warn("layer <data> tag enclosed no data. (empty data tag)");
-                    } else {
-                        char[] enc = cdata.getNodeValue().trim().toCharArray();
-                        byte[] dec = Base64.decode(enc);
-                        ByteArrayInputStream bais = new ByteArrayInputStream(dec);
-                        InputStream is;
-
-                        String comp = getAttributeValue(child, "compression");
-
-                        if (comp != null && "gzip".equalsIgnoreCase(comp)) {
-                            is = new GZIPInputStream(bais);
-                        } else {
-                            is = bais;
-                        }
-
-                        for (int y = 0; y < ml.getHeight(); y++) {
-                            for (int x = 0; x < ml.getWidth(); x++) {
-                                int tileId = 0;
-                                tileId |= is.read();
-                                tileId |= is.read() <<  8;
-                                tileId |= is.read() << 16;
-                                tileId |= is.read() << 24;
-
-                                TileSet ts = map.findTileSetForTileGID(tileId);
-                                if (ts != null) {
-                                    ml.setTileAt(x, y,
-                                            ts.getTile(tileId - ts.getFirstGid()));
-                                } else {
-                                    ml.setTileAt(x, y, null);
-                                }
-                            }
-                        }
-                    }
-                } else {
-                    int x = 0, y = 0;
-                    for (Node dataChild = child.getFirstChild();
-                         dataChild != null;
-                         dataChild = dataChild.getNextSibling())
-                    {
-                        if ("tile".equalsIgnoreCase(dataChild.getNodeName())) {
-                            int tileId = getAttribute(dataChild, "gid", -1);
-                            TileSet ts = map.findTileSetForTileGID(tileId);
-                            if (ts != null) {
-                                ml.setTileAt(x, y,
-                                        ts.getTile(tileId - ts.getFirstGid()));
-                            } else {
-                                ml.setTileAt(x, y, null);
-                            }
-
-                            x++;
-                            if (x == ml.getWidth()) {
-                                x = 0; y++;
-                            }
-                            if (y == ml.getHeight()) { break; }
-                        }
-                    }
-                }
-            } else if ("tileproperties".equalsIgnoreCase(nodeName)) {
+            if ("tileproperties".equalsIgnoreCase(child.getNodeName())) {
                 for (Node tpn = child.getFirstChild();
                      tpn != null;
                      tpn = tpn.getNextSibling())
@@ -714,43 +774,14 @@ public class XMLMapTransformer implements MapReader
         
         ml.setViewPlaneDistance(viewPlaneDistance);
         ml.setViewPlaneInfinitelyFarAway(viewPlaneInfinitelyFarAway);
-        
-        return ml;
     }
 
-    private void buildMap(Document doc) throws Exception {
-        Node item, mapNode;
-
-        mapNode = doc.getDocumentElement();
-
-        if (!"map".equals(mapNode.getNodeName())) {
-            throw new Exception("Not a valid tmx map file.");
-        }
-
-        // Get the map dimensions and create the map
-        int mapWidth = getAttribute(mapNode, "width", 0);
-        int mapHeight = getAttribute(mapNode, "height", 0);
-
-        if (mapWidth > 0 && mapHeight > 0) {
-            map = new Map(mapWidth, mapHeight);
-        } else {
-            // Maybe this map is still using the dimensions element
-            NodeList l = doc.getElementsByTagName("dimensions");
-            for (int i = 0; (item = l.item(i)) != null; i++) {
-                if (item.getParentNode() == mapNode) {
-                    mapWidth = getAttribute(item, "width", 0);
-                    mapHeight = getAttribute(item, "height", 0);
-
-                    if (mapWidth > 0 && mapHeight > 0) {
-                        map = new Map(mapWidth, mapHeight);
-                    }
-                }
-            }
-        }
-
-        if (map == null) {
-            throw new Exception("Couldn't locate map dimensions.");
-        }
+    /**
+     * Creates the map with the given dimensions, and loads the other map
+     * attributes from the map element.
+     */
+    private void createMap(Node mapNode, int mapWidth, int mapHeight) {
+        map = new Map(mapWidth, mapHeight);
 
         // Load other map attributes
         String orientation = getAttributeValue(mapNode, "orientation");
@@ -777,58 +808,291 @@ public class XMLMapTransformer implements MapReader
         } else {
             setOrientation("orthogonal");
         }
-
-        // Load properties
-        readProperties(mapNode.getChildNodes(), map.getProperties());
-
-        // Load tilesets first, in case order is munged
-        NodeList l = doc.getElementsByTagName("tileset");
-            for (int i = 0; (item = l.item(i)) != null; i++) {
-                    map.addTileset(unmarshalTileset(item));
-        }
-
-        // Load the layers and objectgroups
-        for (Node sibs = mapNode.getFirstChild(); sibs != null;
-                sibs = sibs.getNextSibling())
-        {
-            if ("layer".equals(sibs.getNodeName())) {
-                MapLayer layer = readLayer(sibs);
-                if (layer != null) {
-                    map.addLayer(layer);
-                }
-            }
-            else if ("objectgroup".equals(sibs.getNodeName())) {
-                MapLayer layer = unmarshalObjectGroup(sibs);
-                if (layer != null) {
-                    map.addLayer(layer);
-                }
-            }
-        }
     }
 
     private Map unmarshal(InputStream in) throws Exception {
-        DocumentBuilderFactory factory = DocumentBuilderFactory.newInstance();
-        Document doc;
+        map = null;
+        MapHandler handler = new MapHandler();
         try {
-            factory.setIgnoringComments(true);
-            factory.setIgnoringElementContentWhitespace(true);
-            factory.setExpandEntityReferences(false);
-            DocumentBuilder builder = factory.newDocumentBuilder();
-            builder.setEntityResolver(entityResolver);
+            SAXParserFactory factory = SAXParserFactory.newInstance();
+            SAXParser parser = factory.newSAXParser();
+            parser.setProperty(LEXICAL_HANDLER, handler);
             InputSource insrc = new InputSource(in);
             insrc.setSystemId(xmlPath);
             insrc.setEncoding("UTF-8");
-            doc = builder.parse(insrc);
+            parser.parse(insrc, handler);
         } catch (SAXException e) {
+            if (e.getException() != null) {
+                // Thrown while building the map
+                throw e.getException();
+            }
             e.printStackTrace();
             throw new Exception("Error while parsing map file: " +
                     e.toString());
+        } finally {
+            handler.release();
         }
-
-        buildMap(doc);
         return map;
     }
 
+    /**
+     * Builds the map while the map file is being parsed, so that the file
+     * never needs to be held in memory as a whole. The data of each tile
+     * layer is decoded as it is read. The other elements below the map, like
+     * tilesets and object groups, are collected into small DOM fragments and
+     * then read the same way they would be from a complete document, after
+     * which they are discarded.
+     */
+    private class MapHandler extends DefaultHandler implements LexicalHandler
+    {
+        private final Document document;
+        private Element mapElement;     // attributes and unread children
+        private Node current;           // element being collected
+        private int depth;
+        private boolean inCDATA;
+
+        private TileLayer layer;        // layer being read
+        private Element layerElement;
+        private LayerDataDecoder decoder;
+        private boolean inData;
+        private boolean base64Data;
+        private boolean tilesetsAfterLayer;
+
+        // Decoders of the layers with global ids that did not resolve yet
+        private final java.util.List<LayerDataDecoder> decoders =
+                new java.util.ArrayList<LayerDataDecoder>();
+
+        MapHandler() throws ParserConfigurationException {
+            document = DocumentBuilderFactory.newInstance()
+                    .newDocumentBuilder().newDocument();
+        }
+
+        public InputSource resolveEntity(String publicId, String systemId)
+                throws SAXException
+        {
+            try {
+                return entityResolver.resolveEntity(publicId, systemId);
+            } catch (IOException e) {
+                throw new SAXException(e);
+            }
+        }
+
+        public void startElement(String uri, String localName, String qName,
+                                 Attributes attributes) throws SAXException
+        {
+            depth++;
+            try {
+                if (depth == 1) {
+                    if (!"map".equals(qName)) {
+                        throw new Exception("Not a valid tmx map file.");
+                    }
+                    mapElement = createElement(qName, attributes);
+                    int mapWidth = getAttribute(mapElement, "width", 0);
+                    int mapHeight = getAttribute(mapElement, "height", 0);
+                    if (mapWidth > 0 && mapHeight > 0) {
+                        createMap(mapElement, mapWidth, mapHeight);
+                    }
+                } else if (depth == 2 && "layer".equals(qName)) {
+                    requireMap();
+                    layerElement = createElement(qName, attributes);
+                    layer = createLayer(layerElement);
+                    current = layerElement;
+                } else if (depth == 3 && layer != null &&
+                        "data".equalsIgnoreCase(qName)) {
+                    inData = true;
+                    base64Data = "base64".equalsIgnoreCase(
+                            attributes.getValue("encoding"));
+                    if (decoder != null) {
+                        decoder.release();
+                    }
+                    decoder = new LayerDataDecoder(map, layer, base64Data ?
+                            LayerCompression.forAttributeValue(
+                                    attributes.getValue("compression")) :
+                            LayerCompression.NONE);
+                } else if (inData) {
+                    if (!base64Data && depth == 4 &&
+                            "tile".equalsIgnoreCase(qName)) {
+                        String gid = attributes.getValue("gid");
+                        decoder.addGid(gid != null ? Integer.parseInt(gid) : -1);
+                    }
+                } else {
+                    if (depth == 2) {
+                        current = mapElement;
+                    }
+                    if (current != null) {
+                        Element element = createElement(qName, attributes);
+                        current.appendChild(element);
+                        current = element;
+                    }
+                }
+            } catch (Exception e) {
+                throw new SAXException(e);
+            }
+        }
+
+        public void endElement(String uri, String localName, String qName)
+                throws SAXException
+        {
+            try {
+                if (depth == 1) {
+                    requireMap();
+                    if (tilesetsAfterLayer) {
+                        // Tiles could only be found once all tilesets were read
+                        for (LayerDataDecoder d : decoders) {
+                            d.resolve();
+                        }
+                    }
+                    decoders.clear();
+                } else if (depth == 2 && layer != null) {
+                    if (decoder != null && decoder.hasUnresolved()) {
+                        decoders.add(decoder);
+                    }
+                    finishLayer(layerElement, layer);
+                    map.addLayer(layer);
+                    layer = null;
+                    layerElement = null;
+                    decoder = null;
+                    current = null;
+                } else if (inData) {
+                    if (depth == 3) {
+                        inData = false;
+                        decoder.finish();
+                    }
+                } else if (depth == 2) {
+                    readMapChild((Element) current);
+                    mapElement.removeChild(current);
+                    current = null;
+                } else if (current != null) {
+                    current = current.getParentNode();
+                }
+            } catch (Exception e) {
+                throw new SAXException(e);
+            }
+            depth--;
+        }
+
+        public void characters(char[] ch, int start, int length)
+                throws SAXException
+        {
+            if (inData) {
+                if (base64Data) {
+                    try {
+                        decoder.write(ch, start, length);
+                    } catch (IOException e) {
+                        throw new SAXException(e);
+                    }
+                }
+                return;
+            }
+            if (current == null || depth < 2) {
+                return;
+            }
+
+            // Adjacent character data is joined into a single text node, as
+            // a document builder would do
+            final Node last = current.getLastChild();
+            if (last instanceof Text &&
+                    inCDATA == (last instanceof CDATASection)) {
+                ((Text) last).appendData(new String(ch, start, length));
+            } else if (inCDATA) {
+                current.appendChild(document.createCDATASection(
+                        new String(ch, start, length)));
+            } else {
+                current.appendChild(document.createTextNode(
+                        new String(ch, start, length)));
+            }
+        }
+
+        public void ignorableWhitespace(char[] ch, int start, int length)
+                throws SAXException
+        {
+            characters(ch, start, length);
+        }
+
+        public void startCDATA() {
+            inCDATA = true;
+            if (current != null && !inData) {
+                // A new section starts a new node
+                current.appendChild(document.createCDATASection(""));
+            }
+        }
+
+        public void endCDATA() {
+            inCDATA = false;
+        }
+
+        public void startDTD(String name, String publicId, String systemId) {
+        }
+
+        public void endDTD() {
+        }
+
+        public void startEntity(String name) {
+        }
+
+        public void endEntity(String name) {
+        }
+
+        public void comment(char[] ch, int start, int length) {
+        }
+
+        /**
+         * Reads a complete child element of the map element.
+         */
+        private void readMapChild(Element child) throws Exception {
+            final String name = child.getNodeName();
+            if ("dimensions".equals(name)) {
+                if (map == null) {
+                    int mapWidth = getAttribute(child, "width", 0);
+                    int mapHeight = getAttribute(child, "height", 0);
+                    if (mapWidth > 0 && mapHeight > 0) {
+                        createMap(mapElement, mapWidth, mapHeight);
+                    }
+                }
+            } else if ("properties".equals(name) || "property".equals(name)) {
+                requireMap();
+                readProperties(mapElement.getChildNodes(), map.getProperties());
+            } else if ("tileset".equals(name)) {
+                requireMap();
+                if (!decoders.isEmpty()) {
+                    tilesetsAfterLayer = true;
+                }
+                map.addTileset(unmarshalTileset(child));
+            } else if ("objectgroup".equals(name)) {
+                requireMap();
+                MapLayer objectGroup = unmarshalObjectGroup(child);
+                if (objectGroup != null) {
+                    map.addLayer(objectGroup);
+                }
+            }
+        }
+
+        /**
+         * Releases the decoder of the layer being read, in case reading the
+         * map stopped halfway.
+         */
+        void release() {
+            if (decoder != null) {
+                decoder.release();
+                decoder = null;
+            }
+        }
+
+        private void requireMap() throws Exception {
+            if (map == null) {
+                throw new Exception("Couldn't locate map dimensions.");
+            }
+        }
+
+        private Element createElement(String name, Attributes attributes) {
+            final Element element = document.createElement(name);
+            for (int i = 0; i < attributes.getLength(); i++) {
+                element.setAttribute(attributes.getQName(i),
+                        attributes.getValue(i));
+            }
+            return element;
+        }
+    }
 
     // MapReader interface
 
@@ -875,7 +1139,14 @@ public class XMLMapTransformer implements MapReader
         xmlPath = makeUrl(xmlPath);
 
         URL url = new URL(xmlFile);
-        return unmarshalTilesetFile(url.openStream(), filename);
+        TileSet set = TilesetCache.acquire(filename);
+        if (set == null) {
+            set = unmarshalTilesetFile(url.openStream(), filename);
+            if (set != null) {
+                TilesetCache.put(filename, set);
+            }
+        }
+        return set;
     }
 
     public TileSet readTileset(InputStream in) throws Exception {
@@ -14,11 +14,13 @@ package tiled.io.xml;
 
 import java.awt.Color;
 import java.awt.Image;
+import java.awt.Point;
 import java.awt.Rectangle;
 import java.io.*;
 import java.nio.charset.Charset;
 import java.util.*;
 import java.util.prefs.Preferences;
+import java.util.zip.Deflater;
 import java.util.zip.GZIPOutputStream;
 
 import tiled.core.*;
@@ -28,16 +30,17 @@ import tiled.io.MapWriter;
 import tiled.io.PluginLogger;
 import tiled.mapeditor.selection.SelectionLayer;
 import tiled.util.Base64;
+import tiled.util.PropertyMap;
 import tiled.util.TiledConfiguration;
+import tiled.util.Workers;
 
 /**
  * A writer for Tiled's TMX map format.
  */
 public class XMLMapWriter implements MapWriter
 {
-    private static final int LAST_BYTE = 0x000000FF;
-    
     private Preferences prefs = TiledConfiguration.node("saving");
+    private EncodingQueue encodingQueue;       // while writing a map
     
     public Preferences getPreferences(){
         return prefs;
@@ -46,6 +49,19 @@ public class XMLMapWriter implements MapWriter
     public void setPreferences(Preferences prefs){
         this.prefs = prefs;
     }
+
+    /**
+     * Returns the compression to apply to encoded layer data. This is the
+     * codec named by the <code>layerCodec</code> preference, which when not
+     * set follows the older <code>layerCompression</code> preference.
+     *
+     * @return the layer data compression
+     */
+    public LayerCompression getLayerCompression() {
+        return LayerCompression.valueOf(prefs.get("layerCodec", null),
+                prefs.getBoolean("layerCompression", true) ?
+                        LayerCompression.GZIP : LayerCompression.NONE);
+    }
         
     /**
      * Saves a map to an XML file.
@@ -146,30 +162,197 @@ public class XMLMapWriter implements MapWriter
         int firstgid = 1;
         for (TileSet tileset : map.getTilesets()) {
             tileset.setFirstGid(firstgid);
-            writeTilesetReference(tileset, w, wp);
             firstgid += tileset.getMaxTileId() + 1;
         }
 
-        if (prefs.getBoolean("encodeLayerData", true) && prefs.getBoolean("usefulComments", false))
-            w.writeComment("Layer data is " + (prefs.getBoolean("layerCompression", true) ? "compressed (GZip)" : "") + " binary data, encoded in Base64");
-        Iterator<MapLayer> ml = map.getLayers();
-        while (ml.hasNext()) {
-            MapLayer layer = ml.next();
-            writeMapLayer(layer, w, wp);
+        // Layer data and embedded images are encoded on the worker threads
+        // while the document is being written
+        if (Workers.getParallelism() > 1) {
+            encodingQueue = new EncodingQueue(Workers.getParallelism() * 2);
+        }
+        try {
+            if (encodingQueue != null) {
+                queuePayloads(map);
+            }
+
+            for (TileSet tileset : map.getTilesets()) {
+                writeTilesetReference(tileset, w, wp);
+            }
+
+            if (prefs.getBoolean("encodeLayerData", true) && prefs.getBoolean("usefulComments", false)) {
+                final LayerCompression compression = getLayerCompression();
+                w.writeComment("Layer data is " + (compression != LayerCompression.NONE ? "compressed (" + compression.getAttributeValue() + ")" : "") + " binary data, encoded in Base64");
+            }
+            Iterator<MapLayer> ml = map.getLayers();
+            while (ml.hasNext()) {
+                MapLayer layer = ml.next();
+                writeMapLayer(layer, w, wp);
+            }
+        } finally {
+            if (encodingQueue != null) {
+                encodingQueue.cancel();
+                encodingQueue = null;
+            }
         }
 
         w.endElement();
     }
 
+    /**
+     * Queues the layer data and the embedded images of the map for encoding,
+     * in the order in which they are going to be written.
+     */
+    private void queuePayloads(Map map) {
+        final boolean embedImages = prefs.getBoolean("embedImages", true);
+        final boolean tileSetImages = prefs.getBoolean("tileSetImages", false);
+
+        for (TileSet set : map.getTilesets()) {
+            if (set.getSource() != null || set.getTilebmpFile() != null) {
+                continue;
+            }
+            if (tileSetImages) {
+                Enumeration<String> ids = set.getImageIds();
+                while (ids.hasMoreElements()) {
+                    int id = Integer.parseInt(ids.nextElement());
+                    if (embedImages || set.getImageSource(id) == null) {
+                        queueImage(set, id);
+                    }
+                }
+            } else if (embedImages) {
+                Iterator<?> tileIterator = set.iterator();
+                while (tileIterator.hasNext()) {
+                    Tile tile = (Tile) tileIterator.next();
+                    if (tile != null && set.containsImage(tile.getImageId())) {
+                        queueImage(set, tile.getImageId());
+                    }
+                }
+            }
+        }
+
+        if (prefs.getBoolean("encodeLayerData", true)) {
+            Iterator<MapLayer> ml = map.getLayers();
+            while (ml.hasNext()) {
+                MapLayer layer = ml.next();
+                if (layer instanceof TileLayer) {
+                    encodingQueue.add(layer, createLayerPayload((TileLayer) layer));
+                }
+            }
+        }
+    }
+
+    private void queueImage(TileSet set, int imageId) {
+        encodingQueue.add(new ImageKey(set, imageId),
+                createImagePayload(set, imageId));
+    }
+
+    /**
+     * Writes a piece of character data, taking it from the encoding queue
+     * when it was encoded there.
+     */
+    private void writePayload(Object key, EncodingQueue.Payload payload,
+                              XMLWriter w) throws IOException {
+        final Writer out = w.startCharacters();
+        if (encodingQueue != null) {
+            encodingQueue.write(key, payload, out);
+        } else {
+            payload.encode(out);
+        }
+        w.endCharacters();
+    }
+
+    /**
+     * Identifies an embedded image in the encoding queue.
+     */
+    private static class ImageKey
+    {
+        private final TileSet set;
+        private final int imageId;
+
+        ImageKey(TileSet set, int imageId) {
+            this.set = set;
+            this.imageId = imageId;
+        }
+
+        public boolean equals(Object o) {
+            return o instanceof ImageKey && ((ImageKey) o).set == set &&
+                    ((ImageKey) o).imageId == imageId;
+        }
+
+        public int hashCode() {
+            return System.identityHashCode(set) * 31 + imageId;
+        }
+    }
+
+    /**
+     * Creates the payload encoding an embedded image in the image format
+     * chosen in the preferences.
+     */
+    private EncodingQueue.Payload createImagePayload(final TileSet set,
+                                                     final int imageId) {
+        final ImageHelper.ImageFormat imageFormat = ImageHelper.ImageFormat.valueOf(prefs.get("imageFormat", "PNG"), ImageHelper.ImageFormat.PNG);
+        final ImageHelper.PixelFormat pixelFormat = ImageHelper.PixelFormat.valueOf(prefs.get("pixelFormat", "A8R8G8B8"), ImageHelper.PixelFormat.A8R8G8B8);
+        final boolean imageIsBigEndian = prefs.getBoolean("imageIsBigEndian", true);
+
+        return new EncodingQueue.Payload() {
+            public void encode(Writer out) throws IOException {
+                byte[] data;
+                if (imageFormat == ImageHelper.ImageFormat.RAW) {
+                    data = ImageHelper.imageToRAW(set.getImageById(imageId), pixelFormat, imageIsBigEndian);
+                } else {
+                    // Images that were loaded from PNG data and not changed
+                    // since are written as they were, without decoding them
+                    data = set.getImagePNGData(imageId);
+                    if (data == null) {
+                        data = ImageHelper.imageToPNG(set.getImageById(imageId));
+                    }
+                }
+                out.write(Base64.encode(data));
+            }
+        };
+    }
+
+    /**
+     * Creates the payload encoding the data of a tile layer, with the
+     * compression chosen in the preferences.
+     */
+    private EncodingQueue.Payload createLayerPayload(final TileLayer layer) {
+        final LayerCompression compression = getLayerCompression();
+        final int level = prefs.getInt("layerCompressionLevel",
+                Deflater.DEFAULT_COMPRESSION);
+        final int strategy = LayerCompression.Strategy.valueOf(
+                prefs.get("layerCompressionStrategy", null),
+                LayerCompression.Strategy.DEFAULT).getValue();
+
+        return new EncodingQueue.Payload() {
+            public void encode(Writer out) throws IOException {
+                final Rectangle bounds = layer.getBounds();
+                final TileRaster raster = layer.getRaster();
+                final int[] gids = getPaletteGids(layer.getPalette());
+                final int[] row = new int[bounds.width];
+
+                LayerDataEncoder encoder = new LayerDataEncoder(out,
+                        compression, level, strategy);
+                for (int y = 0; y < bounds.height; y++) {
+                    raster.getCells(0, y, bounds.width, row, 0);
+                    for (int x = 0; x < bounds.width; x++) {
+                        row[x] = gids[row[x]];
+                    }
+                    encoder.write(row, 0, bounds.width);
+                }
+                encoder.finish();
+            }
+        };
+    }
+
     private static void writeProperties(Properties props, XMLWriter w) throws
             IOException
     {
-        if (!props.isEmpty()) {
-            final SortedSet<Object> propertyKeys = new TreeSet<Object>();
-            propertyKeys.addAll(props.keySet());
+        // Includes the properties taken from defaults, like the default
+        // properties of a tileset
+        final SortedSet<String> propertyKeys = PropertyMap.names(props);
+        if (!propertyKeys.isEmpty()) {
             w.startElement("properties");
-            for (Object propertyKey : propertyKeys) {
-                final String key = (String) propertyKey;
+            for (String key : propertyKeys) {
                 final String property = props.getProperty(key);
                 w.startElement("property");
                 w.writeAttribute("name", key);
@@ -213,7 +396,7 @@ public class XMLMapWriter implements MapWriter
         }
     }
 
-    private void writeEmbeddedImage(int id, Image image, XMLWriter w, String imageSource) throws IOException 
+    private void writeEmbeddedImage(int id, TileSet set, int imageId, XMLWriter w, String imageSource) throws IOException 
     {
         String imageFormatName = prefs.get("imageFormat", "PNG");
         String pixelFormatName = prefs.get("pixelFormat", "A8R8G8B8");
@@ -236,17 +419,20 @@ public class XMLMapWriter implements MapWriter
             case PNG:
                 w.startElement("data");
                 w.writeAttribute("encoding", "base64");
-                w.writeCDATA(new String(Base64.encode(ImageHelper.imageToPNG(image))));
+                writePayload(new ImageKey(set, imageId),
+                        createImagePayload(set, imageId), w);
                 w.endElement();
                 break;
             case RAW:
+                Image image = set.getImageById(imageId);
                 w.writeAttribute("pixelFormat", pixelFormat.toString());
                 w.writeAttribute("byteOrder", imageIsBigEndian ? "bigEndian" : "littleEndian");
                 w.writeAttribute("width", ImageHelper.getImageWidth(image));
                 w.writeAttribute("height", ImageHelper.getImageHeight(image));
                 w.startElement("data");
                 w.writeAttribute("encoding", "base64");
-                w.writeCDATA(new String(Base64.encode(ImageHelper.imageToRAW(image, pixelFormat, imageIsBigEndian))));
+                writePayload(new ImageKey(set, imageId),
+                        createImagePayload(set, imageId), w);
                 w.endElement();
                 break;
         }
@@ -301,7 +487,7 @@ public class XMLMapWriter implements MapWriter
             while (tileIterator.hasNext()) {
                 Tile tile = (Tile) tileIterator.next();
                 // todo: move the null check back into the iterator?
-                if (tile != null && !tile.getProperties().isEmpty()) {
+                if (tile != null && tile.hasProperties()) {
                     w.startElement("tile");
                     w.writeAttribute("id", tile.getId());
                     writeProperties(tile.getProperties(), w);
@@ -329,7 +515,6 @@ public class XMLMapWriter implements MapWriter
                 while (ids.hasMoreElements()) {
                     String idString = ids.nextElement();
                     int id = Integer.parseInt(idString);
-                    Image image = set.getImageById(id);
                     String imagePath = set.getImageSource(id);
                     
                     // if images are not to be embedded, we need the actual source
@@ -340,7 +525,7 @@ public class XMLMapWriter implements MapWriter
                         w.writeAttribute("source", getRelativePath(wp, imagePath));
                         w.endElement();
                     }else
-                        writeEmbeddedImage(id, image, w, set.getImageSource(id));
+                        writeEmbeddedImage(id, set, id, w, set.getImageSource(id));
                 }
             }
 
@@ -355,7 +540,7 @@ public class XMLMapWriter implements MapWriter
                 // TODO: This shouldn't be necessary
                 while (tileIterator.hasNext()) {
                     Tile tile = (Tile)tileIterator.next();
-                    if (!tile.getProperties().isEmpty()) {
+                    if (tile.hasProperties()) {
                         needWrite = true;
                         break;
                     }
@@ -393,9 +578,7 @@ public class XMLMapWriter implements MapWriter
     private void writeMapLayer(MapLayer l, XMLWriter w, String wp) throws IOException {
         boolean encodeLayerData =
                 prefs.getBoolean("encodeLayerData", true);
-        boolean compressLayerData =
-                prefs.getBoolean("layerCompression", true) &&
-                        encodeLayerData;
+        LayerCompression compression = getLayerCompression();
 
         Rectangle bounds = l.getBounds();
 
@@ -426,6 +609,11 @@ public class XMLMapWriter implements MapWriter
         if (l.getOpacity() < 1.0f) {
             w.writeAttribute("opacity", l.getOpacity());
         }
+        if (l instanceof TileLayer) {
+            // Attributes have to be written before the properties element
+            w.writeAttribute("tileWidth", ((TileLayer) l).getTileWidth());
+            w.writeAttribute("tileHeight", ((TileLayer) l).getTileHeight());
+        }
 
         writeProperties(l.getProperties(), w);
 
@@ -433,56 +621,24 @@ public class XMLMapWriter implements MapWriter
             writeObjectGroup((ObjectGroup) l, w, wp);
         } else if (l instanceof TileLayer) {
             final TileLayer tl = (TileLayer) l;
-            w.writeAttribute("tileWidth", tl.getTileWidth());
-            w.writeAttribute("tileHeight", tl.getTileHeight());
             w.startElement("data");
             if (encodeLayerData) {
-                ByteArrayOutputStream baos = new ByteArrayOutputStream();
-                OutputStream out;
-
                 w.writeAttribute("encoding", "base64");
-
-                if (compressLayerData) {
-                    w.writeAttribute("compression", "gzip");
-                    out = new GZIPOutputStream(baos);
-                } else {
-                    out = baos;
+                if (compression != LayerCompression.NONE) {
+                    w.writeAttribute("compression",
+                            compression.getAttributeValue());
                 }
 
-                for (int y = 0; y < l.getHeight(); y++) {
-                    for (int x = 0; x < l.getWidth(); x++) {
-                        Tile tile = tl.getTileAt(x + bounds.x,
-                                                 y + bounds.y);
-                        int gid = 0;
-
-                        if (tile != null) {
-                            gid = tile.getGid();
-                        }
-
-                        out.write(gid       & LAST_BYTE);
-                        out.write(gid >> 8  & LAST_BYTE);
-                        out.write(gid >> 16 & LAST_BYTE);
-                        out.write(gid >> 24 & LAST_BYTE);
-                    }
-                }
-
-                if (compressLayerData) {
-                    ((GZIPOutputStream)out).finish();
-                }
-
-                w.writeCDATA(new String(Base64.encode(baos.toByteArray())));
+                writePayload(tl, createLayerPayload(tl), w);
             } else {
-                for (int y = 0; y < l.getHeight(); y++) {
-                    for (int x = 0; x < l.getWidth(); x++) {
-                        Tile tile = tl.getTileAt(x + bounds.x, y + bounds.y);
-                        int gid = 0;
-
-                        if (tile != null) {
-                            gid = tile.getGid();
-                        }
-
+                final TileRaster raster = tl.getRaster();
+                final int[] gids = getPaletteGids(tl.getPalette());
+                final int[] row = new int[bounds.width];
+                for (int y = 0; y < bounds.height; y++) {
+                    raster.getCells(0, y, bounds.width, row, 0);
+                    for (int x = 0; x < bounds.width; x++) {
                         w.startElement("tile");
-                        w.writeAttribute("gid", gid);
+                        w.writeAttribute("gid", gids[row[x]]);
                         w.endElement();
                     }
                 }
@@ -491,24 +647,22 @@ public class XMLMapWriter implements MapWriter
 
             boolean tilePropertiesElementStarted = false;
 
-            for (int y = 0; y < l.getHeight(); y++) {
-                for (int x = 0; x < l.getWidth(); x++) {
-                    Properties tip = tl.getTileInstancePropertiesAt(x, y);
+            for (Point p : tl.getTileInstancePropertyLocations()) {
+                Properties tip = tl.getTileInstancePropertiesAt(p.x, p.y);
 
-                    if (tip != null && !tip.isEmpty()) {
-                        if (!tilePropertiesElementStarted) {
-                            w.startElement("tileproperties");
-                            tilePropertiesElementStarted = true;
-                        }
-                        w.startElement("tile");
+                if (tip != null && !tip.isEmpty()) {
+                    if (!tilePropertiesElementStarted) {
+                        w.startElement("tileproperties");
+                        tilePropertiesElementStarted = true;
+                    }
+                    w.startElement("tile");
 
-                        w.writeAttribute("x", x);
-                        w.writeAttribute("y", y);
+                    w.writeAttribute("x", p.x - bounds.x);
+                    w.writeAttribute("y", p.y - bounds.y);
 
-                        writeProperties(tip, w);
+                    writeProperties(tip, w);
 
-                        w.endElement();
-                    }
+                    w.endElement();
                 }
             }
 
@@ -518,6 +672,21 @@ public class XMLMapWriter implements MapWriter
         w.endElement();
     }
 
+    /**
+     * Resolves the global tile ids of all tiles in the given palette, so that
+     * layer data can be written without looking up each cell's tile.
+     *
+     * @param palette the palette of a tile layer
+     * @return an array mapping palette indices to global tile ids
+     */
+    private static int[] getPaletteGids(TilePalette palette) {
+        int[] gids = new int[palette.size()];
+        for (int i = 1; i < gids.length; i++) {
+            gids[i] = palette.getTile(i).getGid();
+        }
+        return gids;
+    }
+
     /**
      * Used to write tile elements for tilesets not based on a tileset image.
      *
@@ -533,16 +702,16 @@ public class XMLMapWriter implements MapWriter
         //    w.writeAttribute("groundheight", "" + groundHeight);
         //}
 
-        writeProperties(tile.getProperties(), w);
+        if (tile.hasProperties()) {
+            writeProperties(tile.getProperties(), w);
+        }
 
         boolean embedImages = prefs.getBoolean("embedImages", true);
         boolean tileSetImages = prefs.getBoolean("tileSetImages", false);
-        Image tileImage = tile.getImage();
-
         // Write encoded data
-        if (tileImage != null) {
+        if (set.containsImage(tile.getImageId())) {
             if (embedImages && !tileSetImages) {
-                writeEmbeddedImage(-1, tileImage, w, set.getImageSource(tile.getImageId()));
+                writeEmbeddedImage(-1, set, tile.getImageId(), w, set.getImageSource(tile.getImageId()));
             } else if (embedImages && tileSetImages) {
                 w.startElement("image");
                 w.writeAttribute("id", tile.getImageId());
@@ -560,7 +729,10 @@ public class XMLMapWriter implements MapWriter
                     String path = prefs.get("maplocation", "") + filename;
                     w.writeAttribute("source", filename);
                     FileOutputStream fw = new FileOutputStream(new File(path));
-                    byte[] data = ImageHelper.imageToPNG(tileImage);
+                    byte[] data = set.getImagePNGData(tile.getImageId());
+                    if (data == null) {
+                        data = ImageHelper.imageToPNG(tile.getImage());
+                    }
                     fw.write(data, 0, data.length);
                     fw.close();
                 }
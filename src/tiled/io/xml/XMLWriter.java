@@ -170,6 +170,28 @@ public class XMLWriter
         w.write(content + newLine);
     }
 
+    /**
+     * Starts character data that is too large to be passed as a single
+     * string. The data is written to the returned writer, which writes
+     * straight to the output without escaping anything, and is ended with
+     * {@link #endCharacters()}.
+     *
+     * @return the writer to write the character data to
+     */
+    public Writer startCharacters() throws IOException {
+        if (bStartTagOpen) {
+            w.write(">" + newLine);
+            bStartTagOpen = false;
+        }
+
+        writeIndent();
+        return w;
+    }
+
+    public void endCharacters() throws IOException {
+        w.write(newLine);
+    }
+
     public void writeComment(String content) throws IOException {
         if (bStartTagOpen) {
             w.write(">" + newLine);
@@ -17,6 +17,7 @@ import java.awt.event.*;
 import java.awt.geom.Area;
 import java.io.File;
 import java.io.IOException;
+import java.text.MessageFormat;
 import java.util.Iterator;
 import java.util.ListIterator;
 import java.util.Stack;
@@ -34,6 +35,7 @@ import javax.swing.undo.UndoableEditSupport;
 import tiled.core.*;
 import tiled.io.MapHelper;
 import tiled.io.MapReader;
+import tiled.io.TilesetCache;
 import tiled.mapeditor.actions.*;
 import tiled.mapeditor.brush.AbstractBrush;
 import tiled.mapeditor.brush.BrushException;
@@ -313,9 +315,14 @@ public class MapEditor implements ActionListener, MouseListener,
         final Preferences display = prefs.node("display");
         display.addPreferenceChangeListener(new PreferenceChangeListener() {
             public void preferenceChange(PreferenceChangeEvent event) {
+                String key = event.getKey();
+                if ("scaledImageCache".equals(key)) {
+                    MipmapCache.setBudget(display.getInt("scaledImageCache",
+                            64) * 1024L * 1024L);
+                }
+
                 if (mapView == null) return;
 
-                String key = event.getKey();
                 if ("gridOpacity".equals(key)) {
                     mapView.setGridOpacity(display.getInt("gridOpacity", 255));
                 }
@@ -520,6 +527,9 @@ public class MapEditor implements ActionListener, MouseListener,
         tilesetMenu.add(createMenuItem(
                 Resources.getString("menu.tilesets.refresh"), null,
                 Resources.getString("menu.tilesets.refresh.tooltip"), "F5"));
+        tilesetMenu.add(createMenuItem(
+                Resources.getString("menu.tilesets.mergeduplicates"), null,
+                Resources.getString("menu.tilesets.mergeduplicates.tooltip")));
         tilesetMenu.addSeparator();
         tilesetMenu.add(createMenuItem(
                 Resources.getString("menu.tilesets.manager"), null,
@@ -1039,9 +1049,11 @@ public class MapEditor implements ActionListener, MouseListener,
                 case PS_PAINT:
                     paintEdit.setPresentationName(TOOL_PAINT);
                     if (layer instanceof TileLayer) {
+                        // The painted area is repainted through the change
+                        // event published at the end of the batch
+                        ((TileLayer) layer).beginChange();
                         try {
-                            mapView.repaintRegion(
-                                    layer,currentBrush.doPaint(tile.x, tile.y));
+                            currentBrush.doPaint(tile.x, tile.y);
                             statusLabel.clearText();
                         } catch(LayerLockedBrushException llx) {
                             statusLabel.setErrorText(STATUS_PAINT_ERROR_LAYER_LOCKED);
@@ -1051,6 +1063,8 @@ public class MapEditor implements ActionListener, MouseListener,
                             statusLabel.setErrorText(STATUS_PAINT_ERROR_GENERAL);
                         } catch (Exception e) {
                             e.printStackTrace();
+                        } finally {
+                            ((TileLayer) layer).endChange();
                         }
                     }
                     break;
@@ -1058,8 +1072,6 @@ public class MapEditor implements ActionListener, MouseListener,
                     paintEdit.setPresentationName(TOOL_ERASE);
                     if (layer instanceof TileLayer) {
                         ((TileLayer) layer).setTileAt(tile.x, tile.y, null);
-                        mapView.repaintRegion(layer,new Rectangle(
-                                tile.x, tile.y, 1, 1));
                     }
                     break;
                 case PS_POUR:
@@ -1067,8 +1079,9 @@ public class MapEditor implements ActionListener, MouseListener,
                     if (layer instanceof TileLayer) {
                         TileLayer tileLayer = (TileLayer) layer;
                         Tile oldTile = tileLayer.getTileAt(tile.x, tile.y);
+                        tileLayer.beginChange();
                         pour(tileLayer, tile.x, tile.y, currentTile, oldTile);
-                        mapView.repaint();
+                        tileLayer.endChange();
                     }
                     break;
                 case PS_EYED:
@@ -1359,8 +1372,9 @@ public class MapEditor implements ActionListener, MouseListener,
         if (paintEdit != null) {
             if (layer != null) {
                 try {
-                    MapLayer endLayer = paintEdit.getStart().createDiff(layer);
-                    paintEdit.end(endLayer);
+                    // Layer copies share their unchanged data, so this only
+                    // costs memory for the parts that were painted
+                    paintEdit.end(createLayerCopy(layer));
                     undoSupport.postEdit(paintEdit);
                 } catch (Exception e) {
                     e.printStackTrace();
@@ -1543,6 +1557,35 @@ public class MapEditor implements ActionListener, MouseListener,
                 mapView.repaint();
                 brushPreview.setBrush(currentBrush);
             }
+        } else if (command.equals(Resources.getString("menu.tilesets.mergeduplicates"))) {
+            if (currentMap != null) {
+                try {
+                    // Images are only compared by content when asked to
+                    currentMap.shareTilesetImages();
+                    java.util.Map<Tile, Tile> duplicates =
+                            currentMap.findDuplicateTiles();
+                    MergeDuplicateTilesEdit edit = new MergeDuplicateTilesEdit(
+                            currentMap, duplicates, Resources.getString(
+                                    "menu.tilesets.mergeduplicates"));
+                    int merged = currentMap.mergeDuplicateTiles(duplicates);
+                    if (merged > 0) {
+                        edit.end();
+                        undoSupport.postEdit(edit);
+                    }
+                    JOptionPane.showMessageDialog(appFrame,
+                            MessageFormat.format(Resources.getString(
+                                    "action.tileset.mergeduplicates.done.message"),
+                                    new Object[]{merged}),
+                            Resources.getString("menu.tilesets.mergeduplicates"),
+                            JOptionPane.INFORMATION_MESSAGE);
+                } catch (LayerLockedException e) {
+                    JOptionPane.showMessageDialog(appFrame,
+                            Resources.getString("action.tileset.mergeduplicates.error.layer-locked.message"),
+                            Resources.getString("menu.tilesets.mergeduplicates"),
+                            JOptionPane.ERROR_MESSAGE);
+                }
+                brushPreview.setBrush(currentBrush);
+            }
         } else if (command.equals(Resources.getString("menu.tilesets.manager"))) {
             if (currentMap != null) {
                 TilesetManager manager = new TilesetManager(appFrame, currentMap);
@@ -1627,6 +1670,19 @@ public class MapEditor implements ActionListener, MouseListener,
     }
     
     public void layerChanged(MapChangedEvent e, MapLayerChangeEvent layerChangeEvent) {
+        if (e.getMap() != currentMap || layerChangeEvent.getChangeType()
+                != MapLayerChangeEvent.CHANGETYPE_TILES) {
+            return;
+        }
+
+        MapLayer layer = currentMap.getLayer(e.getLayerIndex());
+        if (layer != null) {
+            Rectangle region = layerChangeEvent.getRegion();
+            mapView.repaintRegion(layer, region);
+            if (miniMap != null) {
+                miniMap.refresh(layer, region);
+            }
+        }
     }
 
     public void tilesetAdded(MapChangedEvent e, TileSet tileset) {
@@ -2016,15 +2072,15 @@ public class MapEditor implements ActionListener, MouseListener,
             //FIXME: only works for TileLayers
             if (currentMap != null && marqueeSelection != null) {
                 MapLayer cl = getCurrentLayer();
-                clipboardLayer = new TileLayer(
+                TileLayer clipboard = new TileLayer(
                         marqueeSelection.getSelectedAreaBounds(), cl.getTileWidth(), cl.getTileHeight());
+                clipboardLayer = clipboard;
+                TileMask mask = marqueeSelection.getSelectedMask();
                 ListIterator<MapLayer> itr = currentMap.getLayers();
                 while(itr.hasNext()) {
                     MapLayer layer = (MapLayer) itr.next();
                     if (layer instanceof TileLayer) {
-                        clipboardLayer.maskedMergeOnto(
-                                layer,
-                                marqueeSelection.getSelectedArea());
+                        clipboard.mergeRegion((TileLayer) layer, mask);
                     }
                 }
             }
@@ -2050,22 +2106,15 @@ public class MapEditor implements ActionListener, MouseListener,
                     clipboardLayer = new ObjectGroup(
                             marqueeSelection.getSelectedAreaBounds());
                 }
-                clipboardLayer.maskedCopyFrom(
-                        ml, marqueeSelection.getSelectedArea());
-
-                Rectangle area = marqueeSelection.getSelectedAreaBounds();
-                Area mask = marqueeSelection.getSelectedArea();
                 if (ml instanceof TileLayer) {
-                    TileLayer tl = (TileLayer)ml;
-                    for (int i = area.y; i < area.height+area.y; i++) {
-                        for (int j = area.x; j < area.width + area.x; j++){
-                            if (mask.contains(j,i)) {
-                                tl.setTileAt(j, i, null);
-                            }
-                        }
-                    }
+                    TileMask mask = marqueeSelection.getSelectedMask();
+                    ((TileLayer) clipboardLayer).copyRegion(
+                            (TileLayer) ml, mask);
+                    ((TileLayer) ml).fillRegion(mask, null);
+                } else {
+                    clipboardLayer.maskedCopyFrom(
+                            ml, marqueeSelection.getSelectedArea());
                 }
-                mapView.repaintRegion(ml,area);
             }
         }
     }
@@ -2129,15 +2178,10 @@ public class MapEditor implements ActionListener, MouseListener,
                 }
             }
         } else {
-            if (marqueeSelection.getSelectedArea().contains(x, y)) {
+            TileMask mask = marqueeSelection.getSelectedMask();
+            if (mask.contains(x, y)) {
                 area = marqueeSelection.getSelectedAreaBounds();
-                for (int i = area.y; i < area.height + area.y; i++) {
-                    for (int j = area.x; j < area.width + area.x; j++) {
-                        if (marqueeSelection.getSelectedArea().contains(j, i)){
-                            layer.setTileAt(j, i, newTile);
-                        }
-                    }
-                }
+                layer.fillRegion(mask, newTile);
             } else {
                 return;
             }
@@ -2291,9 +2335,23 @@ public class MapEditor implements ActionListener, MouseListener,
         }
         marqueeSelection = null;
 
+        // Let maps opened later share the tilesets of the closed map
+        if (currentMap != null && currentMap != newMap) {
+            for (TileSet tileset : currentMap.getTilesets()) {
+                TilesetCache.release(tileset);
+            }
+        }
+
         currentMap = newMap;
         boolean mapLoaded = currentMap != null;
 
+        // Decode the tileset images in the background, before they are drawn
+        if (mapLoaded) {
+            for (TileSet tileset : currentMap.getTilesets()) {
+                tileset.prefetchImages();
+            }
+        }
+
         // Create a default brush (protect against a bug with custom brushes)
         ShapeBrush sb = new ShapeBrush();
         sb.makeQuadBrush(new Rectangle(0, 0, 1, 1));
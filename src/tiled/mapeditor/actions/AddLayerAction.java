@@ -12,6 +12,8 @@
 
 package tiled.mapeditor.actions;
 
+import javax.swing.JOptionPane;
+
 import tiled.mapeditor.Resources;
 import tiled.mapeditor.MapEditor;
 import tiled.core.Map;
@@ -32,7 +34,16 @@ public class AddLayerAction extends AbstractLayerAction
 
     protected void doPerformAction() {
         Map currentMap = editor.getCurrentMap();
-        currentMap.addLayer();
+        try {
+            currentMap.addLayer();
+        } catch (IllegalStateException e) {
+            e.printStackTrace();
+            JOptionPane.showMessageDialog(editor.getAppFrame(),
+                    e.getLocalizedMessage(),
+                    Resources.getString("action.layer.add.error.title"),
+                    JOptionPane.ERROR_MESSAGE);
+            return;
+        }
         editor.setCurrentLayerIndex(currentMap.getTotalLayers() - 1);
     }
 }
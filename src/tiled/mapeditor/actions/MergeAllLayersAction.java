@@ -49,22 +49,28 @@ public class MergeAllLayersAction extends AbstractLayerAction
                 "Do you wish to merge tile images, and create a new tile set?",
                 "Merge Tiles?", JOptionPane.YES_NO_CANCEL_OPTION);
 
-        if (ret == JOptionPane.YES_OPTION) {
-            TileMergeHelper tmh = new TileMergeHelper(map);
-            int len = map.getTotalLayers();
-            //TODO: Add a dialog option: "Yes, visible only"
-            TileLayer newLayer = tmh.merge(0, len, true);
-            map.removeAllLayers();
-            map.addLayer(newLayer);
-            newLayer.setName("Merged Layer");
-            map.addTileset(tmh.getSet());
-            editor.setCurrentLayerIndex(0);
-        }
-        else if (ret == JOptionPane.NO_OPTION) {
-            while (map.getTotalLayers() > 1) {
-                map.mergeLayerDown(editor.getCurrentLayerIndex());
+        // Publish the changes to the map once the merge is complete
+        map.beginUpdate();
+        try {
+            if (ret == JOptionPane.YES_OPTION) {
+                TileMergeHelper tmh = new TileMergeHelper(map);
+                int len = map.getTotalLayers();
+                //TODO: Add a dialog option: "Yes, visible only"
+                TileLayer newLayer = tmh.merge(0, len, true);
+                map.removeAllLayers();
+                map.addLayer(newLayer);
+                newLayer.setName("Merged Layer");
+                map.addTileset(tmh.getSet());
+                editor.setCurrentLayerIndex(0);
+            }
+            else if (ret == JOptionPane.NO_OPTION) {
+                while (map.getTotalLayers() > 1) {
+                    map.mergeLayerDown(editor.getCurrentLayerIndex());
+                }
+                editor.setCurrentLayerIndex(0);
             }
-            editor.setCurrentLayerIndex(0);
+        } finally {
+            map.endUpdate();
         }
     }
 }
@@ -21,11 +21,13 @@ import java.util.prefs.Preferences;
 import java.io.File;
 import java.io.FileOutputStream;
 import java.io.FileInputStream;
+import java.util.zip.Deflater;
 import javax.swing.*;
 import javax.swing.event.ChangeEvent;
 import javax.swing.event.ChangeListener;
 
 import tiled.io.ImageHelper;
+import tiled.io.xml.LayerCompression;
 import tiled.mapeditor.widget.IntegerSpinner;
 import tiled.mapeditor.widget.VerticalStaticJPanel;
 import tiled.mapeditor.Resources;
@@ -39,9 +41,15 @@ import tiled.util.TiledConfiguration;
 public class ConfigurationDialog extends JDialog
 {
     private IntegerSpinner undoDepth;
+    private IntegerSpinner scaledImageCache;
     private JSlider gridOpacitySlider;
     private JCheckBox cbBinaryEncode;
-    private JCheckBox cbCompressLayerData;
+    private JLabel lbCompression;
+    private JLabel lbCompressionLevel;
+    private JLabel lbCompressionStrategy;
+    private JComboBox coCompression;
+    private IntegerSpinner compressionLevel;
+    private JComboBox coCompressionStrategy;
     private JCheckBox cbUsefulComments;
     private JCheckBox cbEmbedImages;
     private JCheckBox cbReportIOWarnings;
@@ -66,7 +74,9 @@ public class ConfigurationDialog extends JDialog
     private static final String CLOSE_BUTTON = Resources.getString("general.button.close");
     private static final String OPACITY_LABEL = Resources.getString("dialog.preferences.opacity.label");
     private static final String BINARY_ENCODE_CHECKBOX = Resources.getString("dialog.preferences.binary.encode.checkbox");
-    private static final String COMPRESS_LAYER_DATA_CHECKBOX = Resources.getString("dialog.preferences.compress.layer.data.checkbox");
+    private static final String COMPRESSION_LABEL = Resources.getString("dialog.preferences.compression.label");
+    private static final String COMPRESSION_LEVEL_LABEL = Resources.getString("dialog.preferences.compression.level.label");
+    private static final String COMPRESSION_STRATEGY_LABEL = Resources.getString("dialog.preferences.compression.strategy.label");
     private static final String USEFUL_COMMENTS_CHECKBOX = Resources.getString("dialog.preferences.useful.comments.checkbox");
     private static final String EMBED_IMAGES_CHECKBOX = Resources.getString("dialog.preferences.embed.images.checkbox");
     private static final String REPORT_IO_WARNINGS_CHECKBOX = Resources.getString("dialog.preferences.report.io.warnings.checkbox");
@@ -81,6 +91,7 @@ public class ConfigurationDialog extends JDialog
     private static final String GENERAL_SAVING_OPTIONS_TITLE = Resources.getString("dialog.preferences.general.tab");
     private static final String LAYER_OPTIONS_TITLE = Resources.getString("dialog.preferences.layer.options.title");
     private static final String UNDO_DEPTH_LABEL = Resources.getString("dialog.preferences.undo.depth.label");
+    private static final String SCALED_IMAGE_CACHE_LABEL = Resources.getString("dialog.preferences.scaled.image.cache.label");
     private static final String TILESET_OPTIONS_TITLE = Resources.getString("dialog.preferences.tileset.options.title");
     private static final String GENERAL_TAB = Resources.getString("dialog.preferences.general.tab");
     private static final String SAVING_TAB = Resources.getString("dialog.preferences.saving.tab");
@@ -110,7 +121,13 @@ public class ConfigurationDialog extends JDialog
     }
 
     private void updateUI() {
-        cbCompressLayerData.setEnabled(cbBinaryEncode.isSelected());
+        boolean encode = cbBinaryEncode.isSelected();
+        boolean compress = encode &&
+                coCompression.getSelectedItem() != LayerCompression.NONE;
+
+        coCompression.setEnabled(encode);
+        compressionLevel.setEnabled(compress);
+        coCompressionStrategy.setEnabled(compress);
         
         boolean embed = cbEmbedImages.isSelected();
 
@@ -125,7 +142,13 @@ public class ConfigurationDialog extends JDialog
         // Create primitives
 
         cbBinaryEncode = new JCheckBox(BINARY_ENCODE_CHECKBOX);
-        cbCompressLayerData = new JCheckBox(COMPRESS_LAYER_DATA_CHECKBOX);
+        lbCompression = new JLabel(COMPRESSION_LABEL);
+        lbCompressionLevel = new JLabel(COMPRESSION_LEVEL_LABEL);
+        lbCompressionStrategy = new JLabel(COMPRESSION_STRATEGY_LABEL);
+        coCompression = new JComboBox(LayerCompression.values());
+        compressionLevel = new IntegerSpinner(Deflater.DEFAULT_COMPRESSION,
+                Deflater.DEFAULT_COMPRESSION, Deflater.BEST_COMPRESSION);
+        coCompressionStrategy = new JComboBox(LayerCompression.Strategy.values());
         cbUsefulComments = new JCheckBox(USEFUL_COMMENTS_CHECKBOX);
         cbEmbedImages = new JCheckBox(EMBED_IMAGES_CHECKBOX);
         cbReportIOWarnings = new JCheckBox(REPORT_IO_WARNINGS_CHECKBOX);
@@ -142,6 +165,7 @@ public class ConfigurationDialog extends JDialog
         bg.add(rbEmbedInTiles);
         bg.add(rbEmbedInSet);
         undoDepth = new IntegerSpinner();
+        scaledImageCache = new IntegerSpinner(64, 0);
         cbGridAA = new JCheckBox(ANTIALIASING_CHECKBOX);
         gridOpacitySlider = new JSlider(0, 255, 255);
         //gridColor = new JColorChooser();
@@ -162,7 +186,17 @@ public class ConfigurationDialog extends JDialog
         c.gridx = 1; c.gridy = 0; c.weightx = 1;
         layerOps.add(cbBinaryEncode, c);
         c.gridy = 2; c.insets = new Insets(0, 10, 0, 0);
-        layerOps.add(cbCompressLayerData, c);
+        layerOps.add(lbCompression, c);
+        c.gridy = 3; c.insets = new Insets(0, 10, 0, 0);
+        layerOps.add(coCompression, c);
+        c.gridy = 4; c.insets = new Insets(0, 10, 0, 0);
+        layerOps.add(lbCompressionLevel, c);
+        c.gridy = 5; c.insets = new Insets(0, 10, 0, 0);
+        layerOps.add(compressionLevel, c);
+        c.gridy = 6; c.insets = new Insets(0, 10, 0, 0);
+        layerOps.add(lbCompressionStrategy, c);
+        c.gridy = 7; c.insets = new Insets(0, 10, 0, 0);
+        layerOps.add(coCompressionStrategy, c);
 
         /* GENERAL OPTIONS */
         JPanel generalOps = new VerticalStaticJPanel();
@@ -176,9 +210,16 @@ public class ConfigurationDialog extends JDialog
         c.gridx = 1; c.weightx = 1;
         generalOps.add(undoDepth, c);
         c.gridy = 1;
+        c.gridx = 0; c.weightx = 0;
+        c.fill = GridBagConstraints.NONE;
+        generalOps.add(new JLabel(SCALED_IMAGE_CACHE_LABEL), c);
+        c.fill = GridBagConstraints.HORIZONTAL;
+        c.gridx = 1; c.weightx = 1;
+        generalOps.add(scaledImageCache, c);
+        c.gridy = 2;
         c.gridx = 0;
         generalOps.add(cbReportIOWarnings, c);
-        c.gridy = 2;
+        c.gridy = 3;
         c.gridx = 0;
         generalOps.add(cbAutoOpenLastFile, c);
 
@@ -309,14 +350,33 @@ public class ConfigurationDialog extends JDialog
             public void itemStateChanged(ItemEvent itemEvent) {
                 final boolean selected = cbBinaryEncode.isSelected();
                 savingPrefs.putBoolean("encodeLayerData", selected);
-                cbCompressLayerData.setEnabled(selected);
+                updateUI();
             }
         });
 
-        cbCompressLayerData.addItemListener(new ItemListener() {
-            public void itemStateChanged(ItemEvent itemEvent) {
+        coCompression.addItemListener(new ItemListener() {
+            public void itemStateChanged(ItemEvent e) {
+                LayerCompression compression =
+                        (LayerCompression) coCompression.getSelectedItem();
+                savingPrefs.put("layerCodec", compression.name());
+                // Still read by writers that only know about gzip
                 savingPrefs.putBoolean("layerCompression",
-                        cbCompressLayerData.isSelected());
+                        compression != LayerCompression.NONE);
+                updateUI();
+            }
+        });
+
+        compressionLevel.addChangeListener(new ChangeListener() {
+            public void stateChanged(ChangeEvent changeEvent) {
+                savingPrefs.putInt("layerCompressionLevel",
+                        compressionLevel.intValue());
+            }
+        });
+
+        coCompressionStrategy.addItemListener(new ItemListener() {
+            public void itemStateChanged(ItemEvent e) {
+                savingPrefs.put("layerCompressionStrategy",
+                        coCompressionStrategy.getSelectedItem().toString());
             }
         });
 
@@ -381,6 +441,13 @@ public class ConfigurationDialog extends JDialog
             }
         });
 
+        scaledImageCache.addChangeListener(new ChangeListener() {
+            public void stateChanged(ChangeEvent changeEvent) {
+                displayPrefs.putInt("scaledImageCache",
+                        scaledImageCache.intValue());
+            }
+        });
+
         gridOpacitySlider.addChangeListener(new ChangeListener() {
             public void stateChanged(ChangeEvent changeEvent) {
                 displayPrefs.putInt("gridOpacity", gridOpacitySlider.getValue());
@@ -416,6 +483,7 @@ public class ConfigurationDialog extends JDialog
 
     private void updateFromConfiguration() {
         undoDepth.setValue(prefs.getInt("undoDepth", 30));
+        scaledImageCache.setValue(displayPrefs.getInt("scaledImageCache", 64));
         gridOpacitySlider.setValue(displayPrefs.getInt("gridOpacity", 255));
 
         boolean embedImages = savingPrefs.getBoolean("embedImages", true);
@@ -431,7 +499,9 @@ public class ConfigurationDialog extends JDialog
 
         cbUsefulComments.setSelected(savingPrefs.getBoolean("usefulComments", false));
         cbBinaryEncode.setSelected(savingPrefs.getBoolean("encodeLayerData", true));
-        cbCompressLayerData.setSelected(savingPrefs.getBoolean("layerCompression", true));
+        coCompression.setSelectedItem(LayerCompression.valueOf(savingPrefs.get("layerCodec", null), savingPrefs.getBoolean("layerCompression", true) ? LayerCompression.GZIP : LayerCompression.NONE));
+        compressionLevel.setValue(savingPrefs.getInt("layerCompressionLevel", Deflater.DEFAULT_COMPRESSION));
+        coCompressionStrategy.setSelectedItem(LayerCompression.Strategy.valueOf(savingPrefs.get("layerCompressionStrategy", null), LayerCompression.Strategy.DEFAULT));
         cbGridAA.setSelected(displayPrefs.getBoolean("gridAntialias", true));
         cbReportIOWarnings.setSelected(ioPrefs.getBoolean("reportWarnings", false));
         cbAutoOpenLastFile.setSelected(ioPrefs.getBoolean("autoOpenLast", false));
@@ -196,7 +196,17 @@ public class NewMapDialog extends JDialog implements ActionListener
             newMap = new Map(w, h);
             newMap.setTileWidth(twidth);
             newMap.setTileHeight(theight);
-            newMap.addLayer();
+            try {
+                newMap.addLayer();
+            } catch (IllegalStateException ise) {
+                ise.printStackTrace();
+                JOptionPane.showMessageDialog(this,
+                        ise.getLocalizedMessage(),
+                        Resources.getString("dialog.newmap.error.title"),
+                        JOptionPane.ERROR_MESSAGE);
+                newMap = null;
+                return;
+            }
             newMap.setOrientation(orientation);
 
             // Save dialog options
@@ -18,7 +18,6 @@ import java.awt.BorderLayout;
 import java.awt.Insets;
 import java.awt.event.ActionEvent;
 import java.awt.event.ActionListener;
-import java.util.Iterator;
 import java.util.Vector;
 import javax.swing.*;
 import javax.swing.event.ListSelectionEvent;
@@ -27,6 +26,7 @@ import javax.swing.event.ListSelectionListener;
 import tiled.core.*;
 import tiled.io.MapHelper;
 import tiled.io.MapWriter;
+import tiled.io.TilesetCache;
 import tiled.mapeditor.Resources;
 import tiled.mapeditor.plugin.PluginClassLoader;
 import tiled.mapeditor.util.ConfirmingFileChooser;
@@ -172,7 +172,7 @@ public class TilesetManager extends JDialog implements ActionListener,
                 tileDialog.setVisible(true);
             }
         } else if (command.equals(REMOVE_BUTTON)) {
-            if (checkSetUsage(set) > 0) {
+            if (map.getUsedTileCount(set) > 0) {
                 int ret = JOptionPane.showConfirmDialog(this,
                         Resources.getString("action.tileset.remove.in-use.message"),
                         Resources.getString("action.tileset.remove.in-use.title"),
@@ -183,6 +183,7 @@ public class TilesetManager extends JDialog implements ActionListener,
             }
             try {
                 map.removeTileset(set);
+                TilesetCache.release(set);
                 updateTilesetTable();
             } catch (LayerLockedException e) {
                 JOptionPane.showMessageDialog(this,
@@ -245,28 +246,6 @@ public class TilesetManager extends JDialog implements ActionListener,
         tilesetTable.repaint();
     }
 
-    private int checkSetUsage(TileSet tileset) {
-        int used = 0;
-        Iterator tileIterator = tileset.iterator();
-
-        while (tileIterator.hasNext()) {
-            Tile tile = (Tile) tileIterator.next();
-            Iterator layerIterator = map.getLayers();
-
-            while (layerIterator.hasNext()) {
-                MapLayer ml = (MapLayer) layerIterator.next();
-                if (ml instanceof TileLayer) {
-                    if (((TileLayer) ml).isUsed(tile)) {
-                        used++;
-                        break;
-                    }
-                }
-            }
-        }
-
-        return used;
-    }
-
     public void valueChanged(ListSelectionEvent event) {
         updateButtons();
     }
@@ -22,6 +22,7 @@ import java.util.prefs.Preferences;
 import tiled.core.MapLayer;
 import tiled.core.Tile;
 import tiled.core.TileLayer;
+import tiled.core.TileMask;
 import tiled.util.TiledConfiguration;
 
 /**
@@ -34,6 +35,7 @@ public class SelectionLayer extends TileLayer
     private Color highlightColor;
     private Tile selTile;
     private Area selection;
+    private TileMask selectionMask;     // null until needed
     private MapLayer parentLayer;
         
     public SelectionLayer(MapLayer parent) {
@@ -120,6 +122,20 @@ public class SelectionLayer extends TileLayer
         return selection;
     }
 
+    /**
+     * Returns the selected area as a mask of tiles. The mask is only
+     * computed again after the selection changed, so it is cheap to use for
+     * several operations on the same selection.
+     *
+     * @return the selected tiles
+     */
+    public TileMask getSelectedMask() {
+        if (selectionMask == null) {
+            selectionMask = new TileMask(selection);
+        }
+        return selectionMask;
+    }
+
     /**
      * Returns the bounds of the selected area.
      *
@@ -138,6 +154,7 @@ public class SelectionLayer extends TileLayer
      */
     public void add(Area area) {
         selection.add(area);
+        selectionMask = null;
         fillRegion(selection, selTile);
     }
 
@@ -150,6 +167,7 @@ public class SelectionLayer extends TileLayer
     public void subtract(Area area) {
         clearRegion(area);
         selection.subtract(area);
+        selectionMask = null;
     }
 
     /**
@@ -160,6 +178,7 @@ public class SelectionLayer extends TileLayer
     public void selectRegion(Shape region) {
         clearRegion(selection);
         selection = new Area(region);
+        selectionMask = null;
         fillRegion(selection, selTile);
     }
 
@@ -182,6 +201,7 @@ public class SelectionLayer extends TileLayer
                 selection.add(a);
             }
         }
+        selectionMask = null;
     }
 
     /**
@@ -204,13 +224,22 @@ public class SelectionLayer extends TileLayer
 
     private void fillRegion(Area region, Tile fill) {
         Rectangle bounded = region.getBounds();
+
+        // Clear the bounding box, then fill the spans of the region
+        bounded.translate(bounds.x, bounds.y);
+        fillRegion(bounded, null);
+        if (fill == null) {
+            return;
+        }
+
+        TileMask mask =
+                region == selection ? getSelectedMask() : new TileMask(region);
+        Rectangle span = new Rectangle(0, 0, 0, 1);
         for (int i = bounded.y; i < bounded.y + bounded.height; i++) {
-            for (int j = bounded.x; j < bounded.x + bounded.width; j++) {
-                if (region.contains(j, i)) {
-                    setTileAt(j + bounds.x, i + bounds.y, fill);
-                } else {
-                    setTileAt(j + bounds.x, i + bounds.y, null);
-                }
+            int[] spans = mask.getSpans(i - bounds.y);
+            for (int s = 0; s < spans.length; s += 2) {
+                span.setBounds(spans[s] + bounds.x, i, spans[s + 1] - spans[s], 1);
+                fillRegion(span, fill);
             }
         }
     }
@@ -224,15 +253,9 @@ public class SelectionLayer extends TileLayer
      */
     public void invert() {
         selection.exclusiveOr(new Area(bounds));
+        selectionMask = null;
 
-        for (int i = bounds.y; i < bounds.y + bounds.height; i++) {
-            for (int j = bounds.x; j < bounds.x + bounds.width; j++) {
-                if (selection.contains(j, i)) {
-                    setTileAt(j, i, selTile);
-                } else {
-                    setTileAt(j, i, null);
-                }
-            }
-        }
+        fillRegion(bounds, null);
+        fillRegion(getSelectedMask(), selTile);
     }
 }
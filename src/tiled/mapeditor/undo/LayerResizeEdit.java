@@ -5,11 +5,11 @@
 
 package tiled.mapeditor.undo;
 
+import java.awt.Rectangle;
 import javax.swing.undo.AbstractUndoableEdit;
 import javax.swing.undo.CannotRedoException;
 import javax.swing.undo.CannotUndoException;
 import tiled.core.MapLayer;
-import tiled.core.Tile;
 import tiled.core.TileLayer;
 import tiled.mapeditor.Resources;
 
@@ -24,7 +24,7 @@ public class LayerResizeEdit extends AbstractUndoableEdit{
     private static class Backup{
         public Rect resizeRect;
         public Rect[] rasterRects;
-        public TileRaster[] rasters;
+        public TileLayer[] rasters;
     }
     
     private static class Rect{
@@ -102,81 +102,6 @@ public class LayerResizeEdit extends AbstractUndoableEdit{
 		}        
     }
         
-    private static class TileRaster{
-        Tile[][] raster;
-        private int width;
-        private int height;
-
-        private int getHeight() {
-            return height;
-        }
-
-        private int getWidth() {
-            return width;
-        }
-        
-        private Tile[][] makeRaster(int width, int height){
-            Tile[][] r = new Tile[width][];
-            for(int x=0; x<width; ++x)
-                r[x] = new Tile[height];
-            return r;
-        }
-        public TileRaster(int width, int height)
-        {
-            this.width = width;
-            this.height = height;
-            raster = makeRaster(width, height);
-        }
-        
-        /**
-         * Copies a rectangular area from the source TileRaster to an specified
-         * target position in this raster. The source rectangle is defined by sourceX,
-         * sourceY, sourceWidth and sourceHeight in source coordinates. targetX
-         * and targetY specify the target coordinates in this raster where the
-         * rectangle is copied to.
-         * @throws ArrayIndexOutOfBoundsException if the source coordinates are
-         * outside the range of the source rectangle. target coordinates may
-         * assume any value.
-         */
-        public void copyRect(int targetX, int targetY, TileRaster source, int sourceX, int sourceY, int sourceWidth, int sourceHeight){
-            // apply clipping to find out the actual target rectangle witdh
-            // and height
-            
-            // find out source boundaries limited by available space in target rectangle
-            
-            // if targetX and/or targetY are negative, this will adjust the sourceX/Y
-            // coordinates accordingly
-            int sourceX0 = sourceX - Math.min(0, targetX);
-            int sourceY0 = sourceY - Math.min(0, targetY);
-            
-            // in case the source rectangle reaches over the size of the target
-            // rectangle, limit the source rectangle to what actually needs to
-            // be copied into the target
-            final int sourceX1 = sourceX + Math.min(getWidth()-targetX, sourceWidth);
-            final int sourceY1 = sourceY + Math.min(getHeight()-targetY, sourceHeight);
-            
-            // check if there's actually something to copy
-            if(sourceX0 >= sourceX1 || sourceY0 >= sourceY1)
-                return;
-            
-            final int sh = sourceY1-sourceY0;
-            final int sy = sourceY0;
-            final int ty = Math.max(0, targetY);
-            int tx = Math.max(0, targetX);
-            for(int sx=sourceX0; sx<sourceX1; ++sx, ++tx){
-                System.arraycopy(source.raster[sx], sy, raster[tx], ty, sh);
-            }
-        }
-        
-        public void set(int x, int y, Tile tile){
-            raster[x][y] = tile;
-        }
-        
-        public Tile get(int x, int y){
-            return raster[x][y];
-        }
-    }
-
     @Override
     public String getPresentationName() {
         return Resources.getString("edit.changelayerdimension.name");
@@ -230,29 +155,19 @@ public class LayerResizeEdit extends AbstractUndoableEdit{
             return backup;
         }
         
-        // FIXME: TileRaster is only parked in this class temporarily.
-        // The intention is to make it the storage medium for tiles within
-        // a MapLayer, replacing the current implementation within MapLayer.
-        //
-        // however, for now, the the layer's tile data is simply copied into
-        // a new TileRaster, which is then used for all subsequent operations.
-        // When MapLayer uses TileRasters for storing tile placement data,
-        // the following slow copy code should be replaced by a getTileRaster()
-        // call.
-        TileRaster r = createTileRasterFromLayer(tileLayer);
-        
         // make backup copies of areas that will be truncated by resize
         Rect currentDimensions = new Rect(0, 0, tileLayer.getWidth(), tileLayer.getHeight());
         Rect newDimensions = new Rect(x, y, x+width, y+height);
+        Rectangle bounds = tileLayer.getBounds();
         backup.rasterRects = currentDimensions.difference(newDimensions);
-        backup.rasters = new TileRaster[backup.rasterRects.length];
+        backup.rasters = new TileLayer[backup.rasterRects.length];
         for(int i=0; i<backup.rasterRects.length; ++i){
-            int backupSourceX = backup.rasterRects[i].x0;
-            int backupSourceY = backup.rasterRects[i].y0;
-            int backupWidth = backup.rasterRects[i].x1-backup.rasterRects[i].x0;
-            int backupHeight = backup.rasterRects[i].y1-backup.rasterRects[i].y0;
-            backup.rasters[i] = new TileRaster(backupWidth, backupHeight);
-            backup.rasters[i].copyRect(0, 0, r, backupSourceX, backupSourceY, backupWidth, backupHeight);
+            Rect rect = backup.rasterRects[i];
+            Rectangle region = new Rectangle(bounds.x + rect.x0, bounds.y + rect.y0,
+                    rect.x1-rect.x0, rect.y1-rect.y0);
+            backup.rasters[i] = new TileLayer(region,
+                    tileLayer.getTileWidth(), tileLayer.getTileHeight());
+            backup.rasters[i].copyRegion(tileLayer, region);
         }
         
         return backup;
@@ -270,55 +185,12 @@ public class LayerResizeEdit extends AbstractUndoableEdit{
         
         TileLayer tlayer = (TileLayer)this.layer;
         
-        // FIXME: once TileLayer finally uses TileRaster for storage, this
-        // function should be replaced by getLayer
-        TileRaster targetRaster = createTileRasterFromLayer(tlayer);
-        
+        // the backed up areas are copied back row by row, shifted by the
+        // same amount as the layer contents
         for(int i=0; i<backup.rasterRects.length; ++i){
-            TileRaster sRaster = backup.rasters[i];
-            Rect sRect = backup.rasterRects[i];
-            int tx = sRect.x0-newX;
-            int ty = sRect.y0-newY;
-            int sw = sRect.x1-sRect.x0;
-            int sh = sRect.y1-sRect.y0;
-            targetRaster.copyRect(tx, ty, sRaster, 0, 0, sw, sh);
-        }
-        
-        // FIXME: once TileLayer finally uses TileRaster for storage, this
-        // function call should be removed, as targetRaster is no longer
-        // just a copy
-        copyTileRasterToLayer(tlayer, targetRaster);
-    }
-
-    private void copyTileRasterToLayer(TileLayer tlayer, TileRaster raster) {
-        // FIXME: this is slow. The function should not exist actually;
-        // TileRaster should be a part of TileLayer.
-        int xoff = tlayer.getBounds().x;
-        int yoff = tlayer.getBounds().y;
-        int width = tlayer.getWidth();
-        int height = tlayer.getHeight();
-        for(int x=0; x<width; ++x){
-            for(int y=0; y<height; ++y){
-                Tile t = raster.get(x, y);
-                tlayer.setTileAt(x+xoff, y+yoff, t);
-            }
-        }
-    }
-
-    private TileRaster createTileRasterFromLayer(TileLayer tlayer) {
-        // FIXME: this is slow. The function should not exist actually;
-        // TileRaster should be a part of TileLayer.
-        int xoff = tlayer.getBounds().x;
-        int yoff = tlayer.getBounds().y;
-        int width = tlayer.getWidth();
-        int height = tlayer.getHeight();
-        TileRaster raster = new TileRaster(width, height);
-        for(int x=0; x<width; ++x){
-            for(int y=0; y<height; ++y){
-                Tile t = tlayer.getTileAt(x+xoff, y+yoff);
-                raster.set(x, y, t);
-            }
+            TileLayer saved = backup.rasters[i];
+            saved.translate(-newX, -newY);
+            tlayer.copyRegion(saved, saved.getBounds());
         }
-        return raster;
     }
 }
@@ -0,0 +1,180 @@
+/*
+ *  Tiled Map Editor, (c) 2004-2008
+ *
+ *  This program is free software; you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation; either version 2 of the License, or
+ *  (at your option) any later version.
+ *
+ *  Adam Turk <aturk@biggeruniverse.com>
+ *  Bjorn Lindeijer <bjorn@lindeijer.nl>
+ */
+
+package tiled.mapeditor.undo;
+
+import java.util.ArrayList;
+import java.util.Enumeration;
+import java.util.List;
+import javax.swing.undo.AbstractUndoableEdit;
+import javax.swing.undo.CannotRedoException;
+import javax.swing.undo.CannotUndoException;
+
+import tiled.core.Map;
+import tiled.core.MapLayer;
+import tiled.core.Tile;
+import tiled.core.TileLayer;
+import tiled.core.TileSet;
+
+/**
+ * The merging of duplicate tiles. Keeps the layers that used the duplicate
+ * tiles as they were before and after the merge, and the tiles and images
+ * that were removed from the tilesets.
+ *
+ * @see Map#mergeDuplicateTiles(java.util.Map)
+ */
+public class MergeDuplicateTilesEdit extends AbstractUndoableEdit
+{
+    private final Map map;
+    private final java.util.Map<Tile, Tile> duplicates;
+    private final List<TileLayer> layers = new ArrayList<TileLayer>();
+    private final List<MapLayer> layersBefore = new ArrayList<MapLayer>();
+    private final List<MapLayer> layersAfter = new ArrayList<MapLayer>();
+    private final List<TileSet> tilesets = new ArrayList<TileSet>();
+    private final List<TileSet> tilesetsBefore = new ArrayList<TileSet>();
+    private final List<TileSet> removedImages = new ArrayList<TileSet>();
+    private final String name;
+
+    /**
+     * Records the state of the map before the given duplicate tiles are
+     * merged. {@link #end()} is to be called once they have been merged.
+     *
+     * @param map        the map the tiles are merged in
+     * @param duplicates the duplicate tiles, as passed to
+     *                   {@link Map#mergeDuplicateTiles(java.util.Map)}
+     * @param name       the presentation name of the edit
+     */
+    public MergeDuplicateTilesEdit(Map map,
+                                   java.util.Map<Tile, Tile> duplicates,
+                                   String name) {
+        this.map = map;
+        this.duplicates = duplicates;
+        this.name = name;
+
+        for (MapLayer layer : map.getLayerVector()) {
+            if (layer instanceof TileLayer && uses((TileLayer) layer)) {
+                try {
+                    layersBefore.add((MapLayer) layer.clone());
+                    layers.add((TileLayer) layer);
+                } catch (CloneNotSupportedException e) {
+                    e.printStackTrace();
+                }
+            }
+        }
+        for (TileSet tileset : map.getTilesets()) {
+            if (!tileset.isSetFromImage() && contains(tileset)) {
+                tilesets.add(tileset);
+                tilesetsBefore.add(new TileSet(tileset));
+            }
+        }
+    }
+
+    /**
+     * Records the state of the map after the duplicate tiles were merged.
+     */
+    public void end() {
+        for (TileLayer layer : layers) {
+            try {
+                layersAfter.add((MapLayer) layer.clone());
+            } catch (CloneNotSupportedException e) {
+                e.printStackTrace();
+            }
+        }
+
+        // Only the images that were removed are kept
+        for (int i = 0; i < tilesets.size(); i++) {
+            final TileSet before = tilesetsBefore.get(i);
+            final TileSet removed = new TileSet();
+            Enumeration<String> ids = before.getImageIds();
+            while (ids.hasMoreElements()) {
+                int id = Integer.parseInt(ids.nextElement());
+                if (!tilesets.get(i).containsImage(id)) {
+                    removed.copyImage(before, id);
+                }
+            }
+            removedImages.add(removed);
+        }
+        tilesetsBefore.clear();
+    }
+
+    public void undo() throws CannotUndoException {
+        super.undo();
+        map.beginUpdate();
+        try {
+            for (int i = 0; i < tilesets.size(); i++) {
+                final TileSet tileset = tilesets.get(i);
+                final TileSet removed = removedImages.get(i);
+                Enumeration<String> ids = removed.getImageIds();
+                while (ids.hasMoreElements()) {
+                    tileset.copyImage(removed,
+                            Integer.parseInt(ids.nextElement()));
+                }
+                for (Tile duplicate : duplicates.keySet()) {
+                    if (duplicate.getTileSet() == tileset) {
+                        tileset.addTile(duplicate);
+                    }
+                }
+            }
+            for (int i = 0; i < layers.size(); i++) {
+                layersBefore.get(i).copyTo(layers.get(i));
+            }
+        } finally {
+            map.endUpdate();
+        }
+    }
+
+    public void redo() throws CannotRedoException {
+        super.redo();
+        map.beginUpdate();
+        try {
+            for (int i = 0; i < layers.size(); i++) {
+                layersAfter.get(i).copyTo(layers.get(i));
+            }
+            for (int i = 0; i < tilesets.size(); i++) {
+                final TileSet tileset = tilesets.get(i);
+                for (Tile duplicate : duplicates.keySet()) {
+                    if (duplicate.getTileSet() == tileset) {
+                        tileset.removeTile(duplicate.getId());
+                    }
+                }
+                Enumeration<String> ids = removedImages.get(i).getImageIds();
+                while (ids.hasMoreElements()) {
+                    tileset.removeImage(Integer.parseInt(ids.nextElement()));
+                }
+            }
+        } finally {
+            map.endUpdate();
+        }
+    }
+
+    public String getPresentationName() {
+        return name;
+    }
+
+    private boolean uses(TileLayer layer) {
+        for (Tile duplicate : duplicates.keySet()) {
+            if (layer.isUsed(duplicate)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private boolean contains(TileSet tileset) {
+        for (Tile duplicate : duplicates.keySet()) {
+            if (duplicate.getTileSet() == tileset) {
+                return true;
+            }
+        }
+        return false;
+    }
+}
@@ -40,6 +40,9 @@ public class LayerTableModel extends AbstractTableModel
         public void layerChanged(MapChangedEvent e, MapLayerChangeEvent mlce) {
             if(e.getMap() != map)
                 return;
+            // The table does not show the tiles of a layer
+            if(mlce.getChangeType() == MapLayerChangeEvent.CHANGETYPE_TILES)
+                return;
             int row = getRowCount()-e.getLayerIndex()-1;
             fireTableRowsUpdated(row, row);
         }
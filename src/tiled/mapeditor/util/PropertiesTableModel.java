@@ -18,6 +18,7 @@ import java.util.TreeMap;
 import javax.swing.table.AbstractTableModel;
 
 import tiled.mapeditor.Resources;
+import tiled.util.PropertyMap;
 
 /**
  * @version $Id$
@@ -97,12 +98,15 @@ public class PropertiesTableModel extends AbstractTableModel
 
     public void setProperties(Properties props) {
         properties.clear();
-        properties.putAll(props);
+        // Includes the properties the given ones take from their defaults
+        for (String name : PropertyMap.names(props)) {
+            properties.put(name, props.getProperty(name));
+        }
         fireTableDataChanged();
     }
 
     public Properties getProperties() {
-        Properties props = new Properties();
+        Properties props = new PropertyMap();
         props.putAll(properties);
         return props;
     }
@@ -23,7 +23,8 @@ public class TilesetTableModel extends AbstractTableModel implements MapChangeLi
 {
     private Map map;
     private static final String[] columnNames = { Resources.getString("dialog.tilesetmanager.table.name"),
-        Resources.getString("dialog.tilesetmanager.table.source") };
+        Resources.getString("dialog.tilesetmanager.table.source"),
+        Resources.getString("dialog.tilesetmanager.table.used") };
 
     private static final String EMBEDDED = Resources.getString("dialog.tilesetmanager.embedded");
 
@@ -57,6 +58,8 @@ public class TilesetTableModel extends AbstractTableModel implements MapChangeLi
             TileSet tileset = (TileSet)tilesets.get(row);
             if (col == 0) {
                 return tileset.getName();
+            } else if (col == 2) {
+                return Integer.valueOf(map.getUsedTileCount(tileset));
             } else {
                 String ret = tileset.getSource();
 
@@ -88,29 +91,6 @@ public class TilesetTableModel extends AbstractTableModel implements MapChangeLi
         }
     }
 
-    private int checkSetUsage(TileSet set) {
-        int used = 0;
-        Iterator tileIterator = set.iterator();
-
-        while (tileIterator.hasNext()) {
-            Tile tile = (Tile)tileIterator.next();
-            Iterator itr = map.getLayers();
-
-            while (itr.hasNext()) {
-                MapLayer ml = (MapLayer)itr.next();
-
-                if (ml instanceof TileLayer) {
-                    if (((TileLayer) ml).isUsed(tile)) {
-                        used++;
-                        break;
-                    }
-                }
-            }
-        }
-
-        return used;
-    }
-
     public void mapChanged(MapChangedEvent event) {
     }
 
@@ -19,6 +19,7 @@ import java.awt.image.BufferedImage;
 import javax.swing.JPanel;
 import javax.swing.JScrollPane;
 
+import tiled.core.MapLayer;
 import tiled.view.MapView;
 
 
@@ -75,6 +76,42 @@ public class MiniMapViewer extends JPanel
         }
     }
 
+    /**
+     * Re-renders only the part of the map covered by the given region of a
+     * layer, so that the cost of an update does not depend on the size of
+     * the map.
+     *
+     * @param layer  the layer that changed
+     * @param region the changed region in tile coordinates
+     */
+    public void refresh(MapLayer layer, Rectangle region) {
+        if (renderedMap == null || myView == null) {
+            return;
+        }
+
+        Rectangle dirty = new Rectangle(
+                myView.tileToScreenCoords(layer, region.x, region.y));
+        dirty.add(myView.tileToScreenCoords(layer,
+                region.x + region.width, region.y));
+        dirty.add(myView.tileToScreenCoords(layer,
+                region.x, region.y + region.height));
+        dirty.add(myView.tileToScreenCoords(layer,
+                region.x + region.width, region.y + region.height));
+
+        // Leave room for tiles that are larger than the grid
+        int margin = (int) Math.ceil(
+                Math.max(layer.getTileWidth(), layer.getTileHeight()) * scale);
+        dirty.grow(margin, margin);
+        dirty.y -= margin;
+        dirty.height += margin;
+
+        Graphics2D g = renderedMap.createGraphics();
+        g.setClip(dirty);
+        myView.paint(g);
+        g.dispose();
+        repaint(dirty);
+    }
+
     public void paint(Graphics g) {
         /*if (myView != null) {
             myView.paint(g);
@@ -0,0 +1,108 @@
+/*
+ *  Tiled Map Editor, (c) 2004-2008
+ *
+ *  This program is free software; you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation; either version 2 of the License, or
+ *  (at your option) any later version.
+ *
+ *  Adam Turk <aturk@biggeruniverse.com>
+ *  Bjorn Lindeijer <bjorn@lindeijer.nl>
+ */
+
+package tiled.util;
+
+import java.awt.Image;
+import java.awt.image.BufferedImage;
+import java.awt.image.PixelGrabber;
+import java.util.Arrays;
+
+/**
+ * Computes digests of the pixel contents of images, so that images with the
+ * same contents can be found without comparing them pixel by pixel. Images
+ * with equal digests are very likely, but not certain, to be the same, so
+ * {@link #samePixels(Image, Image)} should be used to confirm a match.
+ */
+public final class ImageDigest
+{
+    /** The digest returned for images whose pixels are not available. */
+    public static final long UNKNOWN = 0;
+
+    private static final long FNV_OFFSET = 0xcbf29ce484222325L;
+    private static final long FNV_PRIME = 0x100000001b3L;
+
+    private ImageDigest() {
+    }
+
+    /**
+     * Returns a digest of the size and pixels of the given image.
+     *
+     * @param image the image
+     * @return the digest, or {@link #UNKNOWN} when the image has not been
+     *         loaded or its pixels can not be read
+     */
+    public static long digest(Image image) {
+        final int[] pixels = getPixels(image);
+        if (pixels == null) {
+            return UNKNOWN;
+        }
+
+        long hash = FNV_OFFSET;
+        hash = (hash ^ image.getWidth(null)) * FNV_PRIME;
+        hash = (hash ^ image.getHeight(null)) * FNV_PRIME;
+        for (int pixel : pixels) {
+            hash = (hash ^ pixel) * FNV_PRIME;
+        }
+        return hash == UNKNOWN ? 1 : hash;
+    }
+
+    /**
+     * Returns whether the given images have the same size and pixels.
+     *
+     * @return <code>true</code> when both images are known to be the same,
+     *         <code>false</code> otherwise
+     */
+    public static boolean samePixels(Image a, Image b) {
+        if (a == b) {
+            return true;
+        }
+        if (a.getWidth(null) != b.getWidth(null) ||
+                a.getHeight(null) != b.getHeight(null)) {
+            return false;
+        }
+        final int[] pixelsA = getPixels(a);
+        return pixelsA != null && Arrays.equals(pixelsA, getPixels(b));
+    }
+
+    /**
+     * Returns the pixels of the given image in the default RGB color model,
+     * row by row.
+     *
+     * @return the pixels, or <code>null</code> when they are not available
+     */
+    private static int[] getPixels(Image image) {
+        final int width = image.getWidth(null);
+        final int height = image.getHeight(null);
+        if (width <= 0 || height <= 0) {
+            return null;
+        }
+
+        if (image instanceof BufferedImage) {
+            return ((BufferedImage) image).getRGB(0, 0, width, height,
+                    null, 0, width);
+        }
+
+        final int[] pixels = new int[width * height];
+        final PixelGrabber grabber = new PixelGrabber(image, 0, 0,
+                width, height, pixels, 0, width);
+        try {
+            if (!grabber.grabPixels()) {
+                return null;
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return null;
+        }
+        return pixels;
+    }
+}
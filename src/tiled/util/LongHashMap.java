@@ -0,0 +1,223 @@
+/*
+ *  Tiled Map Editor, (c) 2004-2008
+ *
+ *  This program is free software; you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation; either version 2 of the License, or
+ *  (at your option) any later version.
+ *
+ *  Adam Turk <aturk@biggeruniverse.com>
+ *  Bjorn Lindeijer <bjorn@lindeijer.nl>
+ */
+
+package tiled.util;
+
+import java.util.Arrays;
+
+/**
+ * A hash map from primitive <code>long</code> keys to non-null values. It
+ * uses open addressing with linear probing on plain arrays, so looking up,
+ * adding and removing entries does not allocate any objects, and the keys
+ * can be enumerated without visiting anything but the populated slots.
+ * <p>
+ * The map is typically used with two <code>int</code> coordinates packed into
+ * a single key, see {@link #pack(int, int)}.
+ *
+ * @param <V> the type of the values
+ */
+public class LongHashMap<V>
+{
+    private static final int MIN_CAPACITY = 8;
+
+    private long[] keys;
+    private Object[] values;    // a null value marks a free slot
+    private int size;
+
+    /**
+     * Constructs an empty map.
+     */
+    public LongHashMap() {
+        keys = new long[MIN_CAPACITY];
+        values = new Object[MIN_CAPACITY];
+    }
+
+    /**
+     * Packs two coordinates into a single key. Keys of non-negative
+     * coordinates sort by <code>y</code> first and <code>x</code> second.
+     *
+     * @param x the x coordinate
+     * @param y the y coordinate
+     * @return the packed key
+     */
+    public static long pack(int x, int y) {
+        return ((long) y << 32) | (x & 0xFFFFFFFFL);
+    }
+
+    /**
+     * @param key a key created with {@link #pack(int, int)}
+     * @return the x coordinate stored in the key
+     */
+    public static int unpackX(long key) {
+        return (int) key;
+    }
+
+    /**
+     * @param key a key created with {@link #pack(int, int)}
+     * @return the y coordinate stored in the key
+     */
+    public static int unpackY(long key) {
+        return (int) (key >>> 32);
+    }
+
+    /**
+     * Returns the value associated with the given key.
+     *
+     * @param key the key to look up
+     * @return the value, or <code>null</code> when there is none
+     */
+    @SuppressWarnings("unchecked")
+    public V get(long key) {
+        final int mask = keys.length - 1;
+        for (int i = slot(key, mask); values[i] != null; i = (i + 1) & mask) {
+            if (keys[i] == key) {
+                return (V) values[i];
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Associates a value with the given key. Putting a <code>null</code>
+     * value is the same as removing the key.
+     *
+     * @param key   the key
+     * @param value the new value, or <code>null</code>
+     * @return the previous value, or <code>null</code> when there was none
+     */
+    @SuppressWarnings("unchecked")
+    public V put(long key, V value) {
+        if (value == null) {
+            return remove(key);
+        }
+
+        final int mask = keys.length - 1;
+        int i = slot(key, mask);
+        for (; values[i] != null; i = (i + 1) & mask) {
+            if (keys[i] == key) {
+                V old = (V) values[i];
+                values[i] = value;
+                return old;
+            }
+        }
+
+        keys[i] = key;
+        values[i] = value;
+        if (++size > keys.length / 2) {
+            rehash(keys.length * 2);
+        }
+        return null;
+    }
+
+    /**
+     * Removes the given key from the map.
+     *
+     * @param key the key to remove
+     * @return the value that was associated with the key, or
+     *         <code>null</code> when there was none
+     */
+    @SuppressWarnings("unchecked")
+    public V remove(long key) {
+        final int mask = keys.length - 1;
+        int i = slot(key, mask);
+        while (values[i] != null && keys[i] != key) {
+            i = (i + 1) & mask;
+        }
+        if (values[i] == null) {
+            return null;
+        }
+
+        V old = (V) values[i];
+        size--;
+
+        // Shift back the entries following the removed one, so that no
+        // entry becomes unreachable from its home slot
+        int free = i;
+        for (i = (i + 1) & mask; values[i] != null; i = (i + 1) & mask) {
+            int home = slot(keys[i], mask);
+            if (((i - home) & mask) >= ((i - free) & mask)) {
+                keys[free] = keys[i];
+                values[free] = values[i];
+                free = i;
+            }
+        }
+        values[free] = null;
+        return old;
+    }
+
+    /**
+     * @return the number of entries in this map
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * @return <code>true</code> if this map has no entries
+     */
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    /**
+     * Removes all entries from this map.
+     */
+    public void clear() {
+        if (size > 0) {
+            Arrays.fill(values, null);
+            size = 0;
+        }
+    }
+
+    /**
+     * Returns the keys of all entries in ascending order.
+     *
+     * @return a new array holding the keys
+     */
+    public long[] keys() {
+        long[] result = new long[size];
+        int n = 0;
+        for (int i = 0; i < values.length; i++) {
+            if (values[i] != null) {
+                result[n++] = keys[i];
+            }
+        }
+        Arrays.sort(result);
+        return result;
+    }
+
+    private void rehash(int capacity) {
+        final long[] oldKeys = keys;
+        final Object[] oldValues = values;
+        final int mask = capacity - 1;
+
+        keys = new long[capacity];
+        values = new Object[capacity];
+
+        for (int j = 0; j < oldValues.length; j++) {
+            if (oldValues[j] != null) {
+                int i = slot(oldKeys[j], mask);
+                while (values[i] != null) {
+                    i = (i + 1) & mask;
+                }
+                keys[i] = oldKeys[j];
+                values[i] = oldValues[j];
+            }
+        }
+    }
+
+    private static int slot(long key, int mask) {
+        // Fibonacci hashing spreads neighbouring coordinates over the table
+        long h = key * 0x9E3779B97F4A7C15L;
+        return (int) (h ^ (h >>> 32)) & mask;
+    }
+}
@@ -12,8 +12,9 @@
 
 package tiled.util;
 
+import java.util.HashMap;
 import java.util.Iterator;
-import java.util.Vector;
+import java.util.NoSuchElementException;
 
 /**
  * A NumberedSet is a generic container of Objects where each element is
@@ -21,18 +22,31 @@ import java.util.Vector;
  * id and element remains unaffected when elements are deleted.  This means
  * that the set of ids for a NumberedSet may not be contiguous. (A sparse
  * array)
+ * <p>
+ * The elements are kept in a plain array indexed by id, together with a hash
+ * index from element to id, so that looking up the id of an element does not
+ * require a search.
  *
  * @author rainerd
  */
 public class NumberedSet
 {
-    private Vector<Object> data;
+    private Object[] data;
+    private int size;
+    private int maxId;
+    private final HashMap<Object, Integer> index;
+
+    // Whether an element was ever stored under more than one id. Only then
+    // the index needs to search for another id when an element is removed.
+    private boolean duplicates;
 
     /**
      * Constructs a new empty NumberedSet.
      */
     public NumberedSet() {
-        data = new Vector<Object>();
+        data = new Object[16];
+        maxId = -1;
+        index = new HashMap<Object, Integer>();
     }
 
     /**
@@ -43,11 +57,10 @@ public class NumberedSet
      * @return Object
      */
     public Object get(int id) {
-        try {
-            return data.get(id);
-        } catch (ArrayIndexOutOfBoundsException e) {}
-
-        return null;
+        if (id < 0 || id >= data.length) {
+            return null;
+        }
+        return data[id];
     }
 
     /**
@@ -73,24 +86,80 @@ public class NumberedSet
     public int put(int id, Object o) throws IllegalArgumentException {
         if (id < 0) throw new IllegalArgumentException();
 
-        // Make sure there is sufficient space to overlay
-        for (int i = id - data.size(); i > 0; i--) {
-            data.add(null);
+        if (o == null) {
+            remove(id);
+            return id;
+        }
+
+        if (id >= data.length) {
+            Object[] grown = new Object[Math.max(id + 1, data.length * 2)];
+            System.arraycopy(data, 0, grown, 0, data.length);
+            data = grown;
+        }
+
+        if (data[id] != null) {
+            unindex(id);
+        } else {
+            size++;
+        }
+
+        data[id] = o;
+        Integer first = index.get(o);
+        if (first == null) {
+            index.put(o, id);
+        } else {
+            duplicates = true;
+            if (first.intValue() > id) {
+                index.put(o, id);
+            }
         }
 
-        data.add(id, o);
+        if (id > maxId) {
+            maxId = id;
+        }
         return id;
     }
 
     /**
      * Removes the element associated with the given id from the NumberedSet.
-     *
-     * todo: this function shifts the ids of any subsequent elements!
+     * The ids of the other elements are not affected.
      *
      * @param id
      */
     public void remove(int id) {
-        data.remove(id);
+        if (get(id) == null) {
+            return;
+        }
+
+        unindex(id);
+        data[id] = null;
+        size--;
+
+        while (maxId >= 0 && data[maxId] == null) {
+            maxId--;
+        }
+    }
+
+    /**
+     * Removes the element with the given id from the index, pointing the
+     * index to another id of an equal element when there is one.
+     */
+    private void unindex(int id) {
+        final Object o = data[id];
+        final Integer first = index.get(o);
+        if (first == null || first.intValue() != id) {
+            return;
+        }
+
+        index.remove(o);
+        if (duplicates) {
+            for (int i = id + 1; i <= maxId; i++) {
+                if (o.equals(data[i])) {
+                    index.put(data[i], i);
+                    break;
+                }
+            }
+        }
     }
 
     /**
@@ -100,25 +169,17 @@ public class NumberedSet
      * @return int
      */
     public int getMaxId() {
-        int maxId = data.size() - 1;
-
-        while (maxId >= 0) {
-            if (data.get(maxId) != null) {
-                break;
-            }
-            maxId--;
-        }
-
         return maxId;
     }
 
     /**
      * Returns an iterator to iterate over the elements of the NumberedSet.
+     * Ids that are not associated with an element are skipped.
      *
      * @return NumberedSetIterator
      */
     public Iterator<Object> iterator() {
-        return data.iterator();
+        return new NumberedSetIterator();
     }
 
     /**
@@ -140,7 +201,11 @@ public class NumberedSet
      * @param o
      */
     public int indexOf(Object o) {
-        return data.indexOf(o);
+        if (o == null) {
+            return -1;
+        }
+        Integer id = index.get(o);
+        return id != null ? id.intValue() : -1;
     }
 
     /**
@@ -148,7 +213,7 @@ public class NumberedSet
      * given object.
      */
     public boolean contains(Object o) {
-        return data.contains(o);
+        return indexOf(o) != -1;
     }
 
     /**
@@ -168,6 +233,44 @@ public class NumberedSet
      * @return int
      */
     public int size() {
-        return data.size();
+        return size;
+    }
+
+    private class NumberedSetIterator implements Iterator<Object>
+    {
+        private int next;
+        private int current = -1;
+
+        public NumberedSetIterator() {
+            next = findNext(0);
+        }
+
+        private int findNext(int id) {
+            while (id <= maxId && data[id] == null) {
+                id++;
+            }
+            return id;
+        }
+
+        public boolean hasNext() {
+            return next <= maxId;
+        }
+
+        public Object next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            current = next;
+            next = findNext(next + 1);
+            return data[current];
+        }
+
+        public void remove() {
+            if (current < 0) {
+                throw new IllegalStateException();
+            }
+            NumberedSet.this.remove(current);
+            current = -1;
+        }
     }
 }
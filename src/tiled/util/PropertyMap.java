@@ -0,0 +1,138 @@
+/*
+ *  Tiled Map Editor, (c) 2004-2008
+ *
+ *  This program is free software; you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation; either version 2 of the License, or
+ *  (at your option) any later version.
+ *
+ *  Adam Turk <aturk@biggeruniverse.com>
+ *  Bjorn Lindeijer <bjorn@lindeijer.nl>
+ */
+
+package tiled.util;
+
+import java.util.Enumeration;
+import java.util.Map;
+import java.util.Properties;
+import java.util.SortedSet;
+import java.util.TreeSet;
+
+/**
+ * The properties of a tile, layer or object. Properties can be chained to a
+ * set of defaults, like the default tile properties of a tileset, which are
+ * then shared instead of being copied into every tile. Reading a property
+ * falls through to the defaults, while setting one only changes this map,
+ * overriding the default value.
+ * <p>
+ * Keys are interned when they are added, so that the names of properties
+ * used throughout a map are only kept in memory once.
+ * <p>
+ * Like with any {@link Properties}, the <code>Hashtable</code> methods only
+ * see the properties set on this map itself. Use {@link #names(Properties)}
+ * and {@link Properties#getProperty(String)} to include the defaults.
+ */
+public class PropertyMap extends Properties
+{
+    private static final long serialVersionUID = 1L;
+
+    /**
+     * Constructs an empty map without defaults.
+     */
+    public PropertyMap() {
+    }
+
+    /**
+     * Constructs an empty map chained to the given defaults.
+     *
+     * @param defaults the defaults, or <code>null</code> for none
+     */
+    public PropertyMap(Properties defaults) {
+        super(defaults);
+    }
+
+    /**
+     * @return the defaults this map is chained to, or <code>null</code>
+     */
+    public Properties getDefaults() {
+        return defaults;
+    }
+
+    /**
+     * Chains this map to other defaults.
+     *
+     * @param defaults the new defaults, or <code>null</code> for none
+     */
+    public synchronized void setDefaults(Properties defaults) {
+        this.defaults = defaults;
+    }
+
+    public synchronized Object put(Object key, Object value) {
+        if (key instanceof String) {
+            key = ((String) key).intern();
+        }
+        return super.put(key, value);
+    }
+
+    public synchronized void putAll(Map<?, ?> t) {
+        for (Map.Entry<?, ?> entry : t.entrySet()) {
+            put(entry.getKey(), entry.getValue());
+        }
+    }
+
+    /**
+     * Returns the names of the given properties, including the names of
+     * their defaults, in sorted order.
+     *
+     * @param props the properties, or <code>null</code> for none
+     * @return the sorted names
+     */
+    public static SortedSet<String> names(Properties props) {
+        final SortedSet<String> names = new TreeSet<String>();
+        if (props != null) {
+            Enumeration<?> e = props.propertyNames();
+            while (e.hasMoreElements()) {
+                Object name = e.nextElement();
+                if (name instanceof String) {
+                    names.add((String) name);
+                }
+            }
+        }
+        return names;
+    }
+
+    /**
+     * Returns whether the given properties, or their defaults, contain any
+     * property.
+     *
+     * @param props the properties, or <code>null</code> for none
+     * @return <code>true</code> when there is no property at all
+     */
+    public static boolean isEmpty(Properties props) {
+        return props == null || !props.propertyNames().hasMoreElements();
+    }
+
+    /**
+     * Returns whether the given properties have the same names and values,
+     * including the ones they take from their defaults.
+     *
+     * @param a the first properties, or <code>null</code> for none
+     * @param b the second properties, or <code>null</code> for none
+     * @return <code>true</code> when both have the same properties
+     */
+    public static boolean equal(Properties a, Properties b) {
+        if (a == b) {
+            return true;
+        }
+        final SortedSet<String> names = names(a);
+        if (!names.equals(names(b))) {
+            return false;
+        }
+        for (String name : names) {
+            if (!a.getProperty(name).equals(b.getProperty(name))) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
@@ -0,0 +1,159 @@
+/*
+ *  Tiled Map Editor, (c) 2004-2008
+ *
+ *  This program is free software; you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation; either version 2 of the License, or
+ *  (at your option) any later version.
+ *
+ *  Adam Turk <aturk@biggeruniverse.com>
+ *  Bjorn Lindeijer <bjorn@lindeijer.nl>
+ */
+
+package tiled.util;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * A shared pool of worker threads for splitting expensive operations on
+ * large layers over the available processors, and a single background
+ * thread for work done ahead of time. The threads are daemon threads, so
+ * they never keep the application from exiting.
+ */
+public final class Workers
+{
+    /**
+     * A piece of work over a range of indices, such as a range of rows.
+     */
+    public interface Block
+    {
+        /**
+         * Processes the indices from <code>start</code> (inclusive) to
+         * <code>end</code> (exclusive).
+         */
+        void run(int start, int end);
+    }
+
+    private static final int PARALLELISM =
+            Runtime.getRuntime().availableProcessors();
+
+    private static ExecutorService executor;
+    private static ExecutorService backgroundExecutor;
+
+    private Workers() {
+    }
+
+    /**
+     * @return the number of worker threads
+     */
+    public static int getParallelism() {
+        return PARALLELISM;
+    }
+
+    /**
+     * Returns the shared executor, creating it when it is first needed.
+     *
+     * @return the executor running the worker threads
+     */
+    public static synchronized ExecutorService getExecutor() {
+        if (executor == null) {
+            executor = Executors.newFixedThreadPool(PARALLELISM,
+                    createThreadFactory("Worker-", Thread.NORM_PRIORITY));
+        }
+        return executor;
+    }
+
+    /**
+     * Returns the executor for work that is done ahead of time, like
+     * decoding and scaling images before they are drawn. It runs a single
+     * thread of low priority, so that such work never holds up the worker
+     * threads.
+     *
+     * @return the executor running the background thread
+     */
+    public static synchronized ExecutorService getBackgroundExecutor() {
+        if (backgroundExecutor == null) {
+            backgroundExecutor = Executors.newSingleThreadExecutor(
+                    createThreadFactory("Background-", Thread.MIN_PRIORITY));
+        }
+        return backgroundExecutor;
+    }
+
+    private static ThreadFactory createThreadFactory(final String name,
+                                                     final int priority) {
+        return new ThreadFactory() {
+            private int count;
+
+            public synchronized Thread newThread(Runnable r) {
+                Thread t = new Thread(r, name + ++count);
+                t.setDaemon(true);
+                t.setPriority(priority);
+                return t;
+            }
+        };
+    }
+
+    /**
+     * Splits the range from 0 to <code>count</code> into blocks of
+     * <code>grain</code> indices and runs the given work on each of them,
+     * returning once all blocks are done. The blocks run in parallel when
+     * there is more than one of them and more than one processor, otherwise
+     * the work is done on the calling thread. Blocks must not depend on
+     * each other, and must not call this method themselves.
+     *
+     * @param count the number of indices
+     * @param grain the smallest number of indices worth a separate task
+     * @param body  the work to do
+     * @throws RuntimeException wrapping any checked exception thrown by the
+     *                          work; unchecked ones are rethrown as they are
+     */
+    public static void forEachBlock(int count, int grain, final Block body) {
+        grain = Math.max(1, grain);
+        if (count <= grain || PARALLELISM < 2) {
+            body.run(0, count);
+            return;
+        }
+
+        // No more blocks than needed to keep every processor busy
+        final int blocks = Math.min((count + grain - 1) / grain,
+                PARALLELISM * 4);
+        final int size = (count + blocks - 1) / blocks;
+
+        List<Future<?>> futures = new ArrayList<Future<?>>(blocks);
+        for (int start = size; start < count; start += size) {
+            final int s = start;
+            final int e = Math.min(count, start + size);
+            futures.add(getExecutor().submit(new Runnable() {
+                public void run() {
+                    body.run(s, e);
+                }
+            }));
+        }
+
+        // The calling thread takes the first block itself
+        body.run(0, Math.min(count, size));
+
+        for (Future<?> future : futures) {
+            try {
+                future.get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new RuntimeException(e);
+            } catch (ExecutionException e) {
+                Throwable cause = e.getCause();
+                if (cause instanceof RuntimeException) {
+                    throw (RuntimeException) cause;
+                } else if (cause instanceof Error) {
+                    throw (Error) cause;
+                }
+                throw new RuntimeException(cause);
+            }
+        }
+    }
+}
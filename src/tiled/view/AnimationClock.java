@@ -0,0 +1,145 @@
+/*
+ *  Tiled Map Editor, (c) 2004-2008
+ *
+ *  This program is free software; you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation; either version 2 of the License, or
+ *  (at your option) any later version.
+ *
+ *  Adam Turk <aturk@biggeruniverse.com>
+ *  Bjorn Lindeijer <bjorn@lindeijer.nl>
+ */
+
+package tiled.view;
+
+import java.awt.Rectangle;
+import java.awt.event.ActionEvent;
+import java.awt.event.ActionListener;
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.List;
+import javax.swing.Timer;
+
+import tiled.core.AnimatedTile;
+import tiled.core.MapLayer;
+import tiled.core.Sprite;
+import tiled.core.Tile;
+import tiled.core.TileLayer;
+
+/**
+ * Drives the animated tiles shown in map views from a single shared timer.
+ * On each tick, the animated cells in the visible part of every view are
+ * looked up, the sprite of each animated tile found is advanced once, and
+ * only the cells whose frame changed are repainted. The work done per tick
+ * depends on the number of visible animated cells, not on the size of the
+ * maps.
+ * <p>
+ * Map views register themselves while they are displayed.
+ */
+public final class AnimationClock
+{
+    /** Time between two ticks, in milliseconds. */
+    public static final int TICK_INTERVAL = 100;
+
+    private static final List<MapView> views = new ArrayList<MapView>();
+    private static Timer timer;
+    private static long lastTick;
+
+    private AnimationClock() {
+    }
+
+    /**
+     * Starts animating the given view. Must be called on the event
+     * dispatch thread.
+     *
+     * @param view the view to animate
+     */
+    public static void register(MapView view) {
+        if (views.contains(view)) {
+            return;
+        }
+        views.add(view);
+
+        if (timer == null) {
+            timer = new Timer(TICK_INTERVAL, new ActionListener() {
+                public void actionPerformed(ActionEvent e) {
+                    tick();
+                }
+            });
+        }
+        if (!timer.isRunning()) {
+            lastTick = System.currentTimeMillis();
+            timer.start();
+        }
+    }
+
+    /**
+     * Stops animating the given view. The timer stops once no views are
+     * left. Must be called on the event dispatch thread.
+     *
+     * @param view the view to stop animating
+     */
+    public static void unregister(MapView view) {
+        views.remove(view);
+        if (views.isEmpty() && timer != null) {
+            timer.stop();
+        }
+    }
+
+    private static void tick() {
+        final long now = System.currentTimeMillis();
+        final float seconds = (now - lastTick) / 1000f;
+        lastTick = now;
+
+        // Each sprite is advanced once, however often it is visible
+        final IdentityHashMap<Sprite, Boolean> advanced =
+                new IdentityHashMap<Sprite, Boolean>();
+
+        for (MapView view : new ArrayList<MapView>(views)) {
+            if (!view.isShowing()) {
+                continue;
+            }
+
+            Iterator<MapLayer> layers = view.map.getLayers();
+            while (layers.hasNext()) {
+                MapLayer layer = layers.next();
+                if (layer instanceof TileLayer && layer.isVisible() &&
+                        layer.getOpacity() > 0.0f) {
+                    animate(view, (TileLayer) layer, seconds, advanced);
+                }
+            }
+        }
+    }
+
+    private static void animate(MapView view, TileLayer layer, float seconds,
+                                IdentityHashMap<Sprite, Boolean> advanced) {
+        final Rectangle visible = view.getVisibleTiles(layer);
+        if (visible.isEmpty()) {
+            return;
+        }
+
+        final int[] cells = layer.getAnimatedCells(visible);
+        for (int i = 0; i < cells.length; i += 2) {
+            final Tile tile = layer.getTileAt(cells[i], cells[i + 1]);
+            if (!(tile instanceof AnimatedTile)) {
+                continue;
+            }
+
+            final Sprite sprite = ((AnimatedTile) tile).getSprite();
+            if (sprite == null) {
+                continue;
+            }
+            Boolean changed = advanced.get(sprite);
+            if (changed == null) {
+                changed = Boolean.valueOf(sprite.advance(seconds));
+                advanced.put(sprite, changed);
+            }
+
+            if (changed.booleanValue()) {
+                view.repaintRegion(layer,
+                        new Rectangle(cells[i], cells[i + 1], 1, 1));
+            }
+        }
+    }
+}
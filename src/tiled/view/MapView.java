@@ -365,6 +365,28 @@ public abstract class MapView extends JPanel implements Scrollable
             this.zoom = zoom;
             //revalidate();
             setSize(getPreferredSize());
+            prefetchScaledImages();
+        }
+    }
+
+    /**
+     * Has the tile images scaled in the background for the current zoom
+     * level and the levels next to it, so that zooming does not need to
+     * wait for the tiles to be scaled.
+     */
+    private void prefetchScaledImages() {
+        for (TileSet tileset : map.getTilesets()) {
+            tileset.prefetchScaledImages(zoom);
+            for (int i = 0; i < zoomLevels.length; i++) {
+                if (zoomLevels[i] == zoom) {
+                    if (i > 0) {
+                        tileset.prefetchScaledImages(zoomLevels[i - 1]);
+                    }
+                    if (i < zoomLevels.length - 1) {
+                        tileset.prefetchScaledImages(zoomLevels[i + 1]);
+                    }
+                }
+            }
         }
     }
 
@@ -383,6 +405,53 @@ public abstract class MapView extends JPanel implements Scrollable
         return zoomLevel;
     }
 
+    @Override
+    public void addNotify() {
+        super.addNotify();
+        AnimationClock.register(this);
+    }
+
+    @Override
+    public void removeNotify() {
+        AnimationClock.unregister(this);
+        super.removeNotify();
+    }
+
+    /**
+     * Returns the tiles of the given layer that may be visible in this view.
+     * The corners of the visible part of the view are converted to tile
+     * coordinates, with some margin for tiles higher than the grid.
+     *
+     * @param layer the layer to look at
+     * @return the region in tile coordinates, within the layer bounds
+     */
+    public Rectangle getVisibleTiles(MapLayer layer) {
+        final Rectangle visible = getVisibleRect();
+        if (visible.isEmpty() || layer.getTileWidth() <= 0 ||
+                layer.getTileHeight() <= 0) {
+            return new Rectangle();
+        }
+
+        int minX = Integer.MAX_VALUE, minY = Integer.MAX_VALUE;
+        int maxX = Integer.MIN_VALUE, maxY = Integer.MIN_VALUE;
+        for (int i = 0; i < 4; i++) {
+            final Point p = screenToTileCoords(layer,
+                    visible.x + (i & 1) * visible.width,
+                    visible.y + (i >> 1) * visible.height);
+            minX = Math.min(minX, p.x);
+            minY = Math.min(minY, p.y);
+            maxX = Math.max(maxX, p.x);
+            maxY = Math.max(maxY, p.y);
+        }
+
+        final int extra = (map.getTileHeightMax() + layer.getTileHeight() - 1)
+                / layer.getTileHeight();
+        final Rectangle tiles = new Rectangle(minX - 1, minY - 1,
+                maxX - minX + 3 + extra, maxY - minY + 3 + extra);
+        final Rectangle result = tiles.intersection(layer.getBounds());
+        return result.isEmpty() ? new Rectangle() : result;
+    }
+
 
     // Scrolling
     